@@ -0,0 +1,218 @@
+/*
+ * BestFitBlockAllocator.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A contiguous block allocator which uses a best-fit strategy. Like
+ * <code>ContiguousBlockAllocator</code>, it does not round requests up to
+ * powers of two, and freed blocks are merged with their free neighbours.
+ * <p>
+ * The free blocks are kept in a set ordered by size (and address), so that the
+ * smallest block which satisfies a request is found in logarithmic time. Ties
+ * are resolved towards the lowest address. Two arrays map the first and the
+ * last index of each block to the block, so that the neighbours of a freed
+ * block are found in constant time.
+ * <p>
+ * To use this allocator for a server's busses and buffers, call
+ * <code>setBlockAllocFactory( new BestFitBlockAllocator.Factory() )</code> on
+ * the server options before creating the server.
+ *
+ * @see ServerOptions#setBlockAllocFactory( BlockAllocator.Factory )
+ */
+public class BestFitBlockAllocator implements BlockAllocator {
+	private final int size;
+	private final int pos;
+	private final Block[] byStart;
+	private final Block[] byLast;
+	private final TreeSet<Block> freeBlocks;
+	private int freeSize;
+
+	public BestFitBlockAllocator(int size) {
+		this(size, 0);
+	}
+
+	public BestFitBlockAllocator(int size, int pos) {
+		this.size = size;
+		this.pos = pos;
+
+		byStart = new Block[size];
+		byLast = new Block[size];
+		freeBlocks = new TreeSet<>(new Comparator<Block>() {
+			@Override
+			public int compare(Block a, Block b) {
+				if (a.size != b.size)
+					return a.size < b.size ? -1 : 1;
+				return a.start < b.start ? -1 : (a.start > b.start ? 1 : 0);
+			}
+		});
+		freeSize = 0;
+		if (size > pos)
+			addFree(new Block(pos, size - pos));
+	}
+
+	@Override
+	public int alloc(int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("Illegal block size " + n);
+
+		final Block b = freeBlocks.ceiling(new Block(Integer.MIN_VALUE, n));
+		if (b == null)
+			return -1;
+
+		removeFree(b);
+		final Block used = new Block(b.start, n);
+		used.used = true;
+		put(used);
+		if (b.size > n)
+			addFree(new Block(b.start + n, b.size - n));
+
+		return used.start;
+	}
+
+	@Override
+	public void free(int address) {
+		if ((address < pos) || (address >= size))
+			return;
+
+		final Block b = byStart[address];
+		if ((b == null) || !b.used)
+			return;
+
+		int start = b.start;
+		int stop = b.start + b.size;
+		remove(b);
+
+		if (start > pos) {
+			final Block prev = byLast[start - 1];
+			if (!prev.used) {
+				removeFree(prev);
+				start = prev.start;
+			}
+		}
+		if (stop < size) {
+			final Block next = byStart[stop];
+			if (!next.used) {
+				removeFree(next);
+				stop = next.start + next.size;
+			}
+		}
+		addFree(new Block(start, stop - start));
+	}
+
+	@Override
+	public List<Block> getAllocatedBlocks() {
+		final List<Block> result = new ArrayList<>();
+
+		for (int i = pos; i < size;) {
+			final Block b = byStart[i];
+			if (b.used)
+				result.add(b);
+			i += b.size;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total number of free indices.
+	 */
+	public int getFreeSize() {
+		return freeSize;
+	}
+
+	/**
+	 * Returns the number of free blocks.
+	 */
+	public int getNumFreeBlocks() {
+		return freeBlocks.size();
+	}
+
+	/**
+	 * Returns the size of the largest free block, which is the largest request
+	 * that can currently be satisfied.
+	 */
+	public int getLargestFreeBlock() {
+		return freeBlocks.isEmpty() ? 0 : freeBlocks.last().size;
+	}
+
+	/**
+	 * Returns the external fragmentation, that is the fraction of free indices
+	 * which are not part of the largest free block. This is zero if all free
+	 * indices are contiguous, and approaches one if they are scattered in many
+	 * small blocks.
+	 */
+	public float getFragmentation() {
+		return freeSize == 0 ? 0f : 1f - (float) getLargestFreeBlock() / freeSize;
+	}
+
+	private void put(Block b) {
+		byStart[b.start] = b;
+		byLast[b.start + b.size - 1] = b;
+	}
+
+	private void remove(Block b) {
+		byStart[b.start] = null;
+		byLast[b.start + b.size - 1] = null;
+	}
+
+	private void addFree(Block b) {
+		put(b);
+		freeBlocks.add(b);
+		freeSize += b.size;
+	}
+
+	private void removeFree(Block b) {
+		remove(b);
+		freeBlocks.remove(b);
+		freeSize -= b.size;
+	}
+
+	public static class Factory implements BlockAllocator.Factory {
+		@Override
+		public BlockAllocator create(int size) {
+			return new BestFitBlockAllocator(size);
+		}
+
+		@Override
+		public BlockAllocator create(int size, int pos) {
+			return new BestFitBlockAllocator(size, pos);
+		}
+	}
+
+	private static class Block implements BlockAllocator.Block {
+		protected final int start;
+		protected final int size;
+		protected boolean used = false;
+
+		protected Block(int start, int size) {
+			this.start = start;
+			this.size = size;
+		}
+
+		@Override
+		public int getAddress() {
+			return start;
+		}
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return ("Block( start = " + start + "; size = " + size + "; used = " + used + " )");
+		}
+	}
+}
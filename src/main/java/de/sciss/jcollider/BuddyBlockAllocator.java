@@ -0,0 +1,281 @@
+/*
+ * BuddyBlockAllocator.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A buddy allocator. Like <code>PowerOfTwoAllocator</code>, requests are
+ * rounded up to powers of two, but larger free blocks are split in halves
+ * ("buddies") to satisfy smaller requests, and when both buddies are free
+ * again, they are merged back into the larger block. Thus, unlike
+ * <code>PowerOfTwoAllocator</code>, the free space does not fragment
+ * permanently after mixed size allocations.
+ * <p>
+ * The managed range is divided into the largest possible aligned power of two
+ * blocks. For each block order (size <code>2^k</code>), a bitmap records which
+ * blocks are free, so that a buddy's state is checked in constant time. The
+ * free blocks of each order are additionally chained in a doubly linked list
+ * stored in two index arrays. Allocation and freeing take
+ * <code>O(log n)</code> steps, one per order.
+ * <p>
+ * To use this allocator for a server's busses and buffers, call
+ * <code>setBlockAllocFactory( new BuddyBlockAllocator.Factory() )</code> on the
+ * server options before creating the server.
+ *
+ * @see ServerOptions#setBlockAllocFactory( BlockAllocator.Factory )
+ */
+public class BuddyBlockAllocator implements BlockAllocator {
+	private static final int MAX_ORDERS = 32;
+
+	private final int pos;
+	private final int capacity;
+	private final long[][] freeMap; // per order, one bit per block
+	private final int[] heads; // per order, first free block or -1
+	private final int[] next; // free list links, indexed by offset
+	private final int[] prev;
+	private final byte[] allocOrder; // order of allocated block at offset, or -1
+	private final int[] requested; // requested size of allocated block at offset
+
+	private int freeSize = 0;
+	private int numFreeBlocks = 0;
+	private int numAllocated = 0;
+	private long requestedSize = 0;
+
+	public BuddyBlockAllocator(int size) {
+		this(size, 0);
+	}
+
+	public BuddyBlockAllocator(int size, int pos) {
+		this.pos = pos;
+		capacity = Math.max(0, size - pos);
+
+		freeMap = new long[MAX_ORDERS][];
+		for (int k = 0; k < MAX_ORDERS; k++) {
+			freeMap[k] = new long[((capacity >> k) + 63) >> 6];
+		}
+		heads = new int[MAX_ORDERS];
+		for (int k = 0; k < MAX_ORDERS; k++) {
+			heads[k] = -1;
+		}
+		next = new int[capacity];
+		prev = new int[capacity];
+		allocOrder = new byte[capacity];
+		requested = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			allocOrder[i] = -1;
+		}
+
+		// largest aligned blocks first
+		int off = 0;
+		for (int k = MAX_ORDERS - 2; k >= 0; k--) {
+			if ((capacity - off) >= (1 << k)) {
+				pushFree(off, k);
+				off += 1 << k;
+			}
+		}
+	}
+
+	@Override
+	public int alloc(int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("Illegal block size " + n);
+		if (n > capacity)
+			return -1;
+
+		final int k = order(n);
+		int j = k;
+		while ((j < MAX_ORDERS) && (heads[j] < 0))
+			j++;
+		if (j == MAX_ORDERS)
+			return -1;
+
+		final int off = heads[j];
+		removeFree(off, j);
+		// split, returning the upper halves to the free lists
+		while (j > k) {
+			j--;
+			pushFree(off + (1 << j), j);
+		}
+		allocOrder[off] = (byte) k;
+		requested[off] = n;
+		numAllocated++;
+		requestedSize += n;
+
+		return pos + off;
+	}
+
+	@Override
+	public void free(int address) {
+		int off = address - pos;
+		if ((off < 0) || (off >= capacity))
+			return;
+
+		int k = allocOrder[off];
+		if (k < 0)
+			return;
+
+		allocOrder[off] = -1;
+		numAllocated--;
+		requestedSize -= requested[off];
+
+		// merge with free buddies
+		while (k < MAX_ORDERS - 1) {
+			final int buddy = off ^ (1 << k);
+			if ((buddy + (1 << k) > capacity) || !isFree(buddy, k))
+				break;
+
+			removeFree(buddy, k);
+			off = Math.min(off, buddy);
+			k++;
+		}
+		pushFree(off, k);
+	}
+
+	@Override
+	public List<Block> getAllocatedBlocks() {
+		final List<Block> result = new ArrayList<>();
+
+		for (int off = 0; off < capacity; off++) {
+			if (allocOrder[off] >= 0)
+				result.add(new Block(pos + off, 1 << allocOrder[off]));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total number of free indices.
+	 */
+	public int getFreeSize() {
+		return freeSize;
+	}
+
+	/**
+	 * Returns the number of free blocks.
+	 */
+	public int getNumFreeBlocks() {
+		return numFreeBlocks;
+	}
+
+	/**
+	 * Returns the size of the largest free block, which is the largest request
+	 * that can currently be satisfied.
+	 */
+	public int getLargestFreeBlock() {
+		for (int k = MAX_ORDERS - 1; k >= 0; k--) {
+			if (heads[k] >= 0)
+				return 1 << k;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the external fragmentation, that is the fraction of free indices
+	 * which are not part of the largest free block. This is zero if all free
+	 * indices are contiguous, and approaches one if they are scattered in many
+	 * small blocks.
+	 */
+	public float getFragmentation() {
+		return freeSize == 0 ? 0f : 1f - (float) getLargestFreeBlock() / freeSize;
+	}
+
+	/**
+	 * Returns the internal fragmentation, that is the fraction of allocated
+	 * indices which were not requested but result from rounding up to powers of
+	 * two.
+	 */
+	public float getInternalFragmentation() {
+		final long allocated = capacity - freeSize;
+		return allocated == 0 ? 0f : (float) (1.0 - (double) requestedSize / allocated);
+	}
+
+	/**
+	 * Returns the number of allocated blocks.
+	 */
+	public int getNumAllocatedBlocks() {
+		return numAllocated;
+	}
+
+	private boolean isFree(int off, int k) {
+		final int idx = off >> k;
+		return (freeMap[k][idx >> 6] & (1L << (idx & 63))) != 0;
+	}
+
+	private void pushFree(int off, int k) {
+		final int idx = off >> k;
+		freeMap[k][idx >> 6] |= 1L << (idx & 63);
+
+		final int head = heads[k];
+		next[off] = head;
+		prev[off] = -1;
+		if (head >= 0)
+			prev[head] = off;
+		heads[k] = off;
+
+		freeSize += 1 << k;
+		numFreeBlocks++;
+	}
+
+	private void removeFree(int off, int k) {
+		final int idx = off >> k;
+		freeMap[k][idx >> 6] &= ~(1L << (idx & 63));
+
+		final int p = prev[off];
+		final int n = next[off];
+		if (p >= 0) {
+			next[p] = n;
+		} else {
+			heads[k] = n;
+		}
+		if (n >= 0)
+			prev[n] = p;
+
+		freeSize -= 1 << k;
+		numFreeBlocks--;
+	}
+
+	// the order of the smallest power of two >= n
+	private static int order(int n) {
+		return n == 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	public static class Factory implements BlockAllocator.Factory {
+		@Override
+		public BlockAllocator create(int size) {
+			return new BuddyBlockAllocator(size);
+		}
+
+		@Override
+		public BlockAllocator create(int size, int pos) {
+			return new BuddyBlockAllocator(size, pos);
+		}
+	}
+
+	private static class Block implements BlockAllocator.Block {
+		private final int address;
+		private final int size;
+
+		protected Block(int address, int size) {
+			this.address = address;
+			this.size = size;
+		}
+
+		@Override
+		public int getAddress() {
+			return address;
+		}
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+	}
+}
@@ -11,6 +11,11 @@ package de.sciss.jcollider;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import de.sciss.net.OSCBundle;
 import de.sciss.net.OSCMessage;
@@ -26,19 +31,18 @@ import de.sciss.net.OSCMessage;
  *
  * @author Hanns Holger Rutz
  * @version 0.32, 25-Feb-08
- *
- * @todo custom fill commands (sine1 etc.)
  */
 public class Buffer implements Constants {
 	private final Server server;
 	private final int bufNum;
 
-	private int numFrames;
-	private int numChannels;
-	private double sampleRate;
+	// updated by the OSC thread upon /b_info
+	private volatile int numFrames;
+	private volatile int numChannels;
+	private volatile double sampleRate;
 
-	private String path = null;
-	private CompletionAction doOnInfo = null;
+	private volatile String path = null;
+	private volatile CompletionAction doOnInfo = null;
 
 	/**
 	 * Creates a new Buffer with given number of frames and channels. This method
@@ -386,18 +390,23 @@ public class Buffer implements Constants {
 	 *
 	 * @throws IOException
 	 *             if an error occurs while sending the OSC message
+	 *
+	 * @see #allocConsecutiveBulk( int, Server, int, int, float )
 	 */
 	public static Buffer[] allocConsecutive(int numBufs, Server server, int numFrames, int numChannels,
 			CompletionFunction completionFunc, int bufNum) throws IOException {
 		final Buffer[] bufs = new Buffer[numBufs];
+		final List<OSCMessage> msgs = new ArrayList<>(numBufs);
 		Buffer buf;
 		boolean success = false;
 		try {
 			for (int i = 0; i < numBufs; i++) {
 				buf = new Buffer(server, numFrames, numChannels, bufNum + i);
-				buf.alloc(completionFunc == null ? null : completionFunc.completion(buf));
+				msgs.add(buf.allocMsg(completionFunc == null ? null : completionFunc.completion(buf)));
 				bufs[i] = buf;
 			}
+			// the messages are sent in as few packets as possible
+			PacketUtil.sendBundled(server, msgs);
 			success = true;
 			return bufs;
 		} finally {
@@ -414,6 +423,177 @@ public class Buffer implements Constants {
 		}
 	}
 
+	/**
+	 * Allocates several buffers created with the basic <code>new</code>
+	 * constructor in a single round trip. The <code>/b_alloc</code> messages are
+	 * sent in as few bundles as possible, followed by a <code>/sync</code>.
+	 *
+	 * @param bufs
+	 *            the buffers to allocate, all residing on the same server
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the server
+	 * @return a future which completes with <code>bufs</code> once all buffers are
+	 *         allocated. it fails as soon as the server reports a failure, with
+	 *         an <code>AllocFailedException</code> identifying the buffer. buffers
+	 *         which were allocated successfully are not freed in this case.
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public static CompletableFuture<Buffer[]> allocBulk(final Buffer[] bufs, float timeout) throws IOException {
+		if (bufs.length == 0)
+			return CompletableFuture.completedFuture(bufs);
+
+		final OSCMessage[] msgs = new OSCMessage[bufs.length];
+		for (int i = 0; i < bufs.length; i++) {
+			msgs[i] = bufs[i].allocMsg();
+		}
+		return BufferTransfer.sendAsyncAll(bufs, msgs, timeout).thenApply(new Function<Void, Buffer[]>() {
+			@Override
+			public Buffer[] apply(Void v) {
+				return bufs;
+			}
+		});
+	}
+
+	/**
+	 * Allocates an array of neighbouring <code>Buffer</code> objects in a single
+	 * round trip, as opposed to <code>allocConsecutive</code> which requires a
+	 * separate <code>sync</code> to know when the buffers are ready.
+	 *
+	 * @param numBufs
+	 *            the number of buffers to allocate
+	 * @param server
+	 *            the server to which the buffers belong
+	 * @param numFrames
+	 *            the number of frames (samples per channel) of each buffer
+	 * @param numChannels
+	 *            the number of channels of each buffer
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the server
+	 * @return a future which completes with the buffers once all are allocated
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 * @throws IllegalStateException
+	 *             if the server's buffer allocator cannot provide
+	 *             <code>numBufs</code> consecutive indices
+	 *
+	 * @see #allocBulk( Buffer[], float )
+	 */
+	public static CompletableFuture<Buffer[]> allocConsecutiveBulk(int numBufs, Server server, int numFrames,
+			int numChannels, float timeout) throws IOException {
+		final int bufNum = server.getBufferAllocator().alloc(numBufs);
+
+		if (bufNum == -1)
+			throw new IllegalStateException("Failed to get " + numBufs + " buffers allocated");
+
+		final Buffer[] bufs = new Buffer[numBufs];
+		for (int i = 0; i < numBufs; i++) {
+			bufs[i] = new Buffer(server, numFrames, numChannels, bufNum + i);
+		}
+		boolean success = false;
+		try {
+			final CompletableFuture<Buffer[]> future = allocBulk(bufs, timeout);
+			success = true;
+			return future;
+		} finally {
+			if (!success)
+				freeAll(bufs);
+		}
+	}
+
+	// frees buffers whose allocation could not be sent. the indices are
+	// returned even if the /b_free cannot be sent either
+	private static void freeAll(Buffer[] bufs) {
+		for (int i = 0; i < bufs.length; i++) {
+			try {
+				bufs[i].free();
+			} catch (IOException e1) {
+				/* ignored */ }
+		}
+	}
+
+	/**
+	 * Allocates one buffer per sound file and reads the files in a single round
+	 * trip. The <code>/b_allocRead</code> messages are sent in as few bundles as
+	 * possible, each with a <code>/b_query</code> completion message, so that the
+	 * buffers' parameters are known when the returned future completes.
+	 *
+	 * @param server
+	 *            the server on which to allocate the buffers
+	 * @param paths
+	 *            the paths to the sound files
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the server
+	 * @return a future which completes with the buffers, in the order of
+	 *         <code>paths</code>, once all files are read. it fails as soon as the
+	 *         server reports a failure, with an <code>AllocFailedException</code>
+	 *         identifying the buffer. buffers which were read successfully are
+	 *         not freed in this case.
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 * @throws IllegalStateException
+	 *             if the server's buffer allocator is exhausted
+	 */
+	public static CompletableFuture<Buffer[]> allocReadBulk(Server server, String[] paths, float timeout)
+			throws IOException {
+		final Buffer[] bufs = new Buffer[paths.length];
+		final OSCMessage[] msgs = new OSCMessage[paths.length];
+		final CompletableFuture<?>[] futures = new CompletableFuture<?>[paths.length + 1];
+		final CompletableFuture<Buffer[]> result = new CompletableFuture<>();
+
+		if (paths.length == 0)
+			return CompletableFuture.completedFuture(bufs);
+
+		for (int i = 0; i < paths.length; i++) {
+			final int bufNum = server.getBufferAllocator().alloc(1);
+			if (bufNum == -1) {
+				for (int j = 0; j < i; j++) {
+					server.getBufferAllocator().free(bufs[j].getBufNum());
+				}
+				throw new IllegalStateException("Failed to get " + paths.length + " buffers allocated");
+			}
+			bufs[i] = new Buffer(server, bufNum);
+		}
+		for (int i = 0; i < paths.length; i++) {
+			msgs[i] = bufs[i].allocReadMsg(paths[i], 0, -1, bufs[i].queryMsg());
+			futures[i] = server.waitForBufInfo(bufs[i], timeout);
+		}
+
+		final CompletableFuture<Void> batch;
+		boolean success = false;
+		try {
+			batch = BufferTransfer.sendAsyncAll(bufs, msgs, timeout);
+			success = true;
+		} finally {
+			if (!success)
+				freeAll(bufs);
+		}
+		futures[paths.length] = batch;
+
+		// fail fast on the batch, but complete only when all infos arrived
+		batch.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable failure) {
+				if (failure != null)
+					result.completeExceptionally(failure);
+			}
+		});
+		CompletableFuture.allOf(futures).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable failure) {
+				if (failure != null) {
+					result.completeExceptionally(failure);
+				} else {
+					result.complete(bufs);
+				}
+			}
+		});
+		return result;
+	}
+
 	/**
 	 * Allocates the buffer created with the basic <code>new</code> constructor.
 	 *
@@ -2151,9 +2331,10 @@ public class Buffer implements Constants {
 		getServer().addBuf(this);
 	}
 
-	// tell the server to wait for a b_info
+	// tell the server to wait for a b_info. this is used with /b_query
+	// completion messages of reads, which may take arbitrarily long
 	private void waitForBufInfo() throws IOException {
-		getServer().waitForBufInfo();
+		getServer().waitForBufInfo(this, 0f);
 	}
 
 	/**
@@ -2192,6 +2373,479 @@ public class Buffer implements Constants {
 		return (new OSCMessage("/b_fill", args));
 	}
 
+	/**
+	 * Fills the buffer with a server side fill command.
+	 *
+	 * @see #genMsg( String, int, float[] )
+	 */
+	public void gen(String command, int flags, float[] args) throws IOException {
+		getServer().sendMsg(genMsg(command, flags, args));
+	}
+
+	/**
+	 * Creates an OSC <code>/b_gen</code> message to fill the buffer with a server
+	 * side fill command. The command runs asynchronously on the server's
+	 * non-realtime thread; for large tables consider computing them on the client
+	 * side with <code>TableGen</code>.
+	 *
+	 * @param command
+	 *            the name of the fill command, such as <code>"sine1"</code>,
+	 *            <code>"sine2"</code>, <code>"sine3"</code> or
+	 *            <code>"cheby"</code>
+	 * @param flags
+	 *            a combination of <code>kGenNormalize</code>,
+	 *            <code>kGenWavetable</code> and <code>kGenClear</code>
+	 * @param args
+	 *            the command's arguments, such as the partial amplitudes
+	 * @return the message to send to the server
+	 *
+	 * @see TableGen
+	 */
+	public OSCMessage genMsg(String command, int flags, float[] args) {
+		final Object[] msgArgs = new Object[args.length + 3];
+
+		msgArgs[0] = new Integer(getBufNum());
+		msgArgs[1] = command;
+		msgArgs[2] = new Integer(flags);
+		for (int i = 0; i < args.length; i++) {
+			msgArgs[i + 3] = new Float(args[i]);
+		}
+
+		return (new OSCMessage("/b_gen", msgArgs));
+	}
+
+	public void sine1(float[] amps, boolean normalize, boolean asWavetable, boolean clearFirst) throws IOException {
+		getServer().sendMsg(sine1Msg(amps, normalize, asWavetable, clearFirst));
+	}
+
+	public OSCMessage sine1Msg(float[] amps, boolean normalize, boolean asWavetable, boolean clearFirst) {
+		return genMsg("sine1", genFlags(normalize, asWavetable, clearFirst), amps);
+	}
+
+	public void cheby(float[] amps, boolean normalize, boolean asWavetable, boolean clearFirst) throws IOException {
+		getServer().sendMsg(chebyMsg(amps, normalize, asWavetable, clearFirst));
+	}
+
+	public OSCMessage chebyMsg(float[] amps, boolean normalize, boolean asWavetable, boolean clearFirst) {
+		return genMsg("cheby", genFlags(normalize, asWavetable, clearFirst), amps);
+	}
+
+	private static int genFlags(boolean normalize, boolean asWavetable, boolean clearFirst) {
+		return (normalize ? kGenNormalize : 0) | (asWavetable ? kGenWavetable : 0) | (clearFirst ? kGenClear : 0);
+	}
+
+	/**
+	 * Sets a range of successive samples of the buffer, using a single
+	 * <code>/b_setn</code> message. Sample indices are interleaved, that is
+	 * <code>frame * numChannels + channel</code>. For larger amounts of data use
+	 * <code>sendCollection</code>, which splits the data into UDP safe chunks.
+	 *
+	 * @param index
+	 *            the index of the first sample to set
+	 * @param values
+	 *            the sample values
+	 *
+	 * @throws IOException
+	 *             if a networking error occurs
+	 *
+	 * @see #sendCollection(float[], int)
+	 */
+	public void setn(int index, float[] values) throws IOException {
+		getServer().sendMsg(setnMsg(index, values));
+	}
+
+	public OSCMessage setnMsg(int index, float[] values) {
+		return setnMsg(index, values, 0, values.length);
+	}
+
+	/**
+	 * Constructs an OSC message <code>/b_setn</code> for setting a range of
+	 * successive samples of the buffer.
+	 *
+	 * @param index
+	 *            the index of the first sample to set
+	 * @param values
+	 *            the array containing the sample values
+	 * @param off
+	 *            the offset into <code>values</code>
+	 * @param num
+	 *            the number of samples to set
+	 * @return the OSC message, ready to be send to the server
+	 */
+	public OSCMessage setnMsg(int index, float[] values, int off, int num) {
+		final Object[] args = new Object[num + 3];
+
+		args[0] = new Integer(getBufNum());
+		args[1] = new Integer(index);
+		args[2] = new Integer(num);
+		for (int i = 0, j = off; i < num; i++, j++) {
+			args[i + 3] = new Float(values[j]);
+		}
+
+		return (new OSCMessage("/b_setn", args));
+	}
+
+	/**
+	 * Constructs an OSC message <code>/b_getn</code> for querying a range of
+	 * successive samples of the buffer. The server replies with a
+	 * <code>/b_setn</code> message.
+	 *
+	 * @param index
+	 *            the index of the first sample to get
+	 * @param num
+	 *            the number of samples to get
+	 * @return the OSC message, ready to be send to the server
+	 */
+	public OSCMessage getnMsg(int index, int num) {
+		return (new OSCMessage("/b_getn", new Object[] { new Integer(getBufNum()), new Integer(index), new Integer(num) }));
+	}
+
+	/**
+	 * Uploads sample data to the beginning of the buffer.
+	 *
+	 * @see #sendCollection(float[], int, int, int, int, float)
+	 */
+	public CompletableFuture<Buffer> sendCollection(float[] values) throws IOException {
+		return sendCollection(values, 0);
+	}
+
+	/**
+	 * Uploads sample data to the buffer.
+	 *
+	 * @see #sendCollection(float[], int, int, int, int, float)
+	 */
+	public CompletableFuture<Buffer> sendCollection(float[] values, int startIndex) throws IOException {
+		return sendCollection(values, 0, values.length, startIndex, BufferTransfer.DEFAULT_WINDOW,
+				BufferTransfer.DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Uploads sample data of arbitrary size to the buffer. The data is split into
+	 * <code>/b_setn</code> messages which fit into a single UDP datagram. Several
+	 * of these chunks are in flight at the same time, so the transfer does not
+	 * wait for a round trip per chunk. This method returns immediately.
+	 * <p>
+	 * If the server runs on the local machine and the number of samples reaches
+	 * the server's file transfer threshold, the samples are instead written to a
+	 * temporary sound file, which the server reads with <code>/b_read</code>. In
+	 * this case, the range must cover whole frames, otherwise OSC messages are
+	 * used. The file is deleted once the server has read it.
+	 *
+	 * @param values
+	 *            the array containing the samples, interleaved if the buffer has
+	 *            more than one channel
+	 * @param off
+	 *            the offset into <code>values</code>
+	 * @param num
+	 *            the number of samples to upload
+	 * @param startIndex
+	 *            the index of the first sample in the buffer to write
+	 * @param window
+	 *            the maximum number of chunks in flight
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for progress, or
+	 *            zero to wait forever
+	 * @return a future which completes when the server has processed all
+	 *         samples, or which fails if the transfer times out or the server
+	 *         reports a failure
+	 *
+	 * @throws IOException
+	 *             if a networking error occurs or the temporary file cannot be
+	 *             written
+	 *
+	 * @see Server#setFileTransferThreshold( int )
+	 */
+	public CompletableFuture<Buffer> sendCollection(float[] values, int off, int num, int startIndex, int window,
+			float timeout) throws IOException {
+		final CompletableFuture<Void> transfer = BufferTransfer.useFileUpload(this, num, startIndex)
+				? BufferTransfer.uploadFile(this, values, off, num, startIndex, timeout)
+				: BufferTransfer.upload(this, values, off, num, startIndex, window, timeout);
+
+		return transfer.thenApply(new Function<Void, Buffer>() {
+					@Override
+					public Buffer apply(Void v) {
+						return Buffer.this;
+					}
+				});
+	}
+
+	/**
+	 * Downloads all samples of the buffer.
+	 *
+	 * @see #getToFloatArray(int, int, float[], int, int, float)
+	 */
+	public CompletableFuture<float[]> getToFloatArray() throws IOException {
+		return getToFloatArray(0, getNumFrames() * getNumChannels());
+	}
+
+	/**
+	 * Downloads a range of samples of the buffer into a new array.
+	 *
+	 * @see #getToFloatArray(int, int, float[], int, int, float)
+	 */
+	public CompletableFuture<float[]> getToFloatArray(int index, int num) throws IOException {
+		return getToFloatArray(index, num, new float[num], 0, BufferTransfer.DEFAULT_WINDOW,
+				BufferTransfer.DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Downloads a range of samples of arbitrary size from the buffer. The range is
+	 * split into <code>/b_getn</code> requests whose replies fit into a single UDP
+	 * datagram. Several requests are in flight at the same time, and the values of
+	 * each reply are written directly into the target array. This method returns
+	 * immediately.
+	 *
+	 * @param index
+	 *            the index of the first sample in the buffer to read
+	 * @param num
+	 *            the number of samples to read
+	 * @param dest
+	 *            the array to write the samples to, interleaved if the buffer has
+	 *            more than one channel
+	 * @param destOff
+	 *            the offset into <code>dest</code>
+	 * @param window
+	 *            the maximum number of requests in flight
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for progress, or
+	 *            zero to wait forever
+	 * @return a future which completes with <code>dest</code> when all samples
+	 *         have been received, or which fails if the transfer times out or the
+	 *         server reports a failure
+	 *
+	 * @throws IOException
+	 *             if a networking error occurs
+	 */
+	public CompletableFuture<float[]> getToFloatArray(int index, int num, final float[] dest, int destOff, int window,
+			float timeout) throws IOException {
+		return BufferTransfer.download(this, dest, destOff, num, index, window, timeout)
+				.thenApply(new Function<Void, float[]>() {
+					@Override
+					public float[] apply(Void v) {
+						return dest;
+					}
+				});
+	}
+
+	/**
+	 * Allocates a buffer matching a sound file and fills it with the file's
+	 * contents.
+	 *
+	 * @see #loadSoundFile(Server, String, float)
+	 */
+	public static CompletableFuture<Buffer> loadSoundFile(Server server, String path) throws IOException {
+		return loadSoundFile(server, path, 30f);
+	}
+
+	/**
+	 * Allocates a buffer matching a sound file and fills it with the file's
+	 * contents. The sound file header is read on the client side, so the returned
+	 * buffer's number of frames, channels and sample rate are known immediately,
+	 * without a <code>/b_query</code> round trip. A server on the local machine
+	 * reads the file itself using <code>/b_allocRead</code>. For a remote server,
+	 * the samples are read on the client side and uploaded using
+	 * <code>sendCollection</code> once the buffer is allocated.
+	 *
+	 * @param server
+	 *            the server on which to allocate the buffer
+	 * @param path
+	 *            the path to the sound file
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the allocation
+	 * @return a future which completes with the buffer once it is filled. if it
+	 *         fails, the buffer is freed
+	 *
+	 * @throws IOException
+	 *             if the sound file cannot be read, or a networking error occurs
+	 *
+	 * @see SoundFile
+	 */
+	public static CompletableFuture<Buffer> loadSoundFile(final Server server, String path, float timeout)
+			throws IOException {
+		final SoundFile sf = SoundFile.openRead(path);
+
+		try {
+			final int numChannels = sf.getNumChannels();
+			if ((sf.getNumFrames() > Integer.MAX_VALUE) || (sf.getNumFrames() * numChannels > Integer.MAX_VALUE))
+				throw new IOException(path + " : Sound file too large for a single buffer");
+			final int numFrames = (int) sf.getNumFrames();
+
+			final Buffer buf = new Buffer(server, numFrames, numChannels);
+			if (buf.getBufNum() == -1)
+				throw new IllegalStateException("Buffer allocator exhausted");
+			buf.setSampleRate(sf.getSampleRate());
+
+			boolean success = false;
+			try {
+				final CompletableFuture<Buffer> future;
+				if (server.isLocal()) {
+					future = BufferTransfer.sendAsync(buf, buf.allocReadMsg(path), null, timeout)
+							.thenApply(new Function<Void, Buffer>() {
+								@Override
+								public Buffer apply(Void v) {
+									return buf;
+								}
+							});
+				} else {
+					final float[] data = new float[numFrames * numChannels];
+					sf.readFrames(data, 0, 0, numFrames);
+					buf.setPath(path);
+
+					future = BufferTransfer.sendAsync(buf, buf.allocMsg(), null, timeout)
+							.thenCompose(new Function<Void, CompletableFuture<Buffer>>() {
+								@Override
+								public CompletableFuture<Buffer> apply(Void v) {
+									try {
+										return buf.sendCollection(data);
+									} catch (IOException e1) {
+										final CompletableFuture<Buffer> failed = new CompletableFuture<>();
+										failed.completeExceptionally(e1);
+										return failed;
+									}
+								}
+							});
+				}
+				success = true;
+				return future.whenComplete(new BiConsumer<Buffer, Throwable>() {
+					@Override
+					public void accept(Buffer b, Throwable failure) {
+						if (failure == null)
+							return;
+						// returns the buffer number. after a timeout, the server
+						// processes the /b_free after the late allocation
+						try {
+							buf.free();
+						} catch (IOException e1) {
+							/* ignored */ }
+					}
+				});
+			} finally {
+				if (!success)
+					server.getBufferAllocator().free(buf.getBufNum());
+			}
+		} finally {
+			sf.close();
+		}
+	}
+
+	/**
+	 * Allocates a buffer matching a sound file and reads the file in chunks
+	 * using default parameters.
+	 *
+	 * @see #allocReadSegmented( Server, String, int, int, float )
+	 */
+	public static SegmentedLoad allocReadSegmented(Server server, String path) throws IOException {
+		return allocReadSegmented(server, path, SegmentedLoad.DEFAULT_CHUNK_FRAMES,
+				SegmentedLoad.DEFAULT_MAX_IN_FLIGHT, 30f);
+	}
+
+	/**
+	 * Allocates a buffer matching a sound file and reads the file in chunks, so
+	 * that loading a very large file does not block other asynchronous commands
+	 * on the server. The sound file header is read on the client side, hence the
+	 * file must be accessible from the client under the same path as from the
+	 * server.
+	 *
+	 * @param server
+	 *            the server on which to allocate the buffer
+	 * @param path
+	 *            the path to the sound file
+	 * @param chunkFrames
+	 *            the number of frames read by each <code>/b_read</code>
+	 * @param maxInFlight
+	 *            the maximum number of chunks queued on the server at any time
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the
+	 *            allocation and for each chunk
+	 * @return the load, whose <code>future</code> completes with the buffer once
+	 *         the whole file is read. if the allocation fails, the buffer is
+	 *         freed
+	 *
+	 * @throws IOException
+	 *             if the sound file cannot be read, or a networking error occurs
+	 *
+	 * @see SegmentedLoad
+	 */
+	public static SegmentedLoad allocReadSegmented(Server server, String path, int chunkFrames, int maxInFlight,
+			float timeout) throws IOException {
+		final SoundFile sf = SoundFile.probe(path);
+		final int numFrames = (int) sf.getNumFrames();
+		final int numChannels = sf.getNumChannels();
+		if ((sf.getNumFrames() > Integer.MAX_VALUE) || ((long) numFrames * numChannels > Integer.MAX_VALUE))
+			throw new IOException(path + " : Sound file too large for a single buffer");
+
+		final Buffer buf = new Buffer(server, numFrames, numChannels);
+		if (buf.getBufNum() == -1)
+			throw new IllegalStateException("Buffer allocator exhausted");
+		buf.setSampleRate(sf.getSampleRate());
+		buf.setPath(path);
+
+		final SegmentedLoad load = new SegmentedLoad(buf, path, 0L, numFrames, 0, chunkFrames, maxInFlight, timeout);
+		boolean success = false;
+		try {
+			BufferTransfer.sendAsync(buf, buf.allocMsg(), null, timeout).whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void v, Throwable failure) {
+					if (failure != null) {
+						// returns the buffer number. after a timeout, the server
+						// processes the /b_free after the late allocation
+						try {
+							buf.free();
+						} catch (IOException e1) {
+							/* ignored */ }
+						load.fail(failure);
+						return;
+					}
+					try {
+						load.start();
+					} catch (IOException e1) {
+						e1.printStackTrace(Server.getPrintStream());
+					}
+				}
+			});
+			success = true;
+		} finally {
+			if (!success)
+				server.getBufferAllocator().free(buf.getBufNum());
+		}
+		return load;
+	}
+
+	/**
+	 * Reads a section of a sound file into this buffer in chunks, so that
+	 * reading a very large section does not block other asynchronous commands on
+	 * the server. The buffer must already be allocated.
+	 *
+	 * @param aPath
+	 *            the path to the sound file
+	 * @param fileStartFrame
+	 *            the frame offset into the sound file
+	 * @param nFrames
+	 *            the number of frames to read
+	 * @param bufStartFrame
+	 *            the frame offset into the buffer
+	 * @param chunkFrames
+	 *            the number of frames read by each <code>/b_read</code>
+	 * @param maxInFlight
+	 *            the maximum number of chunks queued on the server at any time
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for each chunk
+	 * @return the load, whose <code>future</code> completes with this buffer once
+	 *         the whole section is read
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 *
+	 * @see SegmentedLoad
+	 */
+	public SegmentedLoad readSegmented(String aPath, long fileStartFrame, int nFrames, int bufStartFrame,
+			int chunkFrames, int maxInFlight, float timeout) throws IOException {
+		final SegmentedLoad load = new SegmentedLoad(this, aPath, fileStartFrame, nFrames, bufStartFrame,
+				chunkFrames, maxInFlight, timeout);
+		load.start();
+		return load;
+	}
+
 	// close a file, write header, after DiskOut usage
 	public void close() throws IOException {
 		close(null);
@@ -2281,27 +2935,79 @@ public class Buffer implements Constants {
 	 * A debugging method for querying the current buffer parameters and printing
 	 * them into the console. This sends a query message to the server and upon
 	 * reply prints the current buffer parameters into the console (as defined by
-	 * <code>server.setPrintStream()</code>).
+	 * <code>server.setPrintStream()</code>). If the server does not reply within
+	 * four seconds, a timeout message is printed instead.
 	 *
 	 * @throws IOException
 	 *             if a networking error occurs
-	 *
-	 * @todo this simply waits for the next /b_info message to come in without
-	 *       checking the bufNum ; also there is no time out
 	 */
 	public void query() throws IOException {
-		new OSCResponderNode(getServer(), "/b_info", new OSCResponderNode.Action() {
+		updateInfo(BufferTransfer.DEFAULT_TIMEOUT).whenComplete(new BiConsumer<Buffer, Throwable>() {
 			@Override
-			public void respond(OSCResponderNode r, OSCMessage msg, long time) {
-				if (((Number) msg.getArg(0)).intValue() != getBufNum())
-					return;
-				Server.getPrintStream().println("bufNum      : " + msg.getArg(0) + "\nnumFrames   : " + msg.getArg(1)
-						+ "\nnumChannels : " + msg.getArg(2) + "\nsampleRate  : " + msg.getArg(3) + "\n");
-				r.remove();
+			public void accept(Buffer buf, Throwable failure) {
+				if (failure != null) {
+					Server.getPrintStream().println("[ \"/b_query\", " + getBufNum() + " ] -> timeout");
+				} else {
+					Server.getPrintStream()
+							.println("bufNum      : " + getBufNum() + "\nnumFrames   : " + getNumFrames()
+									+ "\nnumChannels : " + getNumChannels() + "\nsampleRate  : " + getSampleRate()
+									+ "\n");
+				}
 			}
-		}).add();
+		});
+	}
 
-		getServer().sendMsg(queryMsg());
+	/**
+	 * Queries the parameters of several buffers at once. The
+	 * <code>/b_query</code> messages are sent in as few bundles as possible, and
+	 * the parameters of each buffer are updated when its reply arrives.
+	 *
+	 * @see #queryAll(Buffer[], float)
+	 */
+	public static CompletableFuture<Buffer[]> queryAll(Buffer[] bufs) throws IOException {
+		return queryAll(bufs, BufferTransfer.DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Queries the parameters of several buffers at once. The
+	 * <code>/b_query</code> messages are sent in as few bundles as possible, and
+	 * the parameters of each buffer are updated when its reply arrives.
+	 *
+	 * @param bufs
+	 *            the buffers to query. they must all reside on the same server
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the replies
+	 * @return a future which completes with <code>bufs</code> when the parameters
+	 *         of all buffers have been updated, or fails if any reply does not
+	 *         arrive within the timeout
+	 *
+	 * @throws IOException
+	 *             if a networking error occurs
+	 */
+	public static CompletableFuture<Buffer[]> queryAll(final Buffer[] bufs, float timeout) throws IOException {
+		if (bufs.length == 0)
+			return CompletableFuture.completedFuture(bufs);
+
+		final Server server = bufs[0].getServer();
+		final CompletableFuture<?>[] futures = new CompletableFuture<?>[bufs.length];
+		final List<OSCMessage> msgs = new ArrayList<>(bufs.length);
+
+		for (int i = 0; i < bufs.length; i++) {
+			if (bufs[i].getServer() != server)
+				throw new IllegalArgumentException("Buffers reside on different servers");
+		}
+		for (int i = 0; i < bufs.length; i++) {
+			futures[i] = server.waitForBufInfo(bufs[i], timeout);
+			msgs.add(bufs[i].queryMsg());
+		}
+		PacketUtil.sendBundled(server, msgs);
+
+		return CompletableFuture.allOf(futures).thenApply(new Function<Void, Buffer[]>() {
+			@Override
+			public Buffer[] apply(Void v) {
+				return bufs;
+			}
+		});
 	}
 
 	/**
@@ -2335,6 +3041,25 @@ public class Buffer implements Constants {
 		getServer().sendMsg(queryMsg());
 	}
 
+	/**
+	 * Asynchronously updates the buffer parameters (such as number of frames or
+	 * sample rate).
+	 *
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait for the reply
+	 * @return a future which completes with this buffer when the parameters are
+	 *         updated, or fails if the server does not reply within the timeout
+	 *
+	 * @throws IOException
+	 *             if a networking error occurs
+	 */
+	public CompletableFuture<Buffer> updateInfo(float timeout) throws IOException {
+		addToServerArray();
+		final CompletableFuture<Buffer> f = getServer().waitForBufInfo(this, timeout);
+		getServer().sendMsg(queryMsg());
+		return f;
+	}
+
 	public void printOn(PrintStream stream) {
 		stream.print(this.getClass().getName() + "(" + getBufNum() + "," + getNumFrames() + "," + getNumChannels() + ","
 				+ getSampleRate() + "," + getPath() + ")");
@@ -2495,6 +3220,39 @@ public class Buffer implements Constants {
 
 	// ---------- internal classes and interfaces ----------
 
+	/**
+	 * Exception reported by bulk allocations when the server fails to allocate or
+	 * read one of the buffers.
+	 */
+	public static class AllocFailedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int index;
+		private final Buffer buf;
+
+		public AllocFailedException(String message, int index, Buffer buf) {
+			super(message);
+			this.index = index;
+			this.buf = buf;
+		}
+
+		/**
+		 * Returns the index of the failed buffer in the array passed to (or
+		 * returned by) the bulk allocation, or <code>-1</code> if the server did
+		 * not report which buffer failed.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Returns the failed buffer, or <code>null</code> if unknown.
+		 */
+		public Buffer getBuffer() {
+			return buf;
+		}
+	}
+
 	/**
 	 * Interface describing an action to take place after an asynchronous buffer
 	 * command is completed.
@@ -0,0 +1,663 @@
+/*
+ * BufferCache.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A client side cache of buffer contents. The cache keeps a copy of each
+ * cached buffer's samples outside of the Java heap, either in a direct byte
+ * buffer or, for large buffers, in a memory mapped temporary file. For each
+ * buffer, the cache tracks which frame ranges are valid (known to match the
+ * server) and which are dirty (written on the client but not yet sent).
+ * <p>
+ * Reads are served from the cache. Only frames which are not valid are
+ * downloaded from the server, using pipelined <code>/b_getn</code> requests.
+ * Writes go to the cache and mark the frames dirty. <code>flush</code> sends
+ * only the dirty ranges to the server with <code>/b_setn</code>. When the
+ * server side contents change (for example because a synth wrote to the
+ * buffer), the affected ranges must be declared with <code>invalidate</code>.
+ * <p>
+ * The total size of all cached buffers is limited by a memory cap. When a new
+ * buffer would exceed it, the least recently used buffers are dropped. Dirty
+ * ranges of a dropped buffer are sent to the server first. Buffers larger than
+ * the cap are not cached; reads and writes then go to the server directly.
+ *
+ * @synchronization all methods are thread safe
+ */
+public class BufferCache {
+	// size of the mapped store segments in floats (1 GB)
+	private static final int SEG_SHIFT = 28;
+	private static final int SEG_SIZE = 1 << SEG_SHIFT;
+	private static final int SEG_MASK = SEG_SIZE - 1;
+
+	private final Object sync = new Object();
+	// buffers in access order, least recently used first ; synchronized through 'sync'
+	private final LinkedHashMap<Buffer, Entry> mapEntries = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxBytes; // synchronized through 'sync'
+	private long numBytes = 0; // synchronized through 'sync'
+	private long mapThreshold = 64L << 20; // synchronized through 'sync'
+	private File tempDir = null; // synchronized through 'sync'
+
+	private long numFramesHit = 0; // synchronized through 'sync'
+	private long numFramesFetched = 0; // synchronized through 'sync'
+	private long numFramesPushed = 0; // synchronized through 'sync'
+	private long numEvictions = 0; // synchronized through 'sync'
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxBytes
+	 *            the maximum amount of memory in bytes used by all cached buffers
+	 */
+	public BufferCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Changes the memory cap. If the cached buffers exceed the new cap, the least
+	 * recently used buffers are dropped.
+	 */
+	public void setMaxBytes(long numBytes) throws IOException {
+		final List<Entry> victims = new ArrayList<>();
+
+		synchronized (sync) {
+			maxBytes = numBytes;
+			evict(0, victims);
+		}
+		release(victims);
+	}
+
+	public long getMaxBytes() {
+		synchronized (sync) {
+			return maxBytes;
+		}
+	}
+
+	/**
+	 * Specifies the size in bytes from which buffers are stored in memory mapped
+	 * temporary files instead of direct byte buffers. The default is 64 MB.
+	 */
+	public void setMapThreshold(long numBytes) {
+		synchronized (sync) {
+			mapThreshold = numBytes;
+		}
+	}
+
+	/**
+	 * Specifies the directory for memory mapped temporary files, or
+	 * <code>null</code> to use the system's default temporary directory.
+	 */
+	public void setTempDir(File dir) {
+		synchronized (sync) {
+			tempDir = dir;
+		}
+	}
+
+	/**
+	 * Reads frames of a buffer. Frames which are valid in the cache are served
+	 * locally, the others are downloaded from the server and cached.
+	 *
+	 * @param buf
+	 *            the buffer to read from
+	 * @param startFrame
+	 *            the first frame to read
+	 * @param numFrames
+	 *            the number of frames to read
+	 * @return a future which completes with the interleaved sample values
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public CompletableFuture<float[]> read(final Buffer buf, final int startFrame, final int numFrames)
+			throws IOException {
+		final int numChannels = buf.getNumChannels();
+		final List<int[]> gaps;
+		final Entry e;
+		final List<Entry> victims = new ArrayList<>();
+
+		synchronized (sync) {
+			e = obtain(buf, victims);
+			if (e == null) {
+				gaps = null;
+			} else {
+				gaps = e.valid.gaps(startFrame, startFrame + numFrames);
+				if (gaps.isEmpty()) {
+					final float[] result = new float[numFrames * numChannels];
+					e.get(startFrame * numChannels, result, 0, result.length);
+					numFramesHit += numFrames;
+					return CompletableFuture.completedFuture(result);
+				}
+			}
+		}
+		release(victims);
+
+		if (e == null) {
+			// not cacheable
+			return buf.getToFloatArray(startFrame * numChannels, numFrames * numChannels);
+		}
+
+		final CompletableFuture<?>[] fetches = new CompletableFuture<?>[gaps.size()];
+		int numFetched = 0;
+		for (int i = 0; i < gaps.size(); i++) {
+			final int[] gap = gaps.get(i);
+			fetches[i] = fetch(e, gap[0], gap[1]);
+			numFetched += gap[1] - gap[0];
+		}
+		synchronized (sync) {
+			numFramesHit += numFrames - numFetched;
+			numFramesFetched += numFetched;
+		}
+
+		return CompletableFuture.allOf(fetches).thenApply(new Function<Void, float[]>() {
+			@Override
+			public float[] apply(Void v) {
+				final float[] result = new float[numFrames * numChannels];
+				synchronized (sync) {
+					if (e.store == null) {
+						// dropped in the meantime
+						throw new IllegalStateException("Buffer was evicted from the cache");
+					}
+					e.get(startFrame * numChannels, result, 0, result.length);
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Writes frames of a buffer into the cache, marking them dirty. The values
+	 * are sent to the server with the next <code>flush</code>.
+	 *
+	 * @param buf
+	 *            the buffer to write to
+	 * @param startFrame
+	 *            the first frame to write
+	 * @param data
+	 *            the interleaved sample values
+	 * @param dataOff
+	 *            the offset into <code>data</code>
+	 * @param numFrames
+	 *            the number of frames to write
+	 *
+	 * @throws IOException
+	 *             if the buffer is not cacheable and the values cannot be sent
+	 */
+	public void write(Buffer buf, int startFrame, float[] data, int dataOff, int numFrames) throws IOException {
+		final int numChannels = buf.getNumChannels();
+		final Entry e;
+		final List<Entry> victims = new ArrayList<>();
+
+		synchronized (sync) {
+			e = obtain(buf, victims);
+			if (e != null) {
+				e.put(startFrame * numChannels, data, dataOff, numFrames * numChannels);
+				e.valid.add(startFrame, startFrame + numFrames);
+				e.dirty.add(startFrame, startFrame + numFrames);
+			}
+		}
+		release(victims);
+
+		if (e == null) {
+			// not cacheable
+			buf.sendCollection(data, dataOff, numFrames * numChannels, startFrame * numChannels,
+					BufferTransfer.DEFAULT_WINDOW, BufferTransfer.DEFAULT_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Sends the dirty ranges of a buffer to the server.
+	 *
+	 * @return a future which completes when the server has processed all values
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public CompletableFuture<Void> flush(Buffer buf) throws IOException {
+		final List<Push> pushes = new ArrayList<>();
+
+		synchronized (sync) {
+			final Entry e = mapEntries.get(buf);
+			if (e != null)
+				collectDirty(e, pushes);
+		}
+		return push(pushes);
+	}
+
+	/**
+	 * Sends the dirty ranges of all cached buffers to the server.
+	 *
+	 * @return a future which completes when the server has processed all values
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public CompletableFuture<Void> flushAll() throws IOException {
+		final List<Push> pushes = new ArrayList<>();
+
+		synchronized (sync) {
+			for (Iterator<Entry> iter = mapEntries.values().iterator(); iter.hasNext();) {
+				collectDirty(iter.next(), pushes);
+			}
+		}
+		return push(pushes);
+	}
+
+	/**
+	 * Declares that frames of a buffer were changed on the server, so that they
+	 * are downloaded again by the next <code>read</code>. Dirty frames in this
+	 * range are discarded.
+	 */
+	public void invalidate(Buffer buf, int startFrame, int numFrames) {
+		synchronized (sync) {
+			final Entry e = mapEntries.get(buf);
+			if (e != null) {
+				e.valid.remove(startFrame, startFrame + numFrames);
+				e.dirty.remove(startFrame, startFrame + numFrames);
+			}
+		}
+	}
+
+	/**
+	 * Declares that all frames of a buffer were changed on the server.
+	 */
+	public void invalidate(Buffer buf) {
+		invalidate(buf, 0, buf.getNumFrames());
+	}
+
+	/**
+	 * Drops a buffer from the cache without sending its dirty ranges. This must
+	 * be called when the buffer is freed or reallocated on the server.
+	 */
+	public void remove(Buffer buf) {
+		final Entry e;
+
+		synchronized (sync) {
+			e = mapEntries.remove(buf);
+			if (e != null) {
+				numBytes -= e.numBytes;
+				e.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Drops all buffers from the cache without sending their dirty ranges.
+	 */
+	public void clear() {
+		synchronized (sync) {
+			for (Iterator<Entry> iter = mapEntries.values().iterator(); iter.hasNext();) {
+				iter.next().dispose();
+			}
+			mapEntries.clear();
+			numBytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the amount of memory in bytes used by the cached buffers.
+	 */
+	public long getNumBytes() {
+		synchronized (sync) {
+			return numBytes;
+		}
+	}
+
+	/**
+	 * Returns the number of frames read which were served by the cache.
+	 */
+	public long getNumFramesHit() {
+		synchronized (sync) {
+			return numFramesHit;
+		}
+	}
+
+	/**
+	 * Returns the number of frames downloaded from the server.
+	 */
+	public long getNumFramesFetched() {
+		synchronized (sync) {
+			return numFramesFetched;
+		}
+	}
+
+	/**
+	 * Returns the number of dirty frames sent to the server.
+	 */
+	public long getNumFramesPushed() {
+		synchronized (sync) {
+			return numFramesPushed;
+		}
+	}
+
+	/**
+	 * Returns the number of buffers dropped because of the memory cap.
+	 */
+	public long getNumEvictions() {
+		synchronized (sync) {
+			return numEvictions;
+		}
+	}
+
+	public void resetMetrics() {
+		synchronized (sync) {
+			numFramesHit = 0;
+			numFramesFetched = 0;
+			numFramesPushed = 0;
+			numEvictions = 0;
+		}
+	}
+
+	// returns the buffer's entry, creating it if necessary. returns null if the
+	// buffer is larger than the cap. sync: caller must hold sync
+	private Entry obtain(Buffer buf, List<Entry> victims) throws IOException {
+		Entry e = mapEntries.get(buf);
+		if (e != null)
+			return e;
+
+		final long size = (long) buf.getNumFrames() * buf.getNumChannels() * 4;
+		if ((size == 0) || (size > maxBytes))
+			return null;
+
+		evict(size, victims);
+		e = new Entry(buf, size, size >= mapThreshold ? tempDir : null, size >= mapThreshold);
+		mapEntries.put(buf, e);
+		numBytes += size;
+		return e;
+	}
+
+	// drops the least recently used buffers until 'extra' bytes fit under the
+	// cap. sync: caller must hold sync
+	private void evict(long extra, List<Entry> victims) {
+		for (Iterator<Entry> iter = mapEntries.values().iterator(); iter.hasNext()
+				&& (numBytes + extra > maxBytes);) {
+			final Entry e = iter.next();
+			iter.remove();
+			numBytes -= e.numBytes;
+			numEvictions++;
+			victims.add(e);
+		}
+	}
+
+	// sends the dirty ranges of dropped buffers and frees their stores
+	private void release(List<Entry> victims) throws IOException {
+		if (victims.isEmpty())
+			return;
+
+		final List<Push> pushes = new ArrayList<>();
+		synchronized (sync) {
+			for (int i = 0; i < victims.size(); i++) {
+				final Entry e = victims.get(i);
+				collectDirty(e, pushes);
+				e.dispose();
+			}
+		}
+		push(pushes);
+	}
+
+	// copies the dirty ranges and marks them clean. sync: caller must hold sync
+	private void collectDirty(Entry e, List<Push> pushes) {
+		final int numChannels = e.buf.getNumChannels();
+
+		for (Iterator<Map.Entry<Integer, Integer>> iter = e.dirty.map.entrySet().iterator(); iter.hasNext();) {
+			final Map.Entry<Integer, Integer> r = iter.next();
+			final int start = r.getKey().intValue();
+			final int stop = r.getValue().intValue();
+			final float[] data = new float[(stop - start) * numChannels];
+
+			e.get(start * numChannels, data, 0, data.length);
+			pushes.add(new Push(e, start, data));
+			numFramesPushed += stop - start;
+		}
+		e.dirty.map.clear();
+	}
+
+	private CompletableFuture<Void> push(List<Push> pushes) throws IOException {
+		final CompletableFuture<?>[] futures = new CompletableFuture<?>[pushes.size()];
+
+		for (int i = 0; i < pushes.size(); i++) {
+			final Push p = pushes.get(i);
+			final int numChannels = p.e.buf.getNumChannels();
+
+			futures[i] = BufferTransfer.upload(p.e.buf, p.data, 0, p.data.length, p.startFrame * numChannels,
+					BufferTransfer.DEFAULT_WINDOW, BufferTransfer.DEFAULT_TIMEOUT)
+					.whenComplete(new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void v, Throwable failure) {
+							if (failure == null)
+								return;
+							// mark dirty again, except for ranges invalidated in the meantime
+							synchronized (sync) {
+								if ((p.e.store != null) && (mapEntries.get(p.e.buf) == p.e)) {
+									final int stop = p.startFrame + p.data.length / numChannels;
+									final List<int[]> gaps = p.e.valid.gaps(p.startFrame, stop);
+									p.e.dirty.add(p.startFrame, stop);
+									for (int j = 0; j < gaps.size(); j++) {
+										final int[] gap = gaps.get(j);
+										p.e.dirty.remove(gap[0], gap[1]);
+									}
+								}
+							}
+						}
+					});
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	// downloads a range of frames and stores those which were not
+	// written in the meantime
+	private CompletableFuture<Void> fetch(final Entry e, final int start, final int stop) throws IOException {
+		final int numChannels = e.buf.getNumChannels();
+		final float[] data = new float[(stop - start) * numChannels];
+
+		return BufferTransfer.download(e.buf, data, 0, data.length, start * numChannels,
+				BufferTransfer.DEFAULT_WINDOW, BufferTransfer.DEFAULT_TIMEOUT)
+				.thenApply(new Function<Void, Void>() {
+					@Override
+					public Void apply(Void v) {
+						synchronized (sync) {
+							if (e.store == null)
+								return null;
+
+							final List<int[]> gaps = e.valid.gaps(start, stop);
+							for (int i = 0; i < gaps.size(); i++) {
+								final int[] gap = gaps.get(i);
+								e.put(gap[0] * numChannels, data, (gap[0] - start) * numChannels,
+										(gap[1] - gap[0]) * numChannels);
+								e.valid.add(gap[0], gap[1]);
+							}
+						}
+						return null;
+					}
+				});
+	}
+
+	// ----------- internal classes -----------
+
+	private static class Entry {
+		protected final Buffer buf;
+		protected final long numBytes;
+		protected final RangeSet valid = new RangeSet();
+		protected final RangeSet dirty = new RangeSet();
+		protected FloatBuffer[] store; // null after disposal
+		protected RandomAccessFile raf = null;
+		protected File f = null;
+
+		protected Entry(Buffer buf, long numBytes, File tempDir, boolean mapped) throws IOException {
+			this.buf = buf;
+			this.numBytes = numBytes;
+
+			final long numFloats = numBytes >> 2;
+			store = new FloatBuffer[(int) ((numFloats + SEG_MASK) >> SEG_SHIFT)];
+
+			if (!mapped) {
+				store[0] = ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+				return;
+			}
+
+			f = File.createTempFile("jcollider", ".cache", tempDir);
+			boolean success = false;
+			try {
+				raf = new RandomAccessFile(f, "rw");
+				final FileChannel ch = raf.getChannel();
+				for (int i = 0; i < store.length; i++) {
+					final long off = (long) i << SEG_SHIFT;
+					final long len = Math.min(SEG_SIZE, numFloats - off) << 2;
+					store[i] = ch.map(FileChannel.MapMode.READ_WRITE, off << 2, len).order(ByteOrder.nativeOrder())
+							.asFloatBuffer();
+				}
+				success = true;
+			} finally {
+				if (!success)
+					dispose();
+			}
+		}
+
+		protected void get(long index, float[] dest, int off, int num) {
+			while (num > 0) {
+				final FloatBuffer fb = store[(int) (index >> SEG_SHIFT)];
+				final int pos = (int) (index & SEG_MASK);
+				final int chunk = Math.min(num, fb.capacity() - pos);
+
+				fb.position(pos);
+				fb.get(dest, off, chunk);
+				index += chunk;
+				off += chunk;
+				num -= chunk;
+			}
+		}
+
+		protected void put(long index, float[] src, int off, int num) {
+			while (num > 0) {
+				final FloatBuffer fb = store[(int) (index >> SEG_SHIFT)];
+				final int pos = (int) (index & SEG_MASK);
+				final int chunk = Math.min(num, fb.capacity() - pos);
+
+				fb.position(pos);
+				fb.put(src, off, chunk);
+				index += chunk;
+				off += chunk;
+				num -= chunk;
+			}
+		}
+
+		protected void dispose() {
+			store = null;
+			valid.map.clear();
+			dirty.map.clear();
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e1) {
+					e1.printStackTrace(Server.getPrintStream());
+				}
+				raf = null;
+			}
+			if (f != null) {
+				BufferTransfer.deleteTempFile(f);
+				f = null;
+			}
+		}
+	}
+
+	// a set of disjoint, non-adjacent half open ranges
+	private static class RangeSet {
+		protected final TreeMap<Integer, Integer> map = new TreeMap<>(); // start to stop
+
+		protected RangeSet() {
+			/* empty */
+		}
+
+		protected void add(int start, int stop) {
+			if (start >= stop)
+				return;
+
+			final Map.Entry<Integer, Integer> lower = map.floorEntry(new Integer(start));
+			if ((lower != null) && (lower.getValue().intValue() >= start)) {
+				start = lower.getKey().intValue();
+				stop = Math.max(stop, lower.getValue().intValue());
+			}
+			for (Map.Entry<Integer, Integer> r = map.ceilingEntry(new Integer(start)); (r != null)
+					&& (r.getKey().intValue() <= stop); r = map.ceilingEntry(new Integer(start))) {
+				stop = Math.max(stop, r.getValue().intValue());
+				map.remove(r.getKey());
+			}
+			map.put(new Integer(start), new Integer(stop));
+		}
+
+		protected void remove(int start, int stop) {
+			if (start >= stop)
+				return;
+
+			final Map.Entry<Integer, Integer> lower = map.lowerEntry(new Integer(start));
+			if ((lower != null) && (lower.getValue().intValue() > start)) {
+				map.put(lower.getKey(), new Integer(start));
+				if (lower.getValue().intValue() > stop)
+					map.put(new Integer(stop), lower.getValue());
+			}
+			for (Map.Entry<Integer, Integer> r = map.ceilingEntry(new Integer(start)); (r != null)
+					&& (r.getKey().intValue() < stop); r = map.ceilingEntry(new Integer(start))) {
+				map.remove(r.getKey());
+				if (r.getValue().intValue() > stop)
+					map.put(new Integer(stop), r.getValue());
+			}
+		}
+
+		// returns the { start, stop } ranges within [start, stop) not in this set
+		protected List<int[]> gaps(int start, int stop) {
+			final List<int[]> result = new ArrayList<>();
+			int pos = start;
+
+			final Map.Entry<Integer, Integer> lower = map.floorEntry(new Integer(start));
+			if ((lower != null) && (lower.getValue().intValue() > pos))
+				pos = lower.getValue().intValue();
+
+			for (Iterator<Map.Entry<Integer, Integer>> iter = map.subMap(new Integer(start), false,
+					new Integer(stop), false).entrySet().iterator(); iter.hasNext() && (pos < stop);) {
+				final Map.Entry<Integer, Integer> r = iter.next();
+				final int rStart = r.getKey().intValue();
+				if (rStart > pos)
+					result.add(new int[] { pos, rStart });
+				pos = Math.max(pos, r.getValue().intValue());
+			}
+			if (pos < stop)
+				result.add(new int[] { pos, stop });
+
+			return result;
+		}
+	}
+
+	private static class Push {
+		protected final Entry e;
+		protected final int startFrame;
+		protected final float[] data;
+
+		protected Push(Entry e, int startFrame, float[] data) {
+			this.e = e;
+			this.startFrame = startFrame;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * BufferPool.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * A pool of buffers which avoids the cost of repeated allocation and
+ * deallocation on the server. Buffers released to the pool stay allocated on
+ * the server and are handed out again to later requests of the same size (the
+ * same number of frames and channels). Optionally, recycled buffers are zeroed
+ * before reuse.
+ * <p>
+ * The amount of server memory held by idle buffers is limited by a cap. When a
+ * released buffer would exceed it, the least recently released buffers (of any
+ * size) are freed on the server.
+ * <p>
+ * Example:
+ *
+ * <PRE>
+ * BufferPool pool = new BufferPool(myServer, 64 &lt;&lt; 20, true);
+ * Buffer b = pool.alloc(44100, 1);
+ * // ... use the buffer, then:
+ * pool.release(b);
+ * </PRE>
+ *
+ * @synchronization all methods are thread safe
+ */
+public class BufferPool {
+	private final Server server;
+	private final boolean zeroOnReuse;
+
+	private final Object sync = new Object();
+	private final Map<Long, ArrayDeque<Buffer>> mapIdle = new HashMap<>(); // size key to idle buffers ;
+																			// synchronized through 'sync'
+	private final LinkedHashSet<Buffer> setLRU = new LinkedHashSet<>(); // idle buffers, least recently released
+																		// first ; synchronized through 'sync'
+	private long maxIdleBytes; // synchronized through 'sync'
+	private long idleBytes = 0; // synchronized through 'sync'
+
+	private long numHits = 0; // synchronized through 'sync'
+	private long numMisses = 0; // synchronized through 'sync'
+	private long numEvictions = 0; // synchronized through 'sync'
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param server
+	 *            the server on which to allocate the buffers
+	 * @param maxIdleBytes
+	 *            the maximum amount of server memory in bytes held by idle
+	 *            buffers
+	 * @param zeroOnReuse
+	 *            whether recycled buffers are cleared with <code>/b_zero</code>
+	 *            before they are handed out
+	 */
+	public BufferPool(Server server, long maxIdleBytes, boolean zeroOnReuse) {
+		this.server = server;
+		this.maxIdleBytes = maxIdleBytes;
+		this.zeroOnReuse = zeroOnReuse;
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	public boolean getZeroOnReuse() {
+		return zeroOnReuse;
+	}
+
+	/**
+	 * Changes the maximum amount of server memory held by idle buffers. If the
+	 * idle buffers exceed the new limit, the least recently released buffers are
+	 * freed.
+	 */
+	public void setMaxIdleBytes(long numBytes) throws IOException {
+		synchronized (sync) {
+			maxIdleBytes = numBytes;
+			evict(0);
+		}
+	}
+
+	public long getMaxIdleBytes() {
+		synchronized (sync) {
+			return maxIdleBytes;
+		}
+	}
+
+	/**
+	 * Acquires a buffer of the given size.
+	 *
+	 * @see #alloc(int, int, OSCMessage)
+	 */
+	public Buffer alloc(int numFrames, int numChannels) throws IOException {
+		return alloc(numFrames, numChannels, null);
+	}
+
+	/**
+	 * Acquires a buffer of the given size. If an idle buffer of that size exists,
+	 * it is reused (and zeroed if the pool was created with
+	 * <code>zeroOnReuse</code>), otherwise a new buffer is allocated.
+	 *
+	 * @param numFrames
+	 *            the number of frames of the buffer
+	 * @param numChannels
+	 *            the number of channels of the buffer
+	 * @param completionMsg
+	 *            an <code>OSCMessage</code> which is processed by the server when
+	 *            the buffer is ready to use. can be <code>null</code>.
+	 * @return the buffer
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC message
+	 * @throws IllegalStateException
+	 *             if the server's buffer allocator is exhausted, even after
+	 *             freeing all idle buffers
+	 */
+	public Buffer alloc(int numFrames, int numChannels, OSCMessage completionMsg) throws IOException {
+		final Long key = key(numFrames, numChannels);
+		final Buffer buf;
+		final OSCMessage msg;
+
+		synchronized (sync) {
+			final ArrayDeque<Buffer> idle = mapIdle.get(key);
+
+			if ((idle != null) && !idle.isEmpty()) {
+				buf = idle.pop();
+				if (idle.isEmpty())
+					mapIdle.remove(key);
+				setLRU.remove(buf);
+				idleBytes -= numBytes(buf);
+				numHits++;
+
+				msg = zeroOnReuse ? buf.zeroMsg(completionMsg) : completionMsg;
+			} else {
+				Buffer b = new Buffer(server, numFrames, numChannels);
+				if ((b.getBufNum() == -1) && !setLRU.isEmpty()) {
+					// free idle buffers to make room in the allocator
+					evict(maxIdleBytes);
+					b = new Buffer(server, numFrames, numChannels);
+				}
+				if (b.getBufNum() == -1)
+					throw new IllegalStateException("Buffer allocator exhausted");
+
+				buf = b;
+				numMisses++;
+				msg = buf.allocMsg(completionMsg);
+			}
+		}
+		if (msg != null)
+			server.sendMsg(msg);
+
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer stays allocated on the server and
+	 * must not be used by the caller afterwards. If the idle buffers would exceed
+	 * the memory cap, the least recently released buffers are freed.
+	 *
+	 * @param buf
+	 *            a buffer which was obtained from <code>alloc</code>
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC message
+	 */
+	public void release(Buffer buf) throws IOException {
+		if (buf.getServer() != server)
+			throw new IllegalArgumentException("Buffer belongs to a different server");
+
+		final long size = numBytes(buf);
+
+		synchronized (sync) {
+			if (size > maxIdleBytes) {
+				numEvictions++;
+				buf.free();
+				return;
+			}
+			if (setLRU.contains(buf))
+				return; // already released
+
+			evict(size);
+			setLRU.add(buf);
+			final Long key = key(buf.getNumFrames(), buf.getNumChannels());
+			ArrayDeque<Buffer> idle = mapIdle.get(key);
+			if (idle == null) {
+				idle = new ArrayDeque<>();
+				mapIdle.put(key, idle);
+			}
+			idle.push(buf);
+			idleBytes += size;
+		}
+	}
+
+	/**
+	 * Frees all idle buffers on the server. Buffers which are currently in use are
+	 * not affected.
+	 */
+	public void clear() throws IOException {
+		synchronized (sync) {
+			final long max = maxIdleBytes;
+			maxIdleBytes = 0;
+			try {
+				evict(0);
+			} finally {
+				maxIdleBytes = max;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of idle buffers in the pool.
+	 */
+	public int getNumIdle() {
+		synchronized (sync) {
+			return setLRU.size();
+		}
+	}
+
+	/**
+	 * Returns the amount of server memory in bytes held by idle buffers.
+	 */
+	public long getIdleBytes() {
+		synchronized (sync) {
+			return idleBytes;
+		}
+	}
+
+	/**
+	 * Returns the number of allocations served by an idle buffer.
+	 */
+	public long getNumHits() {
+		synchronized (sync) {
+			return numHits;
+		}
+	}
+
+	/**
+	 * Returns the number of allocations which required a new buffer.
+	 */
+	public long getNumMisses() {
+		synchronized (sync) {
+			return numMisses;
+		}
+	}
+
+	/**
+	 * Returns the number of released buffers which were freed on the server
+	 * because of the memory cap or allocator exhaustion.
+	 */
+	public long getNumEvictions() {
+		synchronized (sync) {
+			return numEvictions;
+		}
+	}
+
+	public void resetMetrics() {
+		synchronized (sync) {
+			numHits = 0;
+			numMisses = 0;
+			numEvictions = 0;
+		}
+	}
+
+	// frees the least recently released buffers until 'extra' bytes
+	// fit under the cap. the /b_free messages are sent in UDP safe bundles.
+	// sync: caller must hold sync
+	private void evict(long extra) throws IOException {
+		if (idleBytes + extra <= maxIdleBytes)
+			return;
+
+		final List<Buffer> victims = new ArrayList<>();
+		for (Iterator<Buffer> iter = setLRU.iterator(); iter.hasNext() && (idleBytes + extra > maxIdleBytes);) {
+			final Buffer buf = iter.next();
+			final Long key = key(buf.getNumFrames(), buf.getNumChannels());
+			final ArrayDeque<Buffer> idle = mapIdle.get(key);
+
+			iter.remove();
+			idle.remove(buf);
+			if (idle.isEmpty())
+				mapIdle.remove(key);
+			idleBytes -= numBytes(buf);
+			numEvictions++;
+			victims.add(buf);
+		}
+
+		final List<OSCMessage> msgs = new ArrayList<>(victims.size());
+		for (int i = 0; i < victims.size(); i++) {
+			msgs.add(victims.get(i).freeMsg());
+		}
+		PacketUtil.sendBundled(server, msgs);
+	}
+
+	private static Long key(int numFrames, int numChannels) {
+		return new Long(((long) numFrames << 32) | (numChannels & 0xFFFFFFFFL));
+	}
+
+	private static long numBytes(Buffer buf) {
+		return (long) buf.getNumFrames() * buf.getNumChannels() * 4;
+	}
+}
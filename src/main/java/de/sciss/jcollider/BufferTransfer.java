@@ -0,0 +1,726 @@
+/*
+ * BufferTransfer.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * Package internal engine for bulk transfers of sample data between a
+ * <code>float</code> array and a buffer. The data is split into
+ * <code>/b_setn</code> or <code>/b_getn</code> messages which fit into a single
+ * UDP datagram. Up to <code>window</code> chunks are in flight at any time; new
+ * chunks are sent from the OSC thread as acknowledgements arrive, so the caller
+ * does not block and there is no round trip per chunk.
+ * <p>
+ * Downloads are acknowledged by the <code>/b_setn</code> replies themselves,
+ * whose values are copied straight into the target array. Uploads are not
+ * replied to by the server, so a <code>/sync</code> marker is sent after every
+ * half window of chunks; the <code>/synced</code> reply of the final marker is
+ * the barrier which completes the transfer.
+ * <p>
+ * A <code>/fail</code> reply to a chunk only fails the transfer if it carries
+ * the transfer's buffer number, which newer servers append. Otherwise it may
+ * belong to another transfer on the same server and is ignored; a chunk which
+ * really failed is not acknowledged, so the transfer fails by its timeout.
+ * <p>
+ * Uploads to a server on the local machine can alternatively be done through a
+ * temporary 32 bit float WAV file. The file is written through a memory mapped
+ * channel and read by the server with a single <code>/b_read</code>; it is
+ * deleted when the server replies with <code>/done</code> or
+ * <code>/fail</code>. If the reply times out, the upload fails, but the file
+ * is kept until the late reply arrives, because the server may still read it.
+ *
+ * @synchronization all methods are thread safe
+ */
+final class BufferTransfer implements OSCResponderNode.Action {
+	static final int DEFAULT_WINDOW = 16;
+	static final float DEFAULT_TIMEOUT = 4f;
+	// how long a timed out asynchronous command waits for its late reply (seconds)
+	private static final float LATE_REPLY_GRACE = 60f;
+
+	private static ScheduledExecutorService watchdog = null; // synchronized through class
+	// pending asynchronous commands per server and command name ; synchronized through class
+	private static final Map<Server, Map<String, AsyncQueue>> mapQueues = new HashMap<>();
+
+	private final Buffer buf;
+	private final Server server;
+	private final boolean upload;
+	private final float[] data;
+	private final int dataOff;
+	private final int startIndex;
+	private final int numValues;
+	private final int chunkSize;
+	private final int numChunks;
+	private final int window;
+	private final int markerStep;
+	private final float timeout;
+
+	private final OSCResponderNode replyResp;
+	private final OSCResponderNode failResp;
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+	private int nextChunk = 0; // synchronized through 'this'
+	private int numAcked = 0; // synchronized through 'this'
+	private int numInFlight = 0; // downloads only ; synchronized through 'this'
+	private final boolean[] received; // downloads only ; synchronized through 'this'
+	private final Map<Integer, Integer> markers; // uploads only: sync ID to number of chunks sent before ;
+													// synchronized through 'this'
+	private int progress = 0; // incremented per acknowledgement ; synchronized through 'this'
+	private int lastProgress = -1; // synchronized through 'this'
+	private ScheduledFuture<?> timeoutTask = null; // synchronized through 'this'
+
+	private BufferTransfer(Buffer buf, boolean upload, float[] data, int dataOff, int numValues, int startIndex,
+			int window, float timeout) {
+		if (window < 1)
+			throw new IllegalArgumentException("Illegal window " + window);
+		if ((dataOff < 0) || (numValues < 0) || (dataOff + numValues > data.length) || (startIndex < 0))
+			throw new IllegalArgumentException("Illegal range " + startIndex + " ... " + (startIndex + numValues - 1));
+
+		this.buf = buf;
+		this.upload = upload;
+		this.data = data;
+		this.dataOff = dataOff;
+		this.numValues = numValues;
+		this.startIndex = startIndex;
+		this.window = window;
+		this.timeout = timeout;
+
+		server = buf.getServer();
+		chunkSize = maxChunkSize(PacketUtil.UDP_SAFE_SIZE);
+		numChunks = (numValues + chunkSize - 1) / chunkSize;
+		markerStep = Math.max(1, window >> 1);
+
+		if (upload) {
+			received = null;
+			markers = new HashMap<>();
+			replyResp = new OSCResponderNode(server, "/synced", this);
+		} else {
+			received = new boolean[numChunks];
+			markers = null;
+			replyResp = new OSCResponderNode(server, "/b_setn", this);
+		}
+		failResp = new OSCResponderNode(server, "/fail", this);
+	}
+
+	/**
+	 * Starts uploading a range of values to a buffer.
+	 *
+	 * @return a future which completes when the server has processed all values
+	 */
+	static CompletableFuture<Void> upload(Buffer buf, float[] data, int dataOff, int numValues, int startIndex,
+			int window, float timeout) throws IOException {
+		return new BufferTransfer(buf, true, data, dataOff, numValues, startIndex, window, timeout).start();
+	}
+
+	/**
+	 * Starts downloading a range of values from a buffer.
+	 *
+	 * @return a future which completes when all values have been written to
+	 *         <code>data</code>
+	 */
+	static CompletableFuture<Void> download(Buffer buf, float[] data, int dataOff, int numValues, int startIndex,
+			int window, float timeout) throws IOException {
+		return new BufferTransfer(buf, false, data, dataOff, numValues, startIndex, window, timeout).start();
+	}
+
+	/**
+	 * Checks whether an upload should be done through a temporary sound file. This
+	 * is the case if the server is local, the number of values reaches the
+	 * server's file transfer threshold and the range covers whole frames.
+	 */
+	static boolean useFileUpload(Buffer buf, int numValues, int startIndex) {
+		final Server server = buf.getServer();
+		final int numChannels = buf.getNumChannels();
+
+		return server.isLocal() && (numValues >= server.getFileTransferThreshold()) && (numChannels > 0)
+				&& ((numValues % numChannels) == 0) && ((startIndex % numChannels) == 0);
+	}
+
+	/**
+	 * Starts uploading a range of values to a buffer through a temporary sound
+	 * file. The range must cover whole frames.
+	 *
+	 * @return a future which completes when the server has read the file
+	 */
+	static CompletableFuture<Void> uploadFile(Buffer buf, float[] data, int dataOff, int numValues, int startIndex,
+			float timeout) throws IOException {
+		final Server server = buf.getServer();
+		final int numChannels = buf.getNumChannels();
+		final File f = File.createTempFile("jcollider", ".wav", server.getFileTransferDir());
+		final OSCMessage readMsg;
+
+		try {
+			double sr = buf.getSampleRate();
+			if (sr <= 0)
+				sr = server.getSampleRate();
+			if (sr <= 0)
+				sr = 44100;
+			writeFloatWAV(f, data, dataOff, numValues, numChannels, (int) sr);
+			readMsg = new OSCMessage("/b_read",
+					new Object[] { new Integer(buf.getBufNum()), f.getAbsolutePath(), new Integer(0),
+							new Integer(numValues / numChannels), new Integer(startIndex / numChannels),
+							new Integer(0) });
+		} catch (IOException e1) {
+			deleteTempFile(f);
+			throw e1;
+		}
+
+		return new AsyncCommand(buf, f, timeout).start(readMsg);
+	}
+
+	/**
+	 * Sends an asynchronous command for a buffer, such as <code>/b_alloc</code>,
+	 * and waits for the server's <code>/done</code> or <code>/fail</code> reply.
+	 *
+	 * @param tempFile
+	 *            a file to delete when the command is completed, or
+	 *            <code>null</code>
+	 * @return a future which completes upon <code>/done</code>
+	 */
+	static CompletableFuture<Void> sendAsync(Buffer buf, OSCMessage msg, File tempFile, float timeout)
+			throws IOException {
+		return new AsyncCommand(buf, tempFile, timeout).start(msg);
+	}
+
+	/**
+	 * Sends asynchronous commands for several buffers in as few bundles as
+	 * possible, followed by a <code>/sync</code>. The server replies with
+	 * <code>/synced</code> once all commands are completed, so the whole batch
+	 * takes a single round trip.
+	 *
+	 * @param bufs
+	 *            the buffers, all residing on the same server
+	 * @param msgs
+	 *            the command for each buffer
+	 * @return a future which completes upon <code>/synced</code>, or fails as soon
+	 *         as any of the commands fails, with a
+	 *         <code>Buffer.AllocFailedException</code> identifying the buffer
+	 */
+	static CompletableFuture<Void> sendAsyncAll(Buffer[] bufs, OSCMessage[] msgs, float timeout)
+			throws IOException {
+		return new AsyncBatch(bufs, msgs, timeout).start();
+	}
+
+	// writes a 32 bit float WAV file through a memory mapped channel
+	private static void writeFloatWAV(File f, float[] data, int off, int num, int numChannels, int sampleRate)
+			throws IOException {
+		final long dataSize = (long) num << 2;
+		if (dataSize + 36 > 0xFFFFFFFFL)
+			throw new IOException("Sound file too large");
+
+		final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			final FileChannel ch = raf.getChannel();
+			final MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_WRITE, 0, dataSize + 44);
+
+			mb.order(ByteOrder.LITTLE_ENDIAN);
+			mb.put(new byte[] { 'R', 'I', 'F', 'F' }).putInt((int) (dataSize + 36));
+			mb.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' }).putInt(16);
+			mb.putShort((short) 3); // WAVE_FORMAT_IEEE_FLOAT
+			mb.putShort((short) numChannels).putInt(sampleRate).putInt(sampleRate * numChannels * 4);
+			mb.putShort((short) (numChannels * 4)).putShort((short) 32);
+			mb.put(new byte[] { 'd', 'a', 't', 'a' }).putInt((int) dataSize);
+			mb.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(data, off, num);
+			mb.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	// the file may still be mapped, which prevents deletion on some platforms
+	static void deleteTempFile(File f) {
+		if (!f.delete())
+			f.deleteOnExit();
+	}
+
+	/**
+	 * Returns the maximum number of values in a <code>/b_setn</code> message (or
+	 * its reply to <code>/b_getn</code>) which does not exceed the given size.
+	 */
+	static int maxChunkSize(int maxMsgSize) {
+		// "/b_setn" (8 bytes) + type tags + bufNum, index, count + values
+		int n = (maxMsgSize - 20) / 5;
+		while ((n > 1) && (8 + PacketUtil.pad4(n + 5) + ((n + 3) << 2) > maxMsgSize))
+			n--;
+		return n;
+	}
+
+	private CompletableFuture<Void> start() throws IOException {
+		if (numChunks == 0) {
+			future.complete(null);
+			return future;
+		}
+
+		synchronized (this) {
+			replyResp.add();
+			failResp.add();
+			if (timeout > 0) {
+				final long millis = Math.max(1L, (long) (timeout * 1000));
+				timeoutTask = getWatchdog().scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						checkProgress();
+					}
+				}, millis, millis, TimeUnit.MILLISECONDS);
+			}
+			try {
+				sendMore();
+			} catch (IOException e1) {
+				finish(e1);
+				throw e1;
+			}
+		}
+		return future;
+	}
+
+	// sync: caller must hold 'this'
+	private void sendMore() throws IOException {
+		if (upload) {
+			while ((nextChunk < numChunks) && (nextChunk - numAcked < window)) {
+				final int off = nextChunk * chunkSize;
+				final int num = Math.min(chunkSize, numValues - off);
+
+				server.sendMsg(buf.setnMsg(startIndex + off, data, dataOff + off, num));
+				nextChunk++;
+				// a marker is always outstanding while the window is full
+				if (((nextChunk % markerStep) == 0) || (nextChunk == numChunks)) {
+					final Integer id = new Integer(UniqueID.next());
+					markers.put(id, new Integer(nextChunk));
+					server.sendMsg(new OSCMessage("/sync", new Object[] { id }));
+				}
+			}
+		} else {
+			while ((nextChunk < numChunks) && (numInFlight < window)) {
+				final int off = nextChunk * chunkSize;
+				final int num = Math.min(chunkSize, numValues - off);
+
+				server.sendMsg(buf.getnMsg(startIndex + off, num));
+				nextChunk++;
+				numInFlight++;
+			}
+		}
+	}
+
+	private synchronized void checkProgress() {
+		if (future.isDone())
+			return;
+
+		if (progress == lastProgress) {
+			finish(new IOException("Timeout while transferring buffer " + buf.getBufNum() + " ("
+					+ (numAcked * 100 / numChunks) + "% done)"));
+		} else {
+			lastProgress = progress;
+		}
+	}
+
+	// sync: caller must hold 'this'
+	private void finish(Throwable failure) {
+		replyResp.remove();
+		failResp.remove();
+		if (timeoutTask != null) {
+			timeoutTask.cancel(false);
+			timeoutTask = null;
+		}
+		if (failure == null) {
+			future.complete(null);
+		} else {
+			future.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * Returns a shared daemon thread used to time out buffer commands.
+	 */
+	static synchronized ScheduledExecutorService getWatchdog() {
+		if (watchdog == null) {
+			watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "BufferTransfer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return watchdog;
+	}
+
+	// ----------- OSCResponderNode.Action interface -----------
+
+	/**
+	 * This method is part of the implementation of the OSCResponderNode.Action
+	 * interface. Do not call this method.
+	 */
+	@Override
+	public synchronized void respond(OSCResponderNode r, OSCMessage msg, long time) {
+		if (future.isDone() || (msg.getArgCount() < 1))
+			return;
+
+		if (msg.getName().equals("/fail")) {
+			final Object cmd = msg.getArg(0);
+			if ((upload && cmd.equals("/b_setn")) || (!upload && cmd.equals("/b_getn"))) {
+				// without the buffer number the failure may be another transfer's
+				final Object last = msg.getArg(msg.getArgCount() - 1);
+				if ((msg.getArgCount() > 2) && (last instanceof Number)
+						&& (((Number) last).intValue() == buf.getBufNum())) {
+					finish(new IOException("Transfer of buffer " + buf.getBufNum() + " failed: " + msg.getArg(1)));
+				}
+			}
+			return;
+		}
+
+		if (upload) {
+			final Integer count = markers.remove(msg.getArg(0));
+			if (count == null)
+				return;
+			numAcked = Math.max(numAcked, count.intValue());
+		} else {
+			if (msg.getArgCount() < 3)
+				return;
+			if (((Number) msg.getArg(0)).intValue() != buf.getBufNum())
+				return;
+
+			final int off = ((Number) msg.getArg(1)).intValue() - startIndex;
+			if ((off < 0) || (off >= numValues) || ((off % chunkSize) != 0))
+				return;
+
+			final int chunk = off / chunkSize;
+			if (received[chunk])
+				return;
+
+			final int num = Math.min(Math.min(chunkSize, numValues - off), msg.getArgCount() - 3);
+			for (int i = 0, j = dataOff + off; i < num; i++, j++) {
+				data[j] = ((Number) msg.getArg(i + 3)).floatValue();
+			}
+			received[chunk] = true;
+			numInFlight--;
+			numAcked++;
+		}
+		progress++;
+
+		if (numAcked == numChunks) {
+			finish(null);
+		} else {
+			try {
+				sendMore();
+			} catch (IOException e1) {
+				finish(e1);
+			}
+		}
+	}
+
+	// ----------- internal classes -----------
+
+	private static class AsyncCommand {
+		protected final Buffer buf;
+		protected final File f;
+		protected final float timeout;
+		protected final CompletableFuture<Void> future = new CompletableFuture<>();
+		protected ScheduledFuture<?> timeoutTask = null; // synchronized through 'this'
+		protected String cmdName = null;
+		protected AsyncQueue queue = null;
+
+		protected AsyncCommand(Buffer buf, File f, float timeout) {
+			this.buf = buf;
+			this.f = f;
+			this.timeout = timeout;
+		}
+
+		protected CompletableFuture<Void> start(OSCMessage msg) throws IOException {
+			synchronized (this) {
+				cmdName = msg.getName();
+				try {
+					queue = AsyncQueue.enqueue(this);
+					if (timeout > 0) {
+						timeoutTask = getWatchdog().schedule(new Runnable() {
+							@Override
+							public void run() {
+								expire();
+							}
+						}, Math.max(1L, (long) (timeout * 1000)), TimeUnit.MILLISECONDS);
+					}
+					buf.getServer().sendMsg(msg);
+				} catch (IOException e1) {
+					if (queue != null)
+						queue.dequeue(this);
+					finish(e1);
+					throw e1;
+				}
+			}
+			return future;
+		}
+
+		/*
+		 * Fails the future, but keeps the command queued: the server may still
+		 * process it later, so the temp file must not be deleted yet, and the late
+		 * reply must not be matched to the next command. If no reply arrives
+		 * within a grace period, the command is dropped.
+		 */
+		protected synchronized void expire() {
+			if (future.isDone())
+				return;
+
+			future.completeExceptionally(
+					new IOException("Timeout while waiting for " + cmdName + " of buffer " + buf.getBufNum()));
+			timeoutTask = getWatchdog().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (queue.dequeue(AsyncCommand.this))
+						finish(null);
+				}
+			}, (long) (LATE_REPLY_GRACE * 1000), TimeUnit.MILLISECONDS);
+		}
+
+		// completes the future unless it expired, and deletes the temp file
+		protected synchronized void finish(Throwable failure) {
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+				timeoutTask = null;
+			}
+			if (f != null)
+				deleteTempFile(f);
+			if (failure == null) {
+				future.complete(null);
+			} else {
+				future.completeExceptionally(failure);
+			}
+		}
+
+		// called by the queue with the reply matched to this command
+		protected void reply(OSCMessage msg) {
+			if (msg.getName().equals("/done")) {
+				finish(null);
+			} else {
+				finish(new IOException(cmdName + " of buffer " + buf.getBufNum() + " failed"
+						+ (msg.getArgCount() > 1 ? ": " + msg.getArg(1) : "")));
+			}
+		}
+	}
+
+	/*
+	 * The commands awaiting a reply, per server and command name. The server
+	 * processes asynchronous commands one after the other, so its replies arrive
+	 * in the order in which the commands were sent. Each /done or /fail is
+	 * therefore matched to the oldest pending command for the same buffer, or, if
+	 * the server does not append the buffer number, to the oldest pending command
+	 * overall. Without this, two commands of the same kind for the same buffer
+	 * would both be completed by the first reply. Timed out commands stay in the
+	 * queue for a grace period, so that their late replies are not taken for the
+	 * replies of subsequent commands.
+	 */
+	private static class AsyncQueue implements OSCResponderNode.Action {
+		protected final Server server;
+		protected final String cmdName;
+		protected final OSCResponderNode doneResp;
+		protected final OSCResponderNode failResp;
+		protected final List<AsyncCommand> collPending = new ArrayList<>(); // synchronized through class
+
+		private AsyncQueue(Server server, String cmdName) {
+			this.server = server;
+			this.cmdName = cmdName;
+
+			doneResp = new OSCResponderNode(server, "/done", this);
+			failResp = new OSCResponderNode(server, "/fail", this);
+		}
+
+		protected static AsyncQueue enqueue(AsyncCommand cmd) throws IOException {
+			final Server server = cmd.buf.getServer();
+
+			synchronized (BufferTransfer.class) {
+				Map<String, AsyncQueue> mapCmds = mapQueues.get(server);
+				if (mapCmds == null) {
+					mapCmds = new HashMap<>();
+					mapQueues.put(server, mapCmds);
+				}
+				AsyncQueue q = mapCmds.get(cmd.cmdName);
+				if (q == null) {
+					q = new AsyncQueue(server, cmd.cmdName);
+					q.doneResp.add();
+					q.failResp.add();
+					mapCmds.put(cmd.cmdName, q);
+				}
+				q.collPending.add(cmd);
+				return q;
+			}
+		}
+
+		// returns whether the command was still pending
+		protected boolean dequeue(AsyncCommand cmd) {
+			synchronized (BufferTransfer.class) {
+				final boolean found = collPending.remove(cmd);
+				if (found)
+					disposeIfEmpty();
+				return found;
+			}
+		}
+
+		// sync: caller must hold the class
+		private void disposeIfEmpty() {
+			if (!collPending.isEmpty())
+				return;
+
+			doneResp.remove();
+			failResp.remove();
+			final Map<String, AsyncQueue> mapCmds = mapQueues.get(server);
+			if ((mapCmds != null) && (mapCmds.get(cmdName) == this)) {
+				mapCmds.remove(cmdName);
+				if (mapCmds.isEmpty())
+					mapQueues.remove(server);
+			}
+		}
+
+		@Override
+		public void respond(OSCResponderNode r, OSCMessage msg, long time) {
+			if ((msg.getArgCount() < 1) || !msg.getArg(0).equals(cmdName))
+				return;
+
+			// newer servers append the buffer number
+			final Object last = msg.getArg(msg.getArgCount() - 1);
+			final int bufNum = (msg.getArgCount() > 1) && (last instanceof Number) ? ((Number) last).intValue() : -1;
+			AsyncCommand cmd = null;
+
+			synchronized (BufferTransfer.class) {
+				for (int i = 0; i < collPending.size(); i++) {
+					final AsyncCommand c = collPending.get(i);
+					if ((bufNum < 0) || (c.buf.getBufNum() == bufNum)) {
+						cmd = collPending.remove(i);
+						disposeIfEmpty();
+						break;
+					}
+				}
+			}
+			if (cmd != null)
+				cmd.reply(msg);
+		}
+	}
+
+	private static class AsyncBatch implements OSCResponderNode.Action {
+		protected final Buffer[] bufs;
+		protected final OSCMessage[] msgs;
+		protected final float timeout;
+		protected final Server server;
+		protected final Integer syncID = new Integer(UniqueID.next());
+		protected final Map<Integer, Integer> mapIndices = new HashMap<>(); // bufNum to array index
+		protected final Set<String> cmdNames = new HashSet<>();
+		protected final OSCResponderNode syncedResp;
+		protected final OSCResponderNode failResp;
+		protected final CompletableFuture<Void> future = new CompletableFuture<>();
+		protected ScheduledFuture<?> timeoutTask = null; // synchronized through 'this'
+
+		protected AsyncBatch(Buffer[] bufs, OSCMessage[] msgs, float timeout) {
+			this.bufs = bufs;
+			this.msgs = msgs;
+			this.timeout = timeout;
+
+			server = bufs[0].getServer();
+			for (int i = 0; i < bufs.length; i++) {
+				if (bufs[i].getServer() != server)
+					throw new IllegalArgumentException("Buffers reside on different servers");
+				mapIndices.put(new Integer(bufs[i].getBufNum()), new Integer(i));
+				cmdNames.add(msgs[i].getName());
+			}
+			syncedResp = new OSCResponderNode(server, "/synced", this);
+			failResp = new OSCResponderNode(server, "/fail", this);
+		}
+
+		protected CompletableFuture<Void> start() throws IOException {
+			final List<OSCMessage> coll = new ArrayList<>(msgs.length + 1);
+
+			for (int i = 0; i < msgs.length; i++) {
+				coll.add(msgs[i]);
+			}
+			coll.add(new OSCMessage("/sync", new Object[] { syncID }));
+
+			synchronized (this) {
+				try {
+					syncedResp.add();
+					failResp.add();
+					if (timeout > 0) {
+						timeoutTask = getWatchdog().schedule(new Runnable() {
+							@Override
+							public void run() {
+								finish(new IOException("Timeout while waiting for " + bufs.length + " buffers"));
+							}
+						}, Math.max(1L, (long) (timeout * 1000)), TimeUnit.MILLISECONDS);
+					}
+					PacketUtil.sendBundled(server, coll);
+				} catch (IOException e1) {
+					finish(e1);
+					throw e1;
+				}
+			}
+			return future;
+		}
+
+		protected synchronized void finish(Throwable failure) {
+			if (future.isDone())
+				return;
+
+			syncedResp.remove();
+			failResp.remove();
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+				timeoutTask = null;
+			}
+			if (failure == null) {
+				future.complete(null);
+			} else {
+				future.completeExceptionally(failure);
+			}
+		}
+
+		@Override
+		public synchronized void respond(OSCResponderNode r, OSCMessage msg, long time) {
+			if (msg.getArgCount() < 1)
+				return;
+
+			if (msg.getName().equals("/synced")) {
+				if (msg.getArg(0).equals(syncID))
+					finish(null);
+				return;
+			}
+
+			if (!cmdNames.contains(msg.getArg(0)))
+				return;
+
+			// newer servers append the buffer number to the failure message
+			int idx = -1;
+			final Object last = msg.getArg(msg.getArgCount() - 1);
+			if ((msg.getArgCount() > 2) && (last instanceof Number)) {
+				final Integer i = mapIndices.get(new Integer(((Number) last).intValue()));
+				if (i == null)
+					return; // not ours
+				idx = i.intValue();
+			}
+			finish(new Buffer.AllocFailedException(msg.getArg(0) + " failed"
+					+ (idx >= 0 ? " for buffer " + bufs[idx].getBufNum() + " (index " + idx + ")" : "")
+					+ (msg.getArgCount() > 1 ? ": " + msg.getArg(1) : ""), idx, idx >= 0 ? bufs[idx] : null));
+		}
+	}
+}
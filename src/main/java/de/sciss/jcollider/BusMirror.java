@@ -0,0 +1,414 @@
+/*
+ * BusMirror.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.StampedLock;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * Mirrors the values of control busses into the client by periodically
+ * polling the server. Clients subscribe ranges of busses; the subscribed ranges
+ * are merged, so that each poll requires as few <code>/c_getn</code> messages
+ * as possible (usually one). Nearby ranges are merged when the gap between them
+ * is small (see <code>setMaxGap</code>), because fetching a few unused values is
+ * cheaper than an extra range.
+ * <p>
+ * The values are kept in one float array indexed by bus index. All replies of
+ * a poll are decoded into a private array first and then published together,
+ * holding the write lock of a <code>StampedLock</code>. Readers on any thread
+ * can thus obtain consistent snapshots without allocating, using
+ * <code>get</code>, which reads optimistically and takes the read lock only if
+ * the read overlapped with a publication. If a reply is lost, the values received
+ * for that poll are published when the next poll starts.
+ * <p>
+ * Polling takes place in a dedicated daemon timer thread, so as not to load
+ * the event thread.
+ *
+ * @synchronization all methods are thread safe
+ */
+public class BusMirror implements OSCResponderNode.Action {
+	private final Server server;
+	private final OSCResponderNode resp;
+	private final float[] values; // published values ; written with the write lock of 'lock' held
+	private final float[] scratch; // values of the current poll ; synchronized through 'sync'
+	private final StampedLock lock = new StampedLock();
+	private volatile int seq = 0; // written with the write lock of 'lock' held
+
+	private final Object sync = new Object();
+	private final List<int[]> collSubs = new ArrayList<>(); // subscribed { index, numChannels } ; synchronized through 'sync'
+	private int[] ranges = new int[0]; // merged { index, numChannels } pairs ; synchronized through 'sync'
+	private OSCMessage[] requests = new OSCMessage[0]; // synchronized through 'sync'
+	private int[] requestIndices = new int[0]; // first bus index of each request ; synchronized through 'sync'
+	private boolean[] replied = new boolean[0]; // synchronized through 'sync'
+	private int numReplies = 0; // synchronized through 'sync'
+	private boolean dirty = false; // scratch has unpublished values ; synchronized through 'sync'
+
+	private int maxGap = 4;
+	private int maxReplySize = PacketUtil.UDP_SAFE_SIZE;
+	private Timer timer = null;
+
+	/**
+	 * Creates a mirror for all control busses of the server.
+	 */
+	public BusMirror(Server server) {
+		this.server = server;
+
+		values = new float[server.getOptions().getNumControlBusChannels()];
+		scratch = new float[values.length];
+		resp = new OSCResponderNode(server, "/c_setn", this);
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Adds a range of busses to poll.
+	 */
+	public void subscribe(Bus bus) {
+		if (bus.getRate() != Constants.kControlRate)
+			throw new IllegalArgumentException("Only control busses can be mirrored");
+
+		subscribe(bus.getIndex(), bus.getNumChannels());
+	}
+
+	/**
+	 * Adds a range of busses to poll.
+	 *
+	 * @param index
+	 *            the first control bus index
+	 * @param numChannels
+	 *            the number of successive busses
+	 */
+	public void subscribe(int index, int numChannels) {
+		if ((index < 0) || (numChannels <= 0) || (index + numChannels > values.length))
+			throw new IllegalArgumentException("Illegal bus range " + index + " ... " + (index + numChannels - 1));
+
+		synchronized (sync) {
+			collSubs.add(new int[] { index, numChannels });
+			rebuild();
+		}
+	}
+
+	/**
+	 * Removes a range of busses which was previously added with the same
+	 * parameters. Overlapping ranges subscribed separately are still polled.
+	 */
+	public void unsubscribe(int index, int numChannels) {
+		synchronized (sync) {
+			for (int i = 0; i < collSubs.size(); i++) {
+				final int[] sub = collSubs.get(i);
+				if ((sub[0] == index) && (sub[1] == numChannels)) {
+					collSubs.remove(i);
+					rebuild();
+					return;
+				}
+			}
+		}
+	}
+
+	public void unsubscribe(Bus bus) {
+		unsubscribe(bus.getIndex(), bus.getNumChannels());
+	}
+
+	/**
+	 * Specifies the maximum number of unsubscribed busses between two ranges for
+	 * which the ranges are still merged. The default is <code>4</code>.
+	 */
+	public void setMaxGap(int numChannels) {
+		synchronized (sync) {
+			maxGap = numChannels;
+			rebuild();
+		}
+	}
+
+	/**
+	 * Specifies the maximum size of a single <code>/c_setn</code> reply in bytes.
+	 * More requests are sent per poll if the subscribed values exceed this size.
+	 * The default is the size which safely fits into a single UDP datagram.
+	 */
+	public void setMaxReplySize(int numBytes) {
+		synchronized (sync) {
+			maxReplySize = numBytes;
+			rebuild();
+		}
+	}
+
+	/**
+	 * Starts polling.
+	 *
+	 * @param rate
+	 *            the number of polls per second
+	 */
+	public void start(float rate) throws IOException {
+		synchronized (sync) {
+			stop();
+			if (!resp.isListening())
+				resp.add();
+
+			final long period = Math.max(1L, (long) (1000 / rate));
+			timer = new Timer("BusMirror", true);
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						poll();
+					} catch (IOException e1) {
+						e1.printStackTrace(Server.getPrintStream());
+					}
+				}
+			}, 0L, period);
+		}
+	}
+
+	/**
+	 * Stops polling. The last values remain available.
+	 */
+	public void stop() {
+		synchronized (sync) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			resp.remove();
+		}
+	}
+
+	public boolean isRunning() {
+		synchronized (sync) {
+			return timer != null;
+		}
+	}
+
+	/**
+	 * Requests the values of all subscribed busses once. This is called
+	 * periodically after <code>start</code>, but can also be called manually.
+	 */
+	public void poll() throws IOException {
+		final OSCMessage[] msgs;
+
+		synchronized (sync) {
+			if (dirty)
+				publish();
+
+			msgs = requests;
+			numReplies = 0;
+			for (int i = 0; i < replied.length; i++) {
+				replied[i] = false;
+			}
+		}
+		for (int i = 0; i < msgs.length; i++) {
+			server.sendMsg(msgs[i]);
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the values. It is incremented for each
+	 * completed poll.
+	 */
+	public int getSequence() {
+		return seq;
+	}
+
+	/**
+	 * Returns the last known value of a single bus.
+	 */
+	public float get(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Copies the last known values of a range of busses. All values belong to the
+	 * same poll. This does not allocate, and blocks only if the values are
+	 * being updated at the same time.
+	 *
+	 * @param index
+	 *            the first control bus index
+	 * @param dest
+	 *            the array to copy the values to
+	 * @param destOff
+	 *            the offset into <code>dest</code>
+	 * @param numChannels
+	 *            the number of successive busses to copy
+	 * @return the sequence number of the values read
+	 */
+	public int get(int index, float[] dest, int destOff, int numChannels) {
+		long stamp = lock.tryOptimisticRead();
+		int s = seq;
+		System.arraycopy(values, index, dest, destOff, numChannels);
+
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				s = seq;
+				System.arraycopy(values, index, dest, destOff, numChannels);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Copies the last known values of a bus.
+	 *
+	 * @return the sequence number of the values read
+	 */
+	public int get(Bus bus, float[] dest) {
+		return get(bus.getIndex(), dest, 0, bus.getNumChannels());
+	}
+
+	/**
+	 * Stops polling and removes all subscriptions.
+	 */
+	public void dispose() {
+		synchronized (sync) {
+			stop();
+			collSubs.clear();
+			rebuild();
+		}
+	}
+
+	// copies the scratch values of the merged ranges to the published array.
+	// sync: caller must hold sync ; this is the only writer of 'values'
+	private void publish() {
+		final long stamp = lock.writeLock();
+		try {
+			for (int i = 0; i < ranges.length; i += 2) {
+				System.arraycopy(scratch, ranges[i], values, ranges[i], ranges[i + 1]);
+			}
+			seq++;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		dirty = false;
+	}
+
+	// merges the subscriptions and creates the request messages
+	// sync: caller must hold sync
+	private void rebuild() {
+		final int[][] subs = collSubs.toArray(new int[collSubs.size()][]);
+		final List<int[]> merged = new ArrayList<>();
+
+		Arrays.sort(subs, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+			}
+		});
+
+		for (int i = 0; i < subs.length; i++) {
+			final int start = subs[i][0];
+			final int stop = start + subs[i][1];
+			final int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+
+			if ((last != null) && (start <= last[1] + maxGap)) {
+				last[1] = Math.max(last[1], stop);
+			} else {
+				merged.add(new int[] { start, stop });
+			}
+		}
+
+		// split into requests whose replies fit into maxReplySize.
+		// reply: "/c_setn" (8) + type tags + (index, count, values...) per range
+		final int maxValues = Math.max(1, (maxReplySize - 8) / 5 - 4);
+		final List<int[]> split = new ArrayList<>();
+		for (int i = 0; i < merged.size(); i++) {
+			final int[] r = merged.get(i);
+			for (int start = r[0]; start < r[1]; start += maxValues) {
+				split.add(new int[] { start, Math.min(r[1], start + maxValues) - start });
+			}
+		}
+
+		final List<OSCMessage> msgs = new ArrayList<>();
+		final List<Integer> firstIndices = new ArrayList<>();
+		final List<Object> args = new ArrayList<>();
+		int numValues = 0;
+		ranges = new int[split.size() << 1];
+		for (int i = 0; i < split.size(); i++) {
+			final int[] r = split.get(i);
+			ranges[i << 1] = r[0];
+			ranges[(i << 1) + 1] = r[1];
+
+			if (!args.isEmpty() && ((numValues + r[1] + ((args.size() + 2) >> 1) * 2) > maxValues)) {
+				msgs.add(new OSCMessage("/c_getn", args.toArray()));
+				args.clear();
+				numValues = 0;
+			}
+			if (args.isEmpty())
+				firstIndices.add(new Integer(r[0]));
+			args.add(new Integer(r[0]));
+			args.add(new Integer(r[1]));
+			numValues += r[1];
+		}
+		if (!args.isEmpty())
+			msgs.add(new OSCMessage("/c_getn", args.toArray()));
+
+		requests = msgs.toArray(new OSCMessage[msgs.size()]);
+		requestIndices = new int[firstIndices.size()];
+		for (int i = 0; i < requestIndices.length; i++) {
+			requestIndices[i] = firstIndices.get(i).intValue();
+		}
+		replied = new boolean[requests.length];
+		numReplies = 0;
+	}
+
+	// ----------- OSCResponderNode.Action interface -----------
+
+	/**
+	 * This method is part of the implementation of the OSCResponderNode.Action
+	 * interface. Do not call this method.
+	 */
+	@Override
+	public void respond(OSCResponderNode r, OSCMessage msg, long time) {
+		final int numArgs = msg.getArgCount();
+		if (numArgs < 2)
+			return;
+
+		final int firstIndex = ((Number) msg.getArg(0)).intValue();
+
+		synchronized (sync) {
+			// ignore replies to requests which are not ours
+			int reqIdx = -1;
+			for (int i = 0; i < requestIndices.length; i++) {
+				if ((requestIndices[i] == firstIndex) && !replied[i]) {
+					reqIdx = i;
+					break;
+				}
+			}
+			if (reqIdx < 0)
+				return;
+
+			for (int i = 0; i + 1 < numArgs;) {
+				final int index = ((Number) msg.getArg(i++)).intValue();
+				final int num = ((Number) msg.getArg(i++)).intValue();
+				for (int j = 0; (j < num) && (i < numArgs); j++) {
+					final int busIdx = index + j;
+					final float value = ((Number) msg.getArg(i++)).floatValue();
+					if ((busIdx >= 0) && (busIdx < scratch.length))
+						scratch[busIdx] = value;
+				}
+			}
+
+			replied[reqIdx] = true;
+			dirty = true;
+			if (++numReplies == requests.length)
+				publish();
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * BusWriter.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * Coalesces writes to control busses. Instead of sending a message for each
+ * write, values are stored in a pending array and marked dirty. Once per
+ * control period of the server (block size divided by sample rate), the dirty
+ * values are flushed as a minimal number of <code>/c_setn</code> runs, one run
+ * per sequence of successive dirty busses. Writes to the same bus within one
+ * period are thus collapsed into one value (the last write wins), which the
+ * server could not have observed anyway.
+ * <p>
+ * Flushing takes place in a dedicated daemon thread, which is started with
+ * <code>start</code>. Alternatively, <code>flush</code> can be called manually.
+ *
+ * @synchronization all methods are thread safe
+ */
+public class BusWriter {
+	private final Server server;
+	private final float[] pending; // synchronized through 'sync'
+	private final long[] dirty; // bit set ; synchronized through 'sync'
+
+	private final Object sync = new Object();
+	// held across collecting and sending, so batches go out in collection order
+	private final Object sendSync = new Object();
+	private int minDirtyWord = Integer.MAX_VALUE; // synchronized through 'sync'
+	private int maxDirtyWord = -1; // synchronized through 'sync'
+	private long numWrites = 0; // synchronized through 'sync'
+	private long numFlushed = 0; // synchronized through 'sync'
+
+	private ScheduledExecutorService exec = null;
+
+	/**
+	 * Creates a writer for all control busses of the server.
+	 */
+	public BusWriter(Server server) {
+		this.server = server;
+
+		pending = new float[server.getOptions().getNumControlBusChannels()];
+		dirty = new long[(pending.length + 63) >> 6];
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Writes the value of a single bus.
+	 */
+	public void set(int index, float value) {
+		synchronized (sync) {
+			pending[index] = value;
+			markDirty(index);
+			numWrites++;
+		}
+	}
+
+	/**
+	 * Writes the values of successive busses.
+	 *
+	 * @param index
+	 *            the first control bus index
+	 * @param values
+	 *            the values to write, one per bus
+	 */
+	public void setn(int index, float[] values) {
+		synchronized (sync) {
+			System.arraycopy(values, 0, pending, index, values.length);
+			for (int i = 0; i < values.length; i++) {
+				markDirty(index + i);
+			}
+			numWrites += values.length;
+		}
+	}
+
+	/**
+	 * Writes the values of all channels of a control bus.
+	 */
+	public void set(Bus bus, float[] values) {
+		if (bus.getRate() != Constants.kControlRate)
+			throw new IllegalArgumentException("Only control busses can be written");
+		if (values.length != bus.getNumChannels())
+			throw new IllegalArgumentException("# of values must match # of bus channels");
+
+		setn(bus.getIndex(), values);
+	}
+
+	/**
+	 * Returns the control period of the server in seconds. The sample rate
+	 * reported by the running server is preferred over the one in the server
+	 * options.
+	 */
+	public double getControlPeriod() {
+		double sr = server.getSampleRate();
+		if (sr <= 0)
+			sr = server.getOptions().getSampleRate();
+		if (sr <= 0)
+			sr = 44100;
+
+		return server.getOptions().getBlockSize() / sr;
+	}
+
+	/**
+	 * Starts flushing once per control period.
+	 */
+	public void start() {
+		start(getControlPeriod());
+	}
+
+	/**
+	 * Starts flushing at a custom period.
+	 *
+	 * @param period
+	 *            the flush period in seconds
+	 */
+	public void start(double period) {
+		synchronized (sync) {
+			stop();
+			exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "BusWriter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final long nanos = Math.max(1L, (long) (period * 1.0e9));
+			exec.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (IOException e1) {
+						e1.printStackTrace(Server.getPrintStream());
+					}
+				}
+			}, nanos, nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stops flushing. Pending values are kept until the next <code>flush</code>.
+	 */
+	public void stop() {
+		synchronized (sync) {
+			if (exec != null) {
+				exec.shutdown();
+				exec = null;
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		synchronized (sync) {
+			return exec != null;
+		}
+	}
+
+	/**
+	 * Sends all dirty values to the server.
+	 *
+	 * @return the number of values sent
+	 */
+	public int flush() throws IOException {
+		synchronized (sendSync) {
+			final List<OSCMessage> msgs;
+			final int numValues;
+
+			synchronized (sync) {
+				if (maxDirtyWord < 0)
+					return 0;
+
+				msgs = new ArrayList<>();
+				numValues = collectRuns(msgs);
+				numFlushed += numValues;
+			}
+			// writers only wait for 'sync', not for the network
+			for (int i = 0; i < msgs.size(); i++) {
+				server.sendMsg(msgs.get(i));
+			}
+			return numValues;
+		}
+	}
+
+	/**
+	 * Returns the total number of values written to this writer.
+	 */
+	public long getNumWrites() {
+		synchronized (sync) {
+			return numWrites;
+		}
+	}
+
+	/**
+	 * Returns the total number of values sent to the server. The difference to
+	 * <code>getNumWrites</code> is the number of coalesced writes.
+	 */
+	public long getNumFlushed() {
+		synchronized (sync) {
+			return numFlushed;
+		}
+	}
+
+	public void resetMetrics() {
+		synchronized (sync) {
+			numWrites = 0;
+			numFlushed = 0;
+		}
+	}
+
+	// sync: caller must hold sync
+	private void markDirty(int index) {
+		final int word = index >> 6;
+
+		dirty[word] |= 1L << (index & 63);
+		if (word < minDirtyWord)
+			minDirtyWord = word;
+		if (word > maxDirtyWord)
+			maxDirtyWord = word;
+	}
+
+	// creates /c_setn messages for all runs of dirty busses and clears the dirty
+	// bits. sync: caller must hold sync
+	private int collectRuns(List<OSCMessage> msgs) {
+		final int maxMsgSize = PacketUtil.UDP_SAFE_SIZE;
+		final List<Object> args = new ArrayList<>();
+		int msgSize = 8; // "/c_setn"
+		int numValues = 0;
+		int index = minDirtyWord << 6;
+		final int stop = Math.min(pending.length, (maxDirtyWord + 1) << 6);
+
+		while (index < stop) {
+			// find the start of the next run
+			final int word = index >> 6;
+			final long bits = dirty[word] & (-1L << (index & 63));
+			if (bits == 0) {
+				index = (word + 1) << 6;
+				continue;
+			}
+			final int start = (word << 6) + Long.numberOfTrailingZeros(bits);
+
+			// find the end of the run
+			int end = start + 1;
+			while ((end < stop) && ((dirty[end >> 6] & (1L << (end & 63))) != 0))
+				end++;
+
+			// one run is index, count and values ; each with 4 bytes data plus 1 type tag
+			for (int runStart = start; runStart < end;) {
+				final int maxRun = (maxMsgSize - msgSize) / 5 - 2 - 3;
+				if (maxRun <= 0) {
+					msgs.add(new OSCMessage("/c_setn", args.toArray()));
+					args.clear();
+					msgSize = 8;
+					continue;
+				}
+				final int runLen = Math.min(end - runStart, maxRun);
+				args.add(new Integer(runStart));
+				args.add(new Integer(runLen));
+				for (int i = runStart; i < runStart + runLen; i++) {
+					args.add(new Float(pending[i]));
+				}
+				msgSize += (runLen + 2) * 5;
+				numValues += runLen;
+				runStart += runLen;
+			}
+			index = end;
+		}
+		if (!args.isEmpty())
+			msgs.add(new OSCMessage("/c_setn", args.toArray()));
+
+		for (int i = minDirtyWord; i <= maxDirtyWord; i++) {
+			dirty[i] = 0L;
+		}
+		minDirtyWord = Integer.MAX_VALUE;
+		maxDirtyWord = -1;
+
+		return numValues;
+	}
+}
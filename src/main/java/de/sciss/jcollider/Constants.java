@@ -58,6 +58,10 @@ public interface Constants {
 	 * header format used for <code>/b_write</code>: Raw (headerless)
 	 */
 	public static final String kHeaderRaw = "raw";
+	/**
+	 * header format used for <code>/b_write</code>: Apple Core Audio Format
+	 */
+	public static final String kHeaderCAF = "caf";
 
 	// -------------- sound file write sample encodings --------------
 
@@ -96,6 +100,22 @@ public interface Constants {
 	 */
 	public static final String kSampleALaw = "alaw";
 
+	// -------------- buffer fill command flags --------------
+
+	/**
+	 * flag used for <code>/b_gen</code>: normalize the peak amplitude to one
+	 */
+	public static final int kGenNormalize = 1;
+	/**
+	 * flag used for <code>/b_gen</code>: write the result in wavetable format
+	 */
+	public static final int kGenWavetable = 2;
+	/**
+	 * flag used for <code>/b_gen</code>: clear the buffer before writing,
+	 * otherwise the result is added to the buffer's contents
+	 */
+	public static final int kGenClear = 4;
+
 	// -------------- done actions --------------
 	/**
 	 * done action: do nothing when the UGen is finished
@@ -0,0 +1,162 @@
+/*
+ * ControlIndexCache.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Translates control names of a synth definition into control indices. The
+ * server has to look up control names for every <code>/n_set</code>,
+ * <code>/n_setn</code> or <code>/n_map</code> message, whereas control indices
+ * can be used directly and are also encoded more compactly. A
+ * <code>Synth</code> whose definition has been registered with this class
+ * therefore automatically replaces control names by indices in the messages it
+ * creates.
+ * <p>
+ * There is one shared cache per definition name. Definitions are registered
+ * automatically when they are sent to the server using
+ * <code>SynthDef.send</code>, <code>SynthDef.recvMsg</code> or
+ * <code>SynthDef.load</code>. Definitions which are loaded by the server by
+ * other means can be registered manually by providing a list of control names.
+ * <p>
+ * Note that the registry is global, i.e. a definition name is assumed to denote
+ * the same definition on all servers.
+ *
+ * @synchronization all methods are thread safe
+ *
+ * @see Synth#setMsg( String, float )
+ */
+public final class ControlIndexCache {
+	private static final Map<String, ControlIndexCache> mapDefs = new ConcurrentHashMap<>();
+
+	private final String defName;
+	private final Map<String, Integer> mapIndices;
+	private final int numControls;
+
+	private ControlIndexCache(String defName, Map<String, Integer> mapIndices, int numControls) {
+		this.defName = defName;
+		this.mapIndices = mapIndices;
+		this.numControls = numControls;
+	}
+
+	/**
+	 * Registers the controls of a synth definition. A previously registered
+	 * definition of the same name is replaced.
+	 *
+	 * @param def
+	 *            the definition whose control descriptions are used
+	 * @return the cache for the definition
+	 */
+	public static ControlIndexCache register(SynthDef def) {
+		final List<ControlDesc> descs = def.getControlDescs();
+		final String[] ctrlNames = new String[descs.size()];
+
+		for (int i = 0; i < ctrlNames.length; i++) {
+			ctrlNames[i] = descs.get(i).getName();
+		}
+		return register(def.getName(), ctrlNames);
+	}
+
+	/**
+	 * Registers the controls of a synth definition which is known only by its name.
+	 * A previously registered definition of the same name is replaced.
+	 *
+	 * @param defName
+	 *            the name of the synth definition
+	 * @param ctrlNames
+	 *            the names of the definition's controls in the order of their
+	 *            indices. <code>null</code> elements denote unnamed controls
+	 * @return the cache for the definition
+	 */
+	public static ControlIndexCache register(String defName, String[] ctrlNames) {
+		final Map<String, Integer> mapIndices = new HashMap<>();
+
+		for (int i = 0; i < ctrlNames.length; i++) {
+			// as in scsynth, the first control of a given name wins
+			if ((ctrlNames[i] != null) && !mapIndices.containsKey(ctrlNames[i])) {
+				mapIndices.put(ctrlNames[i], new Integer(i));
+			}
+		}
+
+		final ControlIndexCache cache = new ControlIndexCache(defName, mapIndices, ctrlNames.length);
+		mapDefs.put(defName, cache);
+		return cache;
+	}
+
+	/**
+	 * Removes a definition from the registry. Synths of this definition will send
+	 * control names again.
+	 *
+	 * @param defName
+	 *            the name of the synth definition
+	 */
+	public static void unregister(String defName) {
+		mapDefs.remove(defName);
+	}
+
+	/**
+	 * Returns the cache for a given definition name.
+	 *
+	 * @param defName
+	 *            the name of the synth definition
+	 * @return the cache or <code>null</code>, if no definition of this name has
+	 *         been registered
+	 */
+	public static ControlIndexCache forDef(String defName) {
+		return defName == null ? null : mapDefs.get(defName);
+	}
+
+	public String getDefName() {
+		return defName;
+	}
+
+	/**
+	 * Returns the total number of controls of the definition, including unnamed
+	 * ones.
+	 */
+	public int getNumControls() {
+		return numControls;
+	}
+
+	/**
+	 * Returns the index of a named control.
+	 *
+	 * @param ctrlName
+	 *            the name of the control
+	 * @return the control index or <code>-1</code>, if the definition has no
+	 *         control of this name
+	 */
+	public int indexOf(String ctrlName) {
+		final Integer idx = mapIndices.get(ctrlName);
+		return idx == null ? -1 : idx.intValue();
+	}
+
+	/**
+	 * Returns the indices of a list of named controls.
+	 *
+	 * @param ctrlNames
+	 *            the names of the controls
+	 * @return the control indices or <code>null</code>, if any of the names is
+	 *         unknown
+	 */
+	public int[] indicesOf(String[] ctrlNames) {
+		final int[] result = new int[ctrlNames.length];
+
+		for (int i = 0; i < ctrlNames.length; i++) {
+			result[i] = indexOf(ctrlNames[i]);
+			if (result[i] < 0)
+				return null;
+		}
+		return result;
+	}
+}
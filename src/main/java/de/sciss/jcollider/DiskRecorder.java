@@ -0,0 +1,801 @@
+/*
+ * DiskRecorder.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+
+/**
+ * Records busses to sound files on the server's disk, rotating to new files
+ * at size or time boundaries. Each recording owns a small ring of disk buffers
+ * which are allocated upfront. While one buffer is written by a
+ * <code>DiskOut</code> based synth, the next buffer is cued for the next file.
+ * At the boundary, a time tagged bundle starts the synth for the next file.
+ * The current synth is freed by a second bundle, time tagged two control
+ * blocks after the boundary, so that the two files overlap slightly. The
+ * previous file is closed afterwards in the background, and its buffer returns
+ * to the ring.
+ * <p>
+ * Segment lengths are rounded up to multiples of half the buffer size, because
+ * <code>DiskOut</code> writes to disk in half buffers, and the frames of an
+ * incomplete half buffer are not written when the file is closed. Since the
+ * server quantizes wall clock time tags to control blocks, a synth freed
+ * exactly at the boundary might end short of its last half buffer. The
+ * overlap ensures that each synth runs past the boundary, so the last half
+ * buffer is always complete, and no frames are dropped. The few overlapping
+ * frames beyond it are not written to the previous file, they are contained in
+ * the next one. Likewise, <code>stop</code> ends the recording at the next half
+ * buffer boundary. If the next file is not cued in time, the current file is
+ * extended by another segment (counted as a delayed rotation).
+ * <p>
+ * The synth def must write the bus given by the bus control (default
+ * <code>"in"</code>) to the buffer given by the buffer control (default
+ * <code>"bufnum"</code>), using a number of channels matching the bus. Any number
+ * of recordings may run concurrently. Rotation and closing are performed by
+ * the recorder's scheduling thread, which must be started with
+ * <code>start</code>.
+ *
+ * @synchronization all methods are thread safe
+ */
+public class DiskRecorder implements Constants {
+	private final Server server;
+	private final String defName;
+
+	private final Object sync = new Object();
+	private final List<Recording> collRecordings = new ArrayList<>(); // synchronized through 'sync'
+	private String bufCtrlName = "bufnum"; // synchronized through 'sync'
+	private String busCtrlName = "in"; // synchronized through 'sync'
+	private String headerFormat = kHeaderAIFF; // synchronized through 'sync'
+	private String sampleFormat = kSampleFloat; // synchronized through 'sync'
+	private int bufferSize = 65536; // synchronized through 'sync'
+	private int ringSize = 3; // synchronized through 'sync'
+	private double prepareAhead = 2.0; // seconds ; synchronized through 'sync'
+	private double latency = 0.2; // seconds ; synchronized through 'sync'
+	private float timeout = 10f; // seconds ; synchronized through 'sync'
+
+	private long numSegments = 0; // synchronized through 'sync'
+	private long numDelayedRotations = 0; // synchronized through 'sync'
+
+	private ScheduledExecutorService exec = null; // synchronized through 'sync'
+
+	/**
+	 * Creates a new recorder.
+	 *
+	 * @param server
+	 *            the server on which to record
+	 * @param defName
+	 *            the name of the synth def which writes a bus to a disk buffer
+	 */
+	public DiskRecorder(Server server, String defName) {
+		this.server = server;
+		this.defName = defName;
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	public String getDefName() {
+		return defName;
+	}
+
+	/**
+	 * Specifies the name of the synth def's control which receives the buffer
+	 * number. The default is <code>"bufnum"</code>.
+	 */
+	public void setBufCtrlName(String name) {
+		synchronized (sync) {
+			bufCtrlName = name;
+		}
+	}
+
+	/**
+	 * Specifies the name of the synth def's control which receives the bus
+	 * index. The default is <code>"in"</code>.
+	 */
+	public void setBusCtrlName(String name) {
+		synchronized (sync) {
+			busCtrlName = name;
+		}
+	}
+
+	/**
+	 * Specifies the file format of new recordings.
+	 *
+	 * @param headerFormat
+	 *            one of <code>kHeaderAIFF</code> etc. the default is AIFF
+	 * @param sampleFormat
+	 *            one of <code>kSampleInt24</code> etc. the default is 32 bit
+	 *            float
+	 */
+	public void setFileFormat(String headerFormat, String sampleFormat) {
+		synchronized (sync) {
+			this.headerFormat = headerFormat;
+			this.sampleFormat = sampleFormat;
+		}
+	}
+
+	/**
+	 * Specifies the number of frames of the disk buffers of new recordings. The
+	 * default is 65536.
+	 */
+	public void setBufferSize(int numFrames) {
+		synchronized (sync) {
+			bufferSize = numFrames;
+		}
+	}
+
+	/**
+	 * Specifies the number of disk buffers per recording. This must be at least
+	 * two (the current and the next file). A third buffer allows the previous
+	 * file to be closed while the next one is already cued. The default is
+	 * <code>3</code>.
+	 */
+	public void setRingSize(int numBuffers) {
+		if (numBuffers < 2)
+			throw new IllegalArgumentException("numBuffers must be at least 2");
+
+		synchronized (sync) {
+			ringSize = numBuffers;
+		}
+	}
+
+	/**
+	 * Specifies how long before a boundary the next file is cued. The default is
+	 * two seconds.
+	 */
+	public void setPrepareAhead(double seconds) {
+		synchronized (sync) {
+			prepareAhead = seconds;
+		}
+	}
+
+	/**
+	 * Specifies how long before a boundary the switching bundle is sent. This
+	 * must cover the network latency and the client's scheduling jitter. The
+	 * default is 0.2 seconds.
+	 */
+	public void setLatency(double seconds) {
+		synchronized (sync) {
+			latency = seconds;
+		}
+	}
+
+	/**
+	 * Specifies the maximum amount of time to wait for the server when
+	 * allocating, cueing or closing buffers. The default is ten seconds.
+	 */
+	public void setTimeout(float seconds) {
+		synchronized (sync) {
+			timeout = seconds;
+		}
+	}
+
+	/**
+	 * Starts recording a bus. The recording's buffers are allocated and its
+	 * first file is cued asynchronously, use <code>started</code> on the returned
+	 * recording to find out when the recording has begun.
+	 *
+	 * @param bus
+	 *            the bus to record
+	 * @param pathPattern
+	 *            the pattern of the file names, as seen by the server. it is
+	 *            formatted using <code>String.format</code> with the zero based
+	 *            segment index as argument, e.g. <code>"/rec/take-%04d.aif"</code>
+	 * @param target
+	 *            the node relative to which the recording synth is created
+	 * @param addAction
+	 *            the add action to use relative to <code>target</code>. after
+	 *            rotation, the synth of the next file is added after the synth
+	 *            of the current file
+	 * @return the recording
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 * @throws IllegalStateException
+	 *             if the server's buffer allocator is exhausted
+	 */
+	public Recording record(Bus bus, String pathPattern, Node target, int addAction) throws IOException {
+		final Recording rec;
+		final float tOut;
+
+		synchronized (sync) {
+			rec = new Recording(bus, pathPattern, target, addAction, ringSize, bufferSize, headerFormat,
+					sampleFormat);
+			collRecordings.add(rec);
+			tOut = timeout;
+		}
+
+		try {
+			Buffer.allocBulk(rec.ring, tOut).thenCompose(new Function<Buffer[], CompletableFuture<Void>>() {
+				@Override
+				public CompletableFuture<Void> apply(Buffer[] bufs) {
+					try {
+						synchronized (sync) {
+							for (int i = 1; i < bufs.length; i++) {
+								rec.idle.add(bufs[i]);
+							}
+							rec.current = new Segment(bufs[0], rec.nextPath());
+						}
+						return cue(rec, rec.current, tOut);
+					} catch (IOException e1) {
+						final CompletableFuture<Void> f = new CompletableFuture<>();
+						f.completeExceptionally(e1);
+						return f;
+					}
+				}
+			}).whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void v, Throwable failure) {
+					if (failure == null) {
+						try {
+							begin(rec);
+							return;
+						} catch (IOException e1) {
+							failure = e1;
+						}
+					}
+					abort(rec, failure);
+				}
+			});
+		} catch (IOException e1) {
+			abort(rec, e1);
+			throw e1;
+		}
+		return rec;
+	}
+
+	/**
+	 * Starts the background scheduling, which rotates and closes the files.
+	 *
+	 * @param period
+	 *            the scheduling period in seconds. this should be clearly
+	 *            smaller than the latency
+	 */
+	public void start(double period) {
+		synchronized (sync) {
+			stop();
+			exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "DiskRecorder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final long nanos = Math.max(1L, (long) (period * 1.0e9));
+			exec.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process();
+					} catch (IOException e1) {
+						e1.printStackTrace(Server.getPrintStream());
+					}
+				}
+			}, 0L, nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Starts the background scheduling with a period of 50 milliseconds.
+	 */
+	public void start() {
+		start(0.05);
+	}
+
+	/**
+	 * Stops the background scheduling. Recordings continue to write their
+	 * current files, but do not rotate until scheduling is resumed.
+	 */
+	public void stop() {
+		synchronized (sync) {
+			if (exec != null) {
+				exec.shutdown();
+				exec = null;
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		synchronized (sync) {
+			return exec != null;
+		}
+	}
+
+	/**
+	 * Performs one scheduling step: cues the next files, sends the switching
+	 * bundles of boundaries which are about to be reached, and closes finished
+	 * files. This is called periodically after <code>start</code>, but can also
+	 * be called manually.
+	 */
+	public void process() throws IOException {
+		final long now = System.currentTimeMillis();
+		final List<Segment> toCue = new ArrayList<>();
+		final List<Recording> toCueRecs = new ArrayList<>();
+		final List<Segment> toClose = new ArrayList<>();
+		final List<Recording> toCloseRecs = new ArrayList<>();
+		final List<OSCBundle> bundles = new ArrayList<>();
+		final List<Recording> finished = new ArrayList<>();
+		final float tOut;
+
+		synchronized (sync) {
+			tOut = timeout;
+			final long prepareMillis = (long) (prepareAhead * 1000);
+			final long latencyMillis = (long) (latency * 1000);
+
+			for (int i = 0; i < collRecordings.size(); i++) {
+				final Recording rec = collRecordings.get(i);
+
+				if ((rec.state == Recording.RUNNING) && (rec.current.endFrame > 0)) {
+					final long boundaryMillis = rec.millis(rec.current.endFrame);
+
+					if ((rec.next == null) && (now >= boundaryMillis - prepareMillis) && !rec.idle.isEmpty()) {
+						rec.next = new Segment(rec.idle.poll(), rec.nextPath());
+						toCue.add(rec.next);
+						toCueRecs.add(rec);
+					}
+					if (now >= boundaryMillis - latencyMillis) {
+						if ((rec.next != null) && rec.next.ready) {
+							rotate(rec, bundles);
+							numSegments++;
+						} else {
+							// keep writing the current file
+							rec.current.endFrame += rec.segmentFrames();
+							rec.numDelayedRotations++;
+							numDelayedRotations++;
+						}
+					}
+				}
+
+				for (int j = 0; j < rec.closing.size(); j++) {
+					final Segment seg = rec.closing.get(j);
+					if (!seg.closeSent && (now >= seg.closeMillis)) {
+						seg.closeSent = true;
+						toClose.add(seg);
+						toCloseRecs.add(rec);
+					}
+				}
+
+				if ((rec.state == Recording.STOPPING) && (rec.next == null) && rec.closing.isEmpty()) {
+					rec.state = Recording.STOPPED;
+					finished.add(rec);
+				}
+			}
+			collRecordings.removeAll(finished);
+		}
+
+		for (int i = 0; i < bundles.size(); i++) {
+			server.sendBundle(bundles.get(i));
+		}
+		for (int i = 0; i < toCue.size(); i++) {
+			cue(toCueRecs.get(i), toCue.get(i), tOut);
+		}
+		for (int i = 0; i < toClose.size(); i++) {
+			close(toCloseRecs.get(i), toClose.get(i), tOut);
+		}
+		for (int i = 0; i < finished.size(); i++) {
+			final Recording rec = finished.get(i);
+			final List<OSCMessage> msgs = new ArrayList<>(rec.ring.length);
+			for (int j = 0; j < rec.ring.length; j++) {
+				msgs.add(rec.ring[j].freeMsg());
+			}
+			PacketUtil.sendBundled(server, msgs);
+			rec.stopped.complete(null);
+		}
+	}
+
+	/**
+	 * Returns the number of files completed by rotation, summed over all
+	 * recordings.
+	 */
+	public long getNumSegments() {
+		synchronized (sync) {
+			return numSegments;
+		}
+	}
+
+	/**
+	 * Returns the number of boundaries at which the next file was not ready, so
+	 * that the current file was extended, summed over all recordings.
+	 */
+	public long getNumDelayedRotations() {
+		synchronized (sync) {
+			return numDelayedRotations;
+		}
+	}
+
+	/**
+	 * Returns the number of active recordings.
+	 */
+	public int getNumRecordings() {
+		synchronized (sync) {
+			return collRecordings.size();
+		}
+	}
+
+	public void resetMetrics() {
+		synchronized (sync) {
+			numSegments = 0;
+			numDelayedRotations = 0;
+		}
+	}
+
+	private double getSampleRate() {
+		double sr = server.getSampleRate();
+		if (sr <= 0)
+			sr = server.getOptions().getSampleRate();
+		if (sr <= 0)
+			sr = 44100;
+
+		return sr;
+	}
+
+	private CompletableFuture<Void> cue(final Recording rec, final Segment seg, float tOut) throws IOException {
+		final OSCMessage msg = seg.buf.writeMsg(seg.path, rec.headerFormat, rec.sampleFormat, 0, 0, true);
+
+		return BufferTransfer.sendAsync(seg.buf, msg, null, tOut).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable failure) {
+				synchronized (sync) {
+					if (failure != null) {
+						Server.getPrintStream().println("DiskRecorder: cannot create " + seg.path + " : " + failure);
+						if (rec.next == seg) {
+							// try again with the next file name
+							rec.next = null;
+							rec.idle.add(seg.buf);
+						}
+					} else {
+						seg.ready = true;
+					}
+				}
+			}
+		});
+	}
+
+	private void close(final Recording rec, final Segment seg, float tOut) throws IOException {
+		BufferTransfer.sendAsync(seg.buf, seg.buf.closeMsg(), null, tOut).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable failure) {
+				if (failure != null)
+					Server.getPrintStream().println("DiskRecorder: cannot close " + seg.path + " : " + failure);
+
+				synchronized (sync) {
+					rec.closing.remove(seg);
+					rec.idle.add(seg.buf);
+				}
+			}
+		});
+	}
+
+	// starts the synth of the first file after it was cued
+	private void begin(Recording rec) throws IOException {
+		final OSCBundle bndl = new OSCBundle();
+
+		synchronized (sync) {
+			if (rec.state != Recording.STARTING) {
+				// stopped before it began ; close the cued file
+				rec.current.closeMillis = 0L;
+				rec.closing.add(rec.current);
+				rec.current = null;
+				rec.started.cancel(false);
+				return;
+			}
+
+			final Segment seg = rec.current;
+			rec.baseMillis = System.currentTimeMillis() + (long) (latency * 1000);
+			rec.sampleRate = getSampleRate();
+			seg.startFrame = 0L;
+			seg.endFrame = rec.segmentFrames();
+			seg.synth = Synth.basicNew(defName, server);
+			bndl.setTimeTagRaw(PacketUtil.timeTag(rec.baseMillis, 0.0));
+			bndl.addPacket(seg.synth.newMsg(rec.target, new String[] { bufCtrlName, busCtrlName },
+					new float[] { seg.buf.getBufNum(), rec.bus.getIndex() }, rec.addAction));
+			rec.state = Recording.RUNNING;
+		}
+		server.sendBundle(bndl);
+		rec.started.complete(rec);
+	}
+
+	private void abort(Recording rec, Throwable failure) {
+		synchronized (sync) {
+			rec.state = Recording.STOPPED;
+			collRecordings.remove(rec);
+		}
+		for (int i = 0; i < rec.ring.length; i++) {
+			if (rec.ring[i].getBufNum() != -1) {
+				try {
+					rec.ring[i].free();
+				} catch (IOException e1) {
+					e1.printStackTrace(Server.getPrintStream());
+				}
+			}
+		}
+		rec.started.completeExceptionally(failure);
+		rec.stopped.completeExceptionally(failure);
+	}
+
+	// adds the bundles which start the next file at the boundary, and free
+	// the current synth a little later
+	// sync: caller must hold sync
+	private void rotate(Recording rec, List<OSCBundle> bundles) {
+		final Segment cur = rec.current;
+		final Segment next = rec.next;
+		final OSCBundle startBndl = new OSCBundle();
+		final OSCBundle stopBndl = new OSCBundle();
+		final long stopFrame = cur.endFrame + overlapFrames();
+
+		next.startFrame = cur.endFrame;
+		next.endFrame = rec.segmentFrames() > 0 ? next.startFrame + rec.segmentFrames() : 0L;
+		next.synth = Synth.basicNew(defName, server);
+
+		startBndl.setTimeTagRaw(PacketUtil.timeTag(rec.baseMillis, next.startFrame / rec.sampleRate));
+		startBndl.addPacket(next.synth.newMsg(cur.synth, new String[] { bufCtrlName, busCtrlName },
+				new float[] { next.buf.getBufNum(), rec.bus.getIndex() }, kAddAfter));
+		stopBndl.setTimeTagRaw(PacketUtil.timeTag(rec.baseMillis, stopFrame / rec.sampleRate));
+		stopBndl.addPacket(cur.synth.freeMsg());
+		bundles.add(startBndl);
+		bundles.add(stopBndl);
+
+		cur.closeMillis = rec.millis(stopFrame) + (long) (latency * 1000);
+		rec.closing.add(cur);
+		rec.current = next;
+		rec.next = null;
+		rec.numSegments++;
+	}
+
+	// the number of frames by which a synth outlives its boundary: one control
+	// block for the quantization of the time tag, one for clock jitter
+	private int overlapFrames() {
+		return server.getOptions().getBlockSize() << 1;
+	}
+
+	private static int bytesPerSample(String sampleFormat) {
+		if (sampleFormat.equals(kSampleInt16))
+			return 2;
+		if (sampleFormat.equals(kSampleInt24))
+			return 3;
+		if (sampleFormat.equals(kSampleDouble))
+			return 8;
+		if (sampleFormat.equals(kSampleInt32) || sampleFormat.equals(kSampleFloat))
+			return 4;
+		return 1;
+	}
+
+	// ----------- internal classes -----------
+
+	/**
+	 * A recording of one bus into a sequence of files.
+	 */
+	public class Recording {
+		protected static final int STARTING = 0;
+		protected static final int RUNNING = 1;
+		protected static final int STOPPING = 2;
+		protected static final int STOPPED = 3;
+
+		protected final Bus bus;
+		protected final String pathPattern;
+		protected final Node target;
+		protected final int addAction;
+		protected final Buffer[] ring;
+		protected final String headerFormat;
+		protected final String sampleFormat;
+		protected final CompletableFuture<Recording> started = new CompletableFuture<>();
+		protected final CompletableFuture<Void> stopped = new CompletableFuture<>();
+
+		// all of the following are synchronized through the recorder's 'sync'
+		protected final ArrayDeque<Buffer> idle = new ArrayDeque<>();
+		protected final List<Segment> closing = new ArrayList<>();
+		protected int state = STARTING;
+		protected Segment current = null;
+		protected Segment next = null;
+		protected int segIdx = 0;
+		protected long maxSegmentFrames = 0L; // zero for no rotation
+		protected long baseMillis = 0L;
+		protected double sampleRate = 44100;
+		protected long numSegments = 0;
+		protected long numDelayedRotations = 0;
+
+		protected Recording(Bus bus, String pathPattern, Node target, int addAction, int ringSize, int bufferSize,
+				String headerFormat, String sampleFormat) {
+			this.bus = bus;
+			this.pathPattern = pathPattern;
+			this.target = target;
+			this.addAction = addAction;
+			this.headerFormat = headerFormat;
+			this.sampleFormat = sampleFormat;
+
+			ring = new Buffer[ringSize];
+			for (int i = 0; i < ringSize; i++) {
+				ring[i] = new Buffer(server, bufferSize, bus.getNumChannels());
+				if (ring[i].getBufNum() == -1) {
+					for (int j = 0; j < i; j++) {
+						server.getBufferAllocator().free(ring[j].getBufNum());
+					}
+					throw new IllegalStateException("Failed to get " + ringSize + " buffers allocated");
+				}
+			}
+		}
+
+		public Bus getBus() {
+			return bus;
+		}
+
+		/**
+		 * Returns a future which completes when the synth of the first file was
+		 * sent to the server.
+		 */
+		public CompletableFuture<Recording> started() {
+			return started;
+		}
+
+		/**
+		 * Returns a future which completes when the recording was stopped and all
+		 * files are closed.
+		 */
+		public CompletableFuture<Void> stopped() {
+			return stopped;
+		}
+
+		/**
+		 * Specifies the maximum length of each file in sample frames. The length
+		 * is rounded up to a multiple of half the buffer size. The change applies
+		 * from the next file on.
+		 *
+		 * @param numFrames
+		 *            the maximum number of frames, or zero to disable rotation
+		 */
+		public void setMaxSegmentFrames(long numFrames) {
+			synchronized (sync) {
+				maxSegmentFrames = numFrames;
+				if ((current != null) && (current.endFrame == 0L) && (state == RUNNING) && (numFrames > 0))
+					current.endFrame = current.startFrame + segmentFrames();
+			}
+		}
+
+		/**
+		 * Specifies the maximum duration of each file.
+		 *
+		 * @param seconds
+		 *            the maximum duration in seconds, or zero to disable rotation
+		 */
+		public void setMaxSegmentDuration(double seconds) {
+			setMaxSegmentFrames((long) (seconds * getSampleRate() + 0.5));
+		}
+
+		/**
+		 * Specifies the maximum size of each file, not counting the header.
+		 *
+		 * @param numBytes
+		 *            the maximum number of bytes, or zero to disable rotation
+		 */
+		public void setMaxSegmentBytes(long numBytes) {
+			setMaxSegmentFrames(numBytes / ((long) bytesPerSample(sampleFormat) * bus.getNumChannels()));
+		}
+
+		/**
+		 * Returns the number of files completed by rotation.
+		 */
+		public long getNumSegments() {
+			synchronized (sync) {
+				return numSegments;
+			}
+		}
+
+		/**
+		 * Returns the number of boundaries at which the next file was not ready.
+		 */
+		public long getNumDelayedRotations() {
+			synchronized (sync) {
+				return numDelayedRotations;
+			}
+		}
+
+		/**
+		 * Returns the path of the file which is currently written, or
+		 * <code>null</code> if the recording has not yet started.
+		 */
+		public String getCurrentPath() {
+			synchronized (sync) {
+				return (state == RUNNING) && (current != null) ? current.path : null;
+			}
+		}
+
+		/**
+		 * Stops the recording after the latency, at the next half buffer boundary
+		 * of the current file, so that the last half buffer is completely
+		 * written. The files are closed in the background, see
+		 * <code>stopped</code>. A file which was already cued for the next
+		 * segment is closed empty.
+		 */
+		public void stop() throws IOException {
+			final OSCBundle bndl = new OSCBundle();
+
+			synchronized (sync) {
+				if (state != RUNNING) {
+					if (state == STARTING)
+						state = STOPPING; // begin will not start the synth
+					return;
+				}
+				final long latencyMillis = (long) (latency * 1000);
+				final long minFrame = (long) ((System.currentTimeMillis() + latencyMillis - baseMillis) * sampleRate
+						/ 1000);
+				final long half = halfBufferFrames();
+				final long numFrames = Math.max(0L, minFrame - current.startFrame);
+				final long stopFrame = current.startFrame + (numFrames + half - 1) / half * half + overlapFrames();
+				bndl.setTimeTagRaw(PacketUtil.timeTag(baseMillis, stopFrame / sampleRate));
+				bndl.addPacket(current.synth.freeMsg());
+				current.closeMillis = millis(stopFrame) + latencyMillis;
+				closing.add(current);
+				current = null;
+				if (next != null) {
+					next.closeMillis = 0L;
+					closing.add(next);
+					next = null;
+				}
+				state = STOPPING;
+			}
+			server.sendBundle(bndl);
+		}
+
+		// sync: caller must hold sync
+		protected String nextPath() {
+			return String.format(pathPattern, new Integer(segIdx++));
+		}
+
+		// sync: caller must hold sync
+		protected long segmentFrames() {
+			if (maxSegmentFrames <= 0)
+				return 0L;
+
+			final long half = halfBufferFrames();
+			return (maxSegmentFrames + half - 1) / half * half;
+		}
+
+		protected long halfBufferFrames() {
+			return Math.max(1, ring[0].getNumFrames() >> 1);
+		}
+
+		// sync: caller must hold sync
+		protected long millis(long frame) {
+			return baseMillis + (long) (frame * 1000 / sampleRate);
+		}
+	}
+
+	private static class Segment {
+		protected final Buffer buf;
+		protected final String path;
+
+		// all of the following are synchronized through the recorder's 'sync'
+		protected Synth synth = null;
+		protected boolean ready = false;
+		protected long startFrame = 0L;
+		protected long endFrame = 0L; // zero for open end
+		protected long closeMillis = 0L;
+		protected boolean closeSent = false;
+
+		protected Segment(Buffer buf, String path) {
+			this.buf = buf;
+			this.path = path;
+		}
+	}
+}
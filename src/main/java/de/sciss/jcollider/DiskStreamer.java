@@ -0,0 +1,796 @@
+/*
+ * DiskStreamer.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+
+/**
+ * Manages many concurrent disk streams, each of which plays a sequence of
+ * sound files without gaps. A stream is represented by a <code>Track</code>,
+ * to which files are added with their start times. For each file, a synth
+ * using a <code>DiskIn</code> based synth def is started with a time tagged
+ * bundle, so that successive files join sample accurately.
+ * <p>
+ * The streamer owns a fixed budget of disk buffers, which are allocated upfront.
+ * The next files of each track (up to the look ahead count) are cued on spare
+ * buffers in the background, as soon as their start time is closer than the cue
+ * ahead time. When a file has finished playing, its buffer is closed with
+ * <code>/b_close</code> and returned to the spare buffers, ready to be cued
+ * again. Thus the number of server buffers stays bounded regardless of the
+ * number of tracks and files.
+ * <p>
+ * If a file's cue has not completed by the time its bundle must be sent (its
+ * start time minus the latency), an underrun is counted and the file is
+ * started late, as soon as the cue completes. If no spare buffer is available
+ * for a file within the cue ahead time, a budget stall is counted.
+ * <p>
+ * The synth def must read from the buffer given by the buffer control (default
+ * <code>"bufnum"</code>) and must not free the buffer. The streamer frees each
+ * synth at the end of its file with a time tagged <code>/n_free</code>.
+ *
+ * @synchronization all methods are thread safe
+ */
+public class DiskStreamer implements Constants {
+	private final Server server;
+	private final String defName;
+	private final Node target;
+	private final int addAction;
+	private final int numChannels;
+	private final int bufferSize;
+	private final Buffer[] buffers;
+	private final CompletableFuture<DiskStreamer> ready;
+
+	private final Object sync = new Object();
+	private final ArrayDeque<Buffer> spare; // synchronized through 'sync'
+	private final List<Track> collTracks = new ArrayList<>(); // synchronized through 'sync'
+	// cancelled entries whose buffer is closed by a pending bundle ; synchronized through 'sync'
+	private final List<Entry> collReleasing = new ArrayList<>();
+	private String bufCtrlName = "bufnum"; // synchronized through 'sync'
+	private int lookAhead = 2; // synchronized through 'sync'
+	private double cueAhead = 2.0; // seconds ; synchronized through 'sync'
+	private double latency = 0.2; // seconds ; synchronized through 'sync'
+	private float cueTimeout = 10f; // seconds ; synchronized through 'sync'
+	private boolean disposed = false; // synchronized through 'sync'
+
+	private long numCued = 0; // synchronized through 'sync'
+	private long numStarted = 0; // synchronized through 'sync'
+	private long numUnderruns = 0; // synchronized through 'sync'
+	private long numBudgetStalls = 0; // synchronized through 'sync'
+	private long numCueFailures = 0; // synchronized through 'sync'
+
+	private ScheduledExecutorService exec = null; // synchronized through 'sync'
+
+	/**
+	 * Creates a new streamer and allocates its disk buffers. The buffers are
+	 * allocated asynchronously, use <code>ready</code> to wait for them. Files
+	 * added before the buffers are ready are cued afterwards.
+	 *
+	 * @param defName
+	 *            the name of the synth def which plays a disk buffer
+	 * @param target
+	 *            the node relative to which the synths are created
+	 * @param addAction
+	 *            the add action to use relative to <code>target</code>
+	 * @param numChannels
+	 *            the number of channels of all sound files
+	 * @param bufferSize
+	 *            the number of frames of each disk buffer. this should be a
+	 *            multiple of twice the server's block size
+	 * @param maxBuffers
+	 *            the buffer budget, i.e. the number of disk buffers. this should
+	 *            be at least the number of concurrently playing files plus the
+	 *            number of files cued in advance
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 * @throws IllegalStateException
+	 *             if the server's buffer allocator is exhausted
+	 */
+	public DiskStreamer(String defName, Node target, int addAction, int numChannels, int bufferSize, int maxBuffers)
+			throws IOException {
+		if (maxBuffers <= 0)
+			throw new IllegalArgumentException("maxBuffers must be greater than zero");
+
+		this.server = target.getServer();
+		this.defName = defName;
+		this.target = target;
+		this.addAction = addAction;
+		this.numChannels = numChannels;
+		this.bufferSize = bufferSize;
+
+		buffers = new Buffer[maxBuffers];
+		spare = new ArrayDeque<>(maxBuffers);
+		for (int i = 0; i < maxBuffers; i++) {
+			buffers[i] = new Buffer(server, bufferSize, numChannels);
+			if (buffers[i].getBufNum() == -1) {
+				for (int j = 0; j < i; j++) {
+					server.getBufferAllocator().free(buffers[j].getBufNum());
+				}
+				throw new IllegalStateException("Failed to get " + maxBuffers + " buffers allocated");
+			}
+		}
+
+		ready = Buffer.allocBulk(buffers, 0f).thenApply(new Function<Buffer[], DiskStreamer>() {
+			@Override
+			public DiskStreamer apply(Buffer[] bufs) {
+				synchronized (sync) {
+					if (!disposed) {
+						for (int i = 0; i < bufs.length; i++) {
+							spare.add(bufs[i]);
+						}
+					}
+				}
+				return DiskStreamer.this;
+			}
+		});
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	public String getDefName() {
+		return defName;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getMaxBuffers() {
+		return buffers.length;
+	}
+
+	/**
+	 * Returns a future which completes when the disk buffers are allocated.
+	 */
+	public CompletableFuture<DiskStreamer> ready() {
+		return ready;
+	}
+
+	/**
+	 * Specifies the name of the synth def's control which receives the buffer
+	 * number. The default is <code>"bufnum"</code>.
+	 */
+	public void setBufCtrlName(String name) {
+		synchronized (sync) {
+			bufCtrlName = name;
+		}
+	}
+
+	/**
+	 * Specifies the maximum number of files per track which are cued in advance,
+	 * not counting the file which is currently playing. The default is
+	 * <code>2</code>.
+	 */
+	public void setLookAhead(int numFiles) {
+		if (numFiles <= 0)
+			throw new IllegalArgumentException("numFiles must be greater than zero");
+
+		synchronized (sync) {
+			lookAhead = numFiles;
+		}
+	}
+
+	/**
+	 * Specifies how long before its start time a file is cued. The default is
+	 * two seconds.
+	 *
+	 * @param seconds
+	 *            the cue ahead time in seconds
+	 */
+	public void setCueAhead(double seconds) {
+		synchronized (sync) {
+			cueAhead = seconds;
+		}
+	}
+
+	/**
+	 * Specifies how long before its start time a file's bundle is sent to the
+	 * server. This must cover the network latency and the client's scheduling
+	 * jitter. The default is 0.2 seconds.
+	 *
+	 * @param seconds
+	 *            the latency in seconds
+	 */
+	public void setLatency(double seconds) {
+		synchronized (sync) {
+			latency = seconds;
+		}
+	}
+
+	/**
+	 * Specifies the maximum amount of time to wait for a cue to complete, after
+	 * which the file is skipped. The default is ten seconds.
+	 */
+	public void setCueTimeout(float seconds) {
+		synchronized (sync) {
+			cueTimeout = seconds;
+		}
+	}
+
+	/**
+	 * Creates a new track. The track is empty until files are added.
+	 *
+	 * @param baseTime
+	 *            the reference time of the track's files in milliseconds since
+	 *            1-Jan-1970, as returned by <code>System.currentTimeMillis()</code>
+	 */
+	public Track newTrack(long baseTime) {
+		synchronized (sync) {
+			if (disposed)
+				throw new IllegalStateException("Streamer was disposed");
+
+			final Track t = new Track(baseTime);
+			collTracks.add(t);
+			return t;
+		}
+	}
+
+	/**
+	 * Starts the background scheduling, which cues, starts and closes the files.
+	 *
+	 * @param period
+	 *            the scheduling period in seconds. this should be clearly
+	 *            smaller than the latency
+	 */
+	public void start(double period) {
+		synchronized (sync) {
+			if (disposed)
+				throw new IllegalStateException("Streamer was disposed");
+
+			stop();
+			exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "DiskStreamer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final long nanos = Math.max(1L, (long) (period * 1.0e9));
+			exec.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process();
+					} catch (IOException e1) {
+						e1.printStackTrace(Server.getPrintStream());
+					}
+				}
+			}, 0L, nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Starts the background scheduling with a period of 50 milliseconds.
+	 */
+	public void start() {
+		start(0.05);
+	}
+
+	/**
+	 * Stops the background scheduling. Files which are already playing are not
+	 * affected, but their buffers are not closed until scheduling is resumed or
+	 * <code>process</code> is called.
+	 */
+	public void stop() {
+		synchronized (sync) {
+			if (exec != null) {
+				exec.shutdown();
+				exec = null;
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		synchronized (sync) {
+			return exec != null;
+		}
+	}
+
+	/**
+	 * Performs one scheduling step: closes the buffers of finished files, cues
+	 * upcoming files and sends the bundles of files which are about to start.
+	 * This is called periodically after <code>start</code>, but can also be
+	 * called manually.
+	 */
+	public void process() throws IOException {
+		final long now = System.currentTimeMillis();
+		final List<OSCMessage> closeMsgs = new ArrayList<>();
+		final List<Entry> toCue = new ArrayList<>();
+		final List<OSCBundle> bundles = new ArrayList<>();
+		final float timeout;
+
+		synchronized (sync) {
+			if (disposed)
+				return;
+
+			timeout = cueTimeout;
+			final long cueAheadMillis = (long) (cueAhead * 1000);
+			final long latencyMillis = (long) (latency * 1000);
+
+			for (Iterator<Entry> iter = collReleasing.iterator(); iter.hasNext();) {
+				final Entry e = iter.next();
+				if (now >= e.startMillis + latencyMillis) {
+					iter.remove();
+					spare.add(e.buf);
+					e.buf = null;
+				}
+			}
+
+			for (int i = 0; i < collTracks.size(); i++) {
+				final Track t = collTracks.get(i);
+				int numAhead = 0;
+
+				for (Iterator<Entry> iter = t.entries.iterator(); iter.hasNext();) {
+					final Entry e = iter.next();
+
+					if (e.state == Entry.PLAYING) {
+						// wait one latency period after the end, so the synth is surely freed
+						if (now >= e.endMillis + latencyMillis) {
+							iter.remove();
+							closeMsgs.add(e.buf.closeMsg());
+							spare.add(e.buf);
+							e.buf = null;
+							e.state = Entry.DONE;
+						}
+						continue;
+					}
+					if (e.state == Entry.DONE) {
+						iter.remove();
+						continue;
+					}
+					if (numAhead++ >= lookAhead)
+						break;
+
+					if ((e.state == Entry.QUEUED) && (now >= e.startMillis - cueAheadMillis)) {
+						if (spare.isEmpty()) {
+							if (!e.stalled) {
+								e.stalled = true;
+								numBudgetStalls++;
+							}
+						} else {
+							e.buf = spare.poll();
+							e.state = Entry.CUEING;
+							toCue.add(e);
+							numCued++;
+						}
+					}
+
+					if (now >= e.startMillis - latencyMillis) {
+						if (e.state == Entry.READY) {
+							if (now >= e.endMillis) {
+								// it's too late to play any of it
+								iter.remove();
+								closeMsgs.add(e.buf.closeMsg());
+								spare.add(e.buf);
+								e.buf = null;
+								e.state = Entry.DONE;
+							} else {
+								bundles.add(startBundle(e, now >= e.startMillis));
+								bundles.add(stopBundle(e));
+								e.state = Entry.PLAYING;
+								numStarted++;
+								t.numStarted++;
+							}
+						} else if (!e.late) {
+							e.late = true;
+							numUnderruns++;
+							t.numUnderruns++;
+						}
+					}
+				}
+			}
+		}
+
+		PacketUtil.sendBundled(server, closeMsgs);
+		for (int i = 0; i < bundles.size(); i++) {
+			server.sendBundle(bundles.get(i));
+		}
+		for (int i = 0; i < toCue.size(); i++) {
+			cue(toCue.get(i), timeout);
+		}
+	}
+
+	/**
+	 * Returns the number of files cued so far.
+	 */
+	public long getNumCued() {
+		synchronized (sync) {
+			return numCued;
+		}
+	}
+
+	/**
+	 * Returns the number of files started so far.
+	 */
+	public long getNumStarted() {
+		synchronized (sync) {
+			return numStarted;
+		}
+	}
+
+	/**
+	 * Returns the number of files whose cue was not completed in time, summed
+	 * over all tracks.
+	 */
+	public long getNumUnderruns() {
+		synchronized (sync) {
+			return numUnderruns;
+		}
+	}
+
+	/**
+	 * Returns the number of files which could not be cued within the cue ahead
+	 * time because no spare buffer was available.
+	 */
+	public long getNumBudgetStalls() {
+		synchronized (sync) {
+			return numBudgetStalls;
+		}
+	}
+
+	/**
+	 * Returns the number of files which were skipped because their cue failed or
+	 * timed out.
+	 */
+	public long getNumCueFailures() {
+		synchronized (sync) {
+			return numCueFailures;
+		}
+	}
+
+	/**
+	 * Returns the number of spare buffers.
+	 */
+	public int getNumSpare() {
+		synchronized (sync) {
+			return spare.size();
+		}
+	}
+
+	public void resetMetrics() {
+		synchronized (sync) {
+			numCued = 0;
+			numStarted = 0;
+			numUnderruns = 0;
+			numBudgetStalls = 0;
+			numCueFailures = 0;
+			for (int i = 0; i < collTracks.size(); i++) {
+				final Track t = collTracks.get(i);
+				t.numStarted = 0;
+				t.numUnderruns = 0;
+			}
+		}
+	}
+
+	/**
+	 * Stops scheduling, frees all synths started by the streamer and frees the
+	 * disk buffers on the server.
+	 */
+	public void dispose() throws IOException {
+		final List<OSCMessage> msgs = new ArrayList<>();
+		final List<OSCBundle> bundles = new ArrayList<>();
+
+		synchronized (sync) {
+			if (disposed)
+				return;
+
+			stop();
+			disposed = true;
+			for (int i = 0; i < collTracks.size(); i++) {
+				final Track t = collTracks.get(i);
+				t.clear(msgs, bundles);
+			}
+			collTracks.clear();
+			spare.clear();
+
+			final Set<Buffer> releasing = new HashSet<>();
+			for (int i = 0; i < collReleasing.size(); i++) {
+				final Entry e = collReleasing.get(i);
+				// free after the pending bundle which closes the buffer
+				final OSCBundle bndl = new OSCBundle();
+				bndl.setTimeTagRaw(PacketUtil.timeTag(e.track.baseTime, e.offset));
+				bndl.addPacket(e.buf.freeMsg());
+				bundles.add(bndl);
+				releasing.add(e.buf);
+			}
+			collReleasing.clear();
+			for (int i = 0; i < buffers.length; i++) {
+				if (!releasing.contains(buffers[i]))
+					msgs.add(buffers[i].freeMsg());
+			}
+		}
+		PacketUtil.sendBundled(server, msgs);
+		for (int i = 0; i < bundles.size(); i++) {
+			server.sendBundle(bundles.get(i));
+		}
+	}
+
+	// sync: caller must hold sync
+	private OSCBundle startBundle(Entry e, boolean immediately) {
+		final int numArgs = e.argNames == null ? 0 : e.argNames.length;
+		final String[] argNames = new String[numArgs + 1];
+		final float[] argValues = new float[numArgs + 1];
+
+		argNames[0] = bufCtrlName;
+		argValues[0] = e.buf.getBufNum();
+		for (int i = 0; i < numArgs; i++) {
+			argNames[i + 1] = e.argNames[i];
+			argValues[i + 1] = e.argValues[i];
+		}
+		e.synth = Synth.basicNew(defName, server);
+
+		final OSCBundle bndl = new OSCBundle();
+		if (!immediately)
+			bndl.setTimeTagRaw(PacketUtil.timeTag(e.track.baseTime, e.offset));
+		bndl.addPacket(e.synth.newMsg(target, argNames, argValues, addAction));
+		return bndl;
+	}
+
+	// sync: caller must hold sync
+	private OSCBundle stopBundle(Entry e) {
+		final OSCBundle bndl = new OSCBundle();
+		bndl.setTimeTagRaw(PacketUtil.timeTag(e.track.baseTime, e.offset + e.duration));
+		bndl.addPacket(e.synth.freeMsg());
+		return bndl;
+	}
+
+	private void cue(final Entry e, float timeout) throws IOException {
+		final Buffer buf = e.buf;
+		final OSCMessage msg = buf.cueSoundFileMsg(e.path, e.fileStartFrame, null);
+
+		BufferTransfer.sendAsync(buf, msg, null, timeout).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void v, Throwable failure) {
+				synchronized (sync) {
+					if (e.state != Entry.CUEING)
+						return; // cancelled, buffer was already handled
+
+					if (failure != null) {
+						Server.getPrintStream().println("DiskStreamer: cannot cue " + e.path + " : " + failure);
+						numCueFailures++;
+						e.state = Entry.DONE;
+						spare.add(buf);
+						e.buf = null;
+					} else {
+						e.state = Entry.READY;
+					}
+				}
+			}
+		});
+	}
+
+	// ----------- internal classes -----------
+
+	/**
+	 * A sequence of sound files which are played one after another on the same
+	 * stream. Files must be added in order of their start times.
+	 */
+	public class Track {
+		protected final long baseTime;
+		protected final LinkedList<Entry> entries = new LinkedList<>(); // synchronized through 'sync'
+		protected double endOffset = 0.0; // synchronized through 'sync'
+		protected long numStarted = 0; // synchronized through 'sync'
+		protected long numUnderruns = 0; // synchronized through 'sync'
+
+		protected Track(long baseTime) {
+			this.baseTime = baseTime;
+		}
+
+		public long getBaseTime() {
+			return baseTime;
+		}
+
+		/**
+		 * Adds a sound file which starts where the previously added file ends. The
+		 * duration is determined by reading the sound file's header, hence the
+		 * file must be accessible from the client.
+		 *
+		 * @param path
+		 *            the path to the sound file, as seen by the server
+		 *
+		 * @throws IOException
+		 *             if the sound file's header cannot be read
+		 */
+		public void append(String path) throws IOException {
+			append(path, SoundFile.probe(path).getDuration());
+		}
+
+		/**
+		 * Adds a sound file which starts where the previously added file ends.
+		 *
+		 * @param path
+		 *            the path to the sound file, as seen by the server
+		 * @param duration
+		 *            the duration in seconds to play
+		 */
+		public void append(String path, double duration) {
+			synchronized (sync) {
+				add(path, 0L, endOffset, duration, null, null);
+			}
+		}
+
+		/**
+		 * Adds a sound file.
+		 *
+		 * @param path
+		 *            the path to the sound file, as seen by the server
+		 * @param fileStartFrame
+		 *            the frame offset into the sound file
+		 * @param offset
+		 *            the start time in seconds, relative to the track's base time
+		 * @param duration
+		 *            the duration in seconds to play
+		 * @param argNames
+		 *            the names of additional controls to set, or <code>null</code>
+		 * @param argValues
+		 *            the values corresponding to <code>argNames</code>, or
+		 *            <code>null</code>
+		 */
+		public void add(String path, long fileStartFrame, double offset, double duration, String[] argNames,
+				float[] argValues) {
+			if (duration <= 0)
+				throw new IllegalArgumentException("duration must be greater than zero");
+
+			synchronized (sync) {
+				if (disposed)
+					throw new IllegalStateException("Streamer was disposed");
+				if (!entries.isEmpty() && (offset < entries.getLast().offset))
+					throw new IllegalArgumentException("Files must be added in chronological order");
+
+				entries.add(new Entry(this, path, fileStartFrame, offset, duration, argNames, argValues));
+				endOffset = Math.max(endOffset, offset + duration);
+			}
+		}
+
+		/**
+		 * Returns the number of files which have not yet finished playing.
+		 */
+		public int getNumPending() {
+			synchronized (sync) {
+				return entries.size();
+			}
+		}
+
+		/**
+		 * Returns the number of files of this track started so far.
+		 */
+		public long getNumStarted() {
+			synchronized (sync) {
+				return numStarted;
+			}
+		}
+
+		/**
+		 * Returns the number of files of this track whose cue was not completed
+		 * in time.
+		 */
+		public long getNumUnderruns() {
+			synchronized (sync) {
+				return numUnderruns;
+			}
+		}
+
+		/**
+		 * Stops playback of the track and removes all of its files. Their buffers
+		 * are closed and returned to the streamer. A file whose synth is scheduled
+		 * but has not yet started is stopped at its start time, and its buffer is
+		 * returned one latency period later.
+		 */
+		public void cancel() throws IOException {
+			final List<OSCMessage> msgs = new ArrayList<>();
+			final List<OSCBundle> bundles = new ArrayList<>();
+
+			synchronized (sync) {
+				clear(msgs, bundles);
+				collTracks.remove(this);
+			}
+			PacketUtil.sendBundled(server, msgs);
+			for (int i = 0; i < bundles.size(); i++) {
+				server.sendBundle(bundles.get(i));
+			}
+		}
+
+		// sync: caller must hold sync
+		protected void clear(List<OSCMessage> msgs, List<OSCBundle> bundles) {
+			final long now = System.currentTimeMillis();
+
+			for (int i = 0; i < entries.size(); i++) {
+				final Entry e = entries.get(i);
+				if ((e.state == Entry.PLAYING) && (now < e.startMillis)) {
+					// the time tagged /s_new is still pending, so an immediate /n_free
+					// would fail and the synth would play whatever is cued next on its
+					// buffer. thus free the synth and close the buffer when it starts,
+					// and keep the buffer out of the spares until then
+					final OSCBundle bndl = new OSCBundle();
+					bndl.setTimeTagRaw(PacketUtil.timeTag(e.track.baseTime, e.offset));
+					bndl.addPacket(e.synth.freeMsg());
+					bndl.addPacket(e.buf.closeMsg());
+					bundles.add(bndl);
+					collReleasing.add(e);
+					e.state = Entry.DONE;
+					continue;
+				}
+				if (e.state == Entry.PLAYING)
+					msgs.add(e.synth.freeMsg());
+				if (e.buf != null) {
+					// the server processes the close after a pending cue
+					msgs.add(e.buf.closeMsg());
+					spare.add(e.buf);
+					e.buf = null;
+				}
+				e.state = Entry.DONE;
+			}
+			entries.clear();
+		}
+	}
+
+	private static class Entry {
+		protected static final int QUEUED = 0;
+		protected static final int CUEING = 1;
+		protected static final int READY = 2;
+		protected static final int PLAYING = 3;
+		protected static final int DONE = 4;
+
+		protected final Track track;
+		protected final String path;
+		protected final long fileStartFrame;
+		protected final double offset;
+		protected final double duration;
+		protected final long startMillis;
+		protected final long endMillis;
+		protected final String[] argNames;
+		protected final float[] argValues;
+
+		// all of the following are synchronized through the streamer's 'sync'
+		protected int state = QUEUED;
+		protected Buffer buf = null;
+		protected Synth synth = null;
+		protected boolean late = false;
+		protected boolean stalled = false;
+
+		protected Entry(Track track, String path, long fileStartFrame, double offset, double duration,
+				String[] argNames, float[] argValues) {
+			this.track = track;
+			this.path = path;
+			this.fileStartFrame = fileStartFrame;
+			this.offset = offset;
+			this.duration = duration;
+			this.argNames = argNames;
+			this.argValues = argValues;
+
+			startMillis = track.baseTime + (long) (offset * 1000);
+			endMillis = track.baseTime + (long) ((offset + duration) * 1000);
+		}
+	}
+}
@@ -11,6 +11,7 @@ package de.sciss.jcollider;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.tree.TreeNode;
 
@@ -1418,6 +1419,40 @@ public abstract class Node implements Constants, TreeNode {
 		watcher.register(this, assumePlaying);
 	}
 
+	/**
+	 * Returns a future which is completed when the server reports that this node
+	 * has been created (<code>/n_go</code>). The node need not be registered.
+	 * Like with <code>register</code>, this should be called before the node's
+	 * new-message is sent to the server.
+	 *
+	 * @return a future completed with the <code>NodeEvent.GO</code> event, or
+	 *         completed exceptionally if the node ends before the event has been
+	 *         received
+	 *
+	 * @throws IOException
+	 *             if the server's node watcher could not be started
+	 *
+	 * @see NodeWatcher#waitForGo( int )
+	 */
+	public CompletableFuture<NodeEvent> onGo() throws IOException {
+		return NodeWatcher.newFrom(getServer()).waitForGo(getNodeID());
+	}
+
+	/**
+	 * Returns a future which is completed when the server reports that this node
+	 * has ended (<code>/n_end</code>). The node need not be registered.
+	 *
+	 * @return a future completed with the <code>NodeEvent.END</code> event
+	 *
+	 * @throws IOException
+	 *             if the server's node watcher could not be started
+	 *
+	 * @see NodeWatcher#waitForEnd( int )
+	 */
+	public CompletableFuture<NodeEvent> onEnd() throws IOException {
+		return NodeWatcher.newFrom(getServer()).waitForEnd(getNodeID());
+	}
+
 	/**
 	 * Moves the node before another node in the server graph.
 	 *
@@ -0,0 +1,573 @@
+/*
+ * NodeBatch.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+
+/**
+ * Collects control operations on arbitrary nodes and sends them with as few
+ * packets as possible. This is useful when many individually addressed nodes
+ * have to be changed at once, which would otherwise require one datagram per
+ * node.
+ * <p>
+ * The control operations of each node are kept in the order in which they were
+ * called, and successive operations of the same kind are merged: a run of
+ * <code>set</code> calls becomes a single <code>/n_set</code> message (setting
+ * the same control twice keeps the last value), likewise for
+ * <code>/n_setn</code> and <code>/n_map</code>. The order matters, because the
+ * server unmaps a control when it is set, and later values overwrite earlier
+ * ones. All run flags and all frees are merged into single <code>/n_run</code>
+ * and <code>/n_free</code> messages. The messages are emitted in this order: per
+ * node (in the order in which the nodes were first used) the control messages,
+ * then all moves in the order in which they were added, then the run message and
+ * finally the free message.
+ * <p>
+ * The messages are then packed into bundles which do not exceed the maximum
+ * bundle size. Messages that are too large are split. A <code>setn</code> of
+ * more values than fit into one message is split into several ranges, which
+ * requires the control to be given by index (or by a name which
+ * <code>ControlIndexCache</code> resolves).
+ * <p>
+ * If a time tag is specified, all bundles carry the same time tag, so the
+ * server applies them in the same control block, provided they arrive in time.
+ * For control names of synths whose definition is registered with
+ * <code>ControlIndexCache</code>, control indices are sent instead.
+ * <p>
+ * Example:
+ *
+ * <PRE>
+ * NodeBatch batch = new NodeBatch(myServer);
+ * for (int i = 0; i &lt; synths.length; i++) {
+ * 	batch.set(synths[i], "freq", freqs[i]).set(synths[i], "amp", 0.1f);
+ * }
+ * batch.send();
+ * </PRE>
+ *
+ * @synchronization not thread safe
+ */
+public class NodeBatch {
+	private final Server server;
+	private final Map<Integer, NodeOps> mapNodeOps = new LinkedHashMap<>();
+	private final List<OSCMessage> collMoves = new ArrayList<>();
+	private final Map<Integer, Boolean> mapRun = new LinkedHashMap<>();
+	private final Set<Integer> setFree = new LinkedHashSet<>();
+
+	private long timeTag = OSCBundle.NOW;
+	private int maxBundleSize = PacketUtil.UDP_SAFE_SIZE;
+
+	public NodeBatch(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Sets a control of a node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch set(Node node, String ctrlName, float value) {
+		final int idx = resolve(node, ctrlName);
+		if (idx >= 0)
+			return set(node, idx, value);
+
+		invalidate(node, -1, 0);
+		return put(node, "/n_set", ctrlName, new Float(value));
+	}
+
+	/**
+	 * Sets a control of a node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch set(Node node, int ctrlIdx, float value) {
+		invalidate(node, ctrlIdx, 1);
+		return put(node, "/n_set", new Integer(ctrlIdx), new Float(value));
+	}
+
+	/**
+	 * Sets a range of successive controls of a node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch setn(Node node, String ctrlName, float[] values) {
+		final int idx = resolve(node, ctrlName);
+		if (idx >= 0)
+			return setn(node, idx, values);
+
+		invalidate(node, -1, 0);
+		opsFor(node).runFor("/n_setn").collSetn.add(new Object[] { ctrlName, values.clone() });
+		return this;
+	}
+
+	/**
+	 * Sets a range of successive controls of a node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch setn(Node node, int ctrlIdx, float[] values) {
+		invalidate(node, ctrlIdx, values.length);
+		opsFor(node).runFor("/n_setn").collSetn.add(new Object[] { new Integer(ctrlIdx), values.clone() });
+		return this;
+	}
+
+	/**
+	 * Maps a control of a node to a control bus.
+	 *
+	 * @param busIndex
+	 *            the index of the control bus, or <code>-1</code> to undo the
+	 *            mapping
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch map(Node node, String ctrlName, int busIndex) {
+		final int idx = resolve(node, ctrlName);
+		if (idx >= 0)
+			return map(node, idx, busIndex);
+
+		invalidate(node, -1, 0);
+		return put(node, "/n_map", ctrlName, new Integer(busIndex));
+	}
+
+	/**
+	 * Maps a control of a node to a control bus.
+	 *
+	 * @param busIndex
+	 *            the index of the control bus, or <code>-1</code> to undo the
+	 *            mapping
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch map(Node node, int ctrlIdx, int busIndex) {
+		invalidate(node, ctrlIdx, 1);
+		return put(node, "/n_map", new Integer(ctrlIdx), new Integer(busIndex));
+	}
+
+	/**
+	 * Maps a control of a node to a control bus.
+	 *
+	 * @param bus
+	 *            the control bus, or <code>null</code> to undo the mapping
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch map(Node node, String ctrlName, Bus bus) {
+		return map(node, ctrlName, bus == null ? -1 : bus.getIndex());
+	}
+
+	/**
+	 * Pauses or resumes a node. If this is called several times for the same node,
+	 * the last flag wins.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch run(Node node, boolean flag) {
+		final Integer key = new Integer(node.getNodeID());
+		mapRun.remove(key); // moves the node to the end
+		mapRun.put(key, Boolean.valueOf(flag));
+		return this;
+	}
+
+	/**
+	 * Frees a node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch free(Node node) {
+		setFree.add(new Integer(node.getNodeID()));
+		return this;
+	}
+
+	/**
+	 * Moves a node before another node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch moveBefore(Node node, Node aNode) {
+		collMoves.add(node.moveBeforeMsg(aNode));
+		return this;
+	}
+
+	/**
+	 * Moves a node after another node.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch moveAfter(Node node, Node aNode) {
+		collMoves.add(node.moveAfterMsg(aNode));
+		return this;
+	}
+
+	/**
+	 * Moves a node to the head of a group.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch moveToHead(Node node, Group aGroup) {
+		collMoves.add(node.moveToHeadMsg(aGroup));
+		return this;
+	}
+
+	/**
+	 * Moves a node to the tail of a group.
+	 *
+	 * @return this batch, to allow chaining of calls
+	 */
+	public NodeBatch moveToTail(Node node, Group aGroup) {
+		collMoves.add(node.moveToTailMsg(aGroup));
+		return this;
+	}
+
+	/**
+	 * Specifies the time at which the batch is to be applied by the server.
+	 *
+	 * @param when
+	 *            the time in milliseconds since 1-Jan-1970, as returned by
+	 *            <code>System.currentTimeMillis()</code>
+	 */
+	public void setTime(long when) {
+		timeTag = PacketUtil.timeTag(when, 0.0);
+	}
+
+	/**
+	 * Specifies the raw OSC time tag of the bundles. The default is
+	 * <code>OSCBundle.NOW</code>, i.e. the batch is applied immediately.
+	 */
+	public void setTimeTagRaw(long timeTag) {
+		this.timeTag = timeTag;
+	}
+
+	public long getTimeTagRaw() {
+		return timeTag;
+	}
+
+	/**
+	 * Specifies the maximum encoded size of each bundle in bytes. The default is
+	 * the size which safely fits into a single UDP datagram.
+	 */
+	public void setMaxBundleSize(int numBytes) {
+		maxBundleSize = numBytes;
+	}
+
+	public int getMaxBundleSize() {
+		return maxBundleSize;
+	}
+
+	public boolean isEmpty() {
+		return mapNodeOps.isEmpty() && collMoves.isEmpty() && mapRun.isEmpty() && setFree.isEmpty();
+	}
+
+	/**
+	 * Removes all operations from the batch. The time tag and the maximum bundle
+	 * size are kept.
+	 */
+	public void clear() {
+		mapNodeOps.clear();
+		collMoves.clear();
+		mapRun.clear();
+		setFree.clear();
+	}
+
+	/**
+	 * Sends the batch to the server and clears it.
+	 *
+	 * @return the number of bundles sent
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the bundles
+	 */
+	public int send() throws IOException {
+		final List<OSCBundle> bundles = getBundles();
+
+		for (int i = 0; i < bundles.size(); i++) {
+			server.sendBundle(bundles.get(i));
+		}
+		clear();
+		return bundles.size();
+	}
+
+	/**
+	 * Encodes the batch into bundles without sending it.
+	 *
+	 * @return the list of bundles, in the order in which they should be sent
+	 *
+	 * @throws IllegalStateException
+	 *             if a <code>setn</code> by an unresolved control name does not
+	 *             fit into a single message
+	 */
+	public List<OSCBundle> getBundles() {
+		final int maxMsgSize = maxBundleSize - PacketUtil.BUNDLE_OVERHEAD - 4;
+		final int maxSetnValues = maxSetnValues(maxMsgSize);
+		final List<OSCMessage> msgs = new ArrayList<>();
+		final List<Object[]> items = new ArrayList<>();
+
+		for (Iterator<Map.Entry<Integer, NodeOps>> iter = mapNodeOps.entrySet().iterator(); iter.hasNext();) {
+			final Map.Entry<Integer, NodeOps> entry = iter.next();
+			final Object[] head = new Object[] { entry.getKey() };
+			final NodeOps ops = entry.getValue();
+
+			for (int i = 0; i < ops.collRuns.size(); i++) {
+				final Run run = ops.collRuns.get(i);
+
+				if (run.collSetn != null) {
+					for (int j = 0; j < run.collSetn.size(); j++) {
+						final Object[] op = run.collSetn.get(j);
+						addSetnItems(items, resolveKey(ops.node, op[0]), (float[]) op[1], maxSetnValues);
+					}
+				} else {
+					for (Iterator<Map.Entry<Object, Object>> iter2 = normalize(ops.node, run.mapValues).entrySet()
+							.iterator(); iter2.hasNext();) {
+						final Map.Entry<Object, Object> e2 = iter2.next();
+						items.add(new Object[] { e2.getKey(), e2.getValue() });
+					}
+				}
+				addChunked(msgs, run.cmd, head, items, maxMsgSize);
+			}
+		}
+
+		msgs.addAll(collMoves);
+
+		if (!mapRun.isEmpty()) {
+			for (Iterator<Map.Entry<Integer, Boolean>> iter = mapRun.entrySet().iterator(); iter.hasNext();) {
+				final Map.Entry<Integer, Boolean> entry = iter.next();
+				items.add(new Object[] { entry.getKey(), new Integer(entry.getValue().booleanValue() ? 1 : 0) });
+			}
+			addChunked(msgs, "/n_run", null, items, maxMsgSize);
+		}
+
+		if (!setFree.isEmpty()) {
+			for (Iterator<Integer> iter = setFree.iterator(); iter.hasNext();) {
+				items.add(new Object[] { iter.next() });
+			}
+			addChunked(msgs, "/n_free", null, items, maxMsgSize);
+		}
+
+		return pack(msgs);
+	}
+
+	// packs the messages into as few bundles as possible, preserving their order
+	private List<OSCBundle> pack(List<OSCMessage> msgs) {
+		final List<OSCBundle> result = new ArrayList<>();
+		OSCBundle bndl = null;
+		int bndlSize = 0;
+
+		for (int i = 0; i < msgs.size(); i++) {
+			final OSCMessage msg = msgs.get(i);
+			final int msgSize = 4 + PacketUtil.messageSize(msg);
+
+			if ((bndl == null) || ((bndlSize + msgSize > maxBundleSize) && (bndl.getPacketCount() > 0))) {
+				bndl = new OSCBundle();
+				bndl.setTimeTagRaw(timeTag);
+				bndlSize = PacketUtil.BUNDLE_OVERHEAD;
+				result.add(bndl);
+			}
+			bndl.addPacket(msg);
+			bndlSize += msgSize;
+		}
+		return result;
+	}
+
+	// creates messages consisting of the head arguments followed by as many
+	// items as fit into maxMsgSize. clears the items list.
+	private static void addChunked(List<OSCMessage> msgs, String cmd, Object[] head, List<Object[]> items,
+			int maxMsgSize) {
+		final int numHead = head == null ? 0 : head.length;
+		final int cmdSize = PacketUtil.pad4(cmd.length() + 1);
+		final List<Object> args = new ArrayList<>();
+		int headSize = 0;
+		int dataSize;
+
+		for (int i = 0; i < numHead; i++) {
+			headSize += PacketUtil.argSize(head[i]);
+		}
+		dataSize = headSize;
+
+		for (int i = 0; i < items.size(); i++) {
+			final Object[] item = items.get(i);
+			int itemSize = 0;
+			for (int j = 0; j < item.length; j++) {
+				itemSize += PacketUtil.argSize(item[j]);
+			}
+
+			final int numArgs = numHead + args.size() + item.length;
+			if ((args.size() > 0) && (cmdSize + PacketUtil.pad4(numArgs + 2) + dataSize + itemSize > maxMsgSize)) {
+				msgs.add(createMessage(cmd, head, args));
+				args.clear();
+				dataSize = headSize;
+			}
+			for (int j = 0; j < item.length; j++) {
+				args.add(item[j]);
+			}
+			dataSize += itemSize;
+		}
+		if (args.size() > 0) {
+			msgs.add(createMessage(cmd, head, args));
+		}
+		items.clear();
+	}
+
+	private static OSCMessage createMessage(String cmd, Object[] head, List<Object> args) {
+		final int numHead = head == null ? 0 : head.length;
+		final Object[] allArgs = new Object[numHead + args.size()];
+
+		for (int i = 0; i < numHead; i++) {
+			allArgs[i] = head[i];
+		}
+		for (int i = 0, j = numHead; i < args.size(); i++) {
+			allArgs[j++] = args.get(i);
+		}
+		return new OSCMessage(cmd, allArgs);
+	}
+
+	// adds the items of a setn, split into ranges of at most maxValues
+	private static void addSetnItems(List<Object[]> items, Object ctrl, float[] values, int maxValues) {
+		if ((values.length > maxValues) && !(ctrl instanceof Integer))
+			throw new IllegalStateException("setn of control '" + ctrl + "' with " + values.length
+					+ " values exceeds the maximum message size");
+
+		for (int off = 0; off < values.length || off == 0; off += maxValues) {
+			final int num = Math.min(maxValues, values.length - off);
+			final Object[] item = new Object[num + 2];
+
+			item[0] = off == 0 ? ctrl : new Integer(((Integer) ctrl).intValue() + off);
+			item[1] = new Integer(num);
+			for (int i = 0, j = 2; i < num; i++) {
+				item[j++] = new Float(values[off + i]);
+			}
+			items.add(item);
+		}
+	}
+
+	// the maximum number of values of a single /n_setn item addressed by index
+	// which fits into maxMsgSize
+	private static int maxSetnValues(int maxMsgSize) {
+		final int cmdSize = PacketUtil.pad4("/n_setn".length() + 1);
+		// node ID, control index, count + values
+		int n = (maxMsgSize - cmdSize - 16) / 5;
+		while ((n > 1) && (cmdSize + PacketUtil.pad4(n + 5) + ((n + 3) << 2) > maxMsgSize))
+			n--;
+		return Math.max(1, n);
+	}
+
+	// replaces control names by indices where they are known by now, so that
+	// a name and an index of the same control do not both survive
+	private static Map<Object, Object> normalize(Node node, Map<Object, Object> mapValues) {
+		final Map<Object, Object> result = new LinkedHashMap<>();
+
+		for (Iterator<Map.Entry<Object, Object>> iter = mapValues.entrySet().iterator(); iter.hasNext();) {
+			final Map.Entry<Object, Object> e = iter.next();
+			final Object key = resolveKey(node, e.getKey());
+			result.remove(key); // the last write wins
+			result.put(key, e.getValue());
+		}
+		return result;
+	}
+
+	private static Object resolveKey(Node node, Object key) {
+		if (key instanceof String) {
+			final int idx = resolve(node, (String) key);
+			if (idx >= 0)
+				return new Integer(idx);
+		}
+		return key;
+	}
+
+	private NodeBatch put(Node node, String cmd, Object key, Object value) {
+		final Map<Object, Object> m = opsFor(node).runFor(cmd).mapValues;
+
+		m.remove(key); // keeps the order of the last writes
+		m.put(key, value);
+		return this;
+	}
+
+	private NodeOps opsFor(Node node) {
+		final Integer key = new Integer(node.getNodeID());
+		NodeOps ops = mapNodeOps.get(key);
+
+		if (ops == null) {
+			ops = new NodeOps(node);
+			mapNodeOps.put(key, ops);
+		}
+		return ops;
+	}
+
+	private static int resolve(Node node, String ctrlName) {
+		if (!(node instanceof Synth))
+			return -1;
+
+		final ControlIndexCache cache = ((Synth) node).getControlIndexCache();
+		return cache == null ? -1 : cache.indexOf(ctrlName);
+	}
+
+	// the batch bypasses the synth's message factories, so we have to
+	// keep its control shadow consistent. ctrlIdx -1 invalidates all controls
+	private static void invalidate(Node node, int ctrlIdx, int numControls) {
+		if (!(node instanceof Synth))
+			return;
+
+		if (ctrlIdx < 0) {
+			((Synth) node).invalidateShadow();
+		} else {
+			((Synth) node).invalidateShadow(ctrlIdx, numControls);
+		}
+	}
+
+	// ----------- internal classes -----------
+
+	private static class NodeOps {
+		protected final Node node;
+		// the control operations in call order
+		protected final List<Run> collRuns = new ArrayList<>();
+
+		protected NodeOps(Node node) {
+			this.node = node;
+		}
+
+		// returns the last run if it has the same command, otherwise starts a new one
+		protected Run runFor(String cmd) {
+			if (!collRuns.isEmpty()) {
+				final Run last = collRuns.get(collRuns.size() - 1);
+				if (last.cmd.equals(cmd))
+					return last;
+			}
+			final Run run = new Run(cmd);
+			collRuns.add(run);
+			return run;
+		}
+	}
+
+	// successive operations of the same command, merged into one message
+	private static class Run {
+		protected final String cmd;
+		// /n_set and /n_map : control name (String) or index (Integer) to value
+		protected final Map<Object, Object> mapValues;
+		// /n_setn : control name or index and float[] values, in call order
+		protected final List<Object[]> collSetn;
+
+		protected Run(String cmd) {
+			this.cmd = cmd;
+			if (cmd.equals("/n_setn")) {
+				mapValues = null;
+				collSetn = new ArrayList<>();
+			} else {
+				mapValues = new LinkedHashMap<>();
+				collSetn = null;
+			}
+		}
+	}
+}
@@ -9,9 +9,26 @@
 
 package de.sciss.jcollider;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Quite a 1:1 translation from SClang, this is used as the default node
  * allocator by the server.
+ * <p>
+ * Allocation is lock-free: the temporary ID counter is advanced with atomic
+ * compare-and-set operations. To further reduce contention between threads
+ * which allocate many IDs, each thread can reserve a contiguous range of IDs at
+ * once (see <code>setThreadBlockSize</code>), or ranges can be requested
+ * explicitly using <code>allocBlock</code>.
+ * <p>
+ * By default, the temporary IDs wrap around to the minimum ID when the maximum
+ * is exceeded, which may collide with long-lived nodes. When recycling is
+ * enabled (see <code>setRecycling</code>), the allocator never wraps. Instead,
+ * IDs of nodes that have ended are collected (a <code>NodeWatcher</code> on the
+ * server reports all incoming <code>/n_end</code> notifications) and handed
+ * out again.
  * 
  * TODO allocPerm should be more generally available from other classes such as
  * Synth and Group, because it can be vital to sound installation programming
@@ -22,12 +39,29 @@ package de.sciss.jcollider;
  *
  * @author Hanns Holger Rutz
  * @version 0.31, 08-Oct-07
+ *
+ * @synchronization all methods are thread safe
  */
 public class NodeIDAllocator {
 	private final int user;
-	private int mask;
-	private int temp;
-	private int perm;
+	private final int mask;
+	private final AtomicInteger temp = new AtomicInteger();
+	private final AtomicInteger perm = new AtomicInteger();
+
+	// incremented by reset() to invalidate the thread blocks
+	private volatile int generation = 0;
+	private volatile int threadBlockSize = 1;
+	private final ThreadLocal<int[]> threadBlocks = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[] { 0, 0, -1 }; // next, stop, generation
+		}
+	};
+
+	private volatile boolean recycling = false;
+	private volatile int recycleThreshold = 1024;
+	private final Queue<Integer> recycled = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger numRecycled = new AtomicInteger();
 
 	private static final int MASK_SHIFT = 26;
 	private static final int USER_MAX = (1 << (32 - MASK_SHIFT)) - 1; // := 31
@@ -45,44 +79,201 @@ public class NodeIDAllocator {
 			throw new IllegalArgumentException("NodeIDAllocator user ID > " + USER_MAX);
 
 		this.user = user;
+		mask = user << MASK_SHIFT;
 		reset();
 	}
 
 	public void reset() {
 		synchronized (this) {
-			mask = user << MASK_SHIFT;
-			temp = TEMP_MIN;
-			perm = PERM_MIN;
+			temp.set(TEMP_MIN);
+			perm.set(PERM_MIN);
+			recycled.clear();
+			numRecycled.set(0);
+			generation++;
 		}
 	}
 
 	public int alloc() {
-		synchronized (this) {
-			final int result = temp | mask;
+		if (recycling && (numRecycled.get() > recycleThreshold)) {
+			final int id = pollRecycled();
+			if (id != -1)
+				return id;
+		}
 
-			if (++temp > TEMP_MAX) {
-				temp = TEMP_MIN;
-				System.err.println("Warning: NodeIDAllocator exceeded maximum node ID!");
+		final int blockSize = threadBlockSize;
+		if (blockSize > 1) {
+			final int[] block = threadBlocks.get();
+			if ((block[2] != generation) || (block[0] >= block[1])) {
+				final int start = nextTemp(blockSize);
+				if (start == -1)
+					return allocExhausted();
+				block[0] = start;
+				block[1] = start + blockSize;
+				block[2] = generation;
 			}
-			return result;
+			return block[0]++ | mask;
 		}
+
+		final int raw = nextTemp(1);
+		return raw == -1 ? allocExhausted() : raw | mask;
+	}
+
+	/**
+	 * Reserves a contiguous range of temporary node IDs.
+	 *
+	 * @param n
+	 *            the number of IDs to reserve
+	 * @return the first ID of the range. the range consists of the IDs
+	 *         <code>result</code> until <code>result + n - 1</code>
+	 *
+	 * @throws IllegalStateException
+	 *             if recycling is enabled and the temporary ID range is exhausted
+	 */
+	public int allocBlock(int n) {
+		if ((n <= 0) || (n > TEMP_MAX - TEMP_MIN))
+			throw new IllegalArgumentException("Illegal block size " + n);
+
+		final int raw = nextTemp(n);
+		if (raw == -1)
+			throw new IllegalStateException("NodeIDAllocator exceeded maximum node ID");
+
+		return raw | mask;
 	}
 
 	public int allocPerm() {
-		synchronized (this) {
-			final int result = perm | mask;
+		final int raw = perm.getAndIncrement();
 
-			if (++perm > PERM_MAX) {
-				perm = PERM_MAX;
-				System.err.println(
-						"Warning: NodeIDAllocator exceeded maximum permanent node ID!\n" + "Assigning temporary ID!");
-				return alloc();
-			}
-			return result;
+		if (raw > PERM_MAX) {
+			perm.set(PERM_MAX + 1);
+			System.err.println(
+					"Warning: NodeIDAllocator exceeded maximum permanent node ID!\n" + "Assigning temporary ID!");
+			return alloc();
 		}
+		return raw | mask;
+	}
+
+	/**
+	 * Returns a node ID to the allocator after the node has ended. This has no
+	 * effect unless recycling is enabled. IDs which do not belong to this
+	 * allocator's temporary range are ignored.
+	 *
+	 * @param nodeID
+	 *            the ID of a node which does not exist any more on the server
+	 *
+	 * @see #setRecycling( boolean )
+	 */
+	public void free(int nodeID) {
+		if (!recycling || ((nodeID & ~TEMP_MAX) != mask))
+			return;
+
+		final int raw = nodeID & TEMP_MAX;
+		if ((raw >= TEMP_MIN) && (raw < temp.get())) {
+			recycled.offer(new Integer(nodeID));
+			numRecycled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Enables or disables the recycling of node IDs. When recycling is enabled,
+	 * temporary IDs never wrap around. Instead, the IDs of ended nodes are reused,
+	 * once more than <code>getRecycleThreshold()</code> of them are waiting, or
+	 * when the temporary range is exhausted.
+	 *
+	 * @param onOff
+	 *            <code>true</code> to enable recycling
+	 *
+	 * @see #free( int )
+	 */
+	public void setRecycling(boolean onOff) {
+		recycling = onOff;
+		if (!onOff) {
+			recycled.clear();
+			numRecycled.set(0);
+		}
+	}
+
+	public boolean isRecycling() {
+		return recycling;
+	}
+
+	/**
+	 * Specifies how many ended IDs are kept back before they are reused. A high
+	 * threshold reduces the chance of late messages, addressed to an ended node,
+	 * arriving at a new node with the same ID. The default is <code>1024</code>.
+	 *
+	 * @param numIDs
+	 *            the number of ended IDs which are kept back
+	 */
+	public void setRecycleThreshold(int numIDs) {
+		recycleThreshold = numIDs;
+	}
+
+	public int getRecycleThreshold() {
+		return recycleThreshold;
+	}
+
+	/**
+	 * Specifies the number of IDs each thread reserves at once when calling
+	 * <code>alloc</code>. Successive calls from the same thread then do not touch
+	 * shared state until the thread's range is used up. Note that this means the
+	 * IDs handed out to different threads are not strictly increasing in time.
+	 * The default is <code>1</code> (no reservation).
+	 *
+	 * @param n
+	 *            the number of IDs to reserve per thread
+	 */
+	public void setThreadBlockSize(int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("Illegal block size " + n);
+
+		threadBlockSize = n;
+	}
+
+	public int getThreadBlockSize() {
+		return threadBlockSize;
 	}
 
 	public static int getUserMax() {
 		return USER_MAX;
 	}
+
+	// returns the raw (unmasked) start ID or -1 if recycling is enabled and
+	// the temporary range is exhausted
+	private int nextTemp(int n) {
+		while (true) {
+			final int current = temp.get();
+			final int start;
+			final boolean wrap = current + n - 1 > TEMP_MAX;
+
+			if (wrap) {
+				if (recycling)
+					return -1;
+				start = TEMP_MIN;
+			} else {
+				start = current;
+			}
+			if (temp.compareAndSet(current, start + n)) {
+				if (wrap)
+					System.err.println("Warning: NodeIDAllocator exceeded maximum node ID!");
+				return start;
+			}
+		}
+	}
+
+	private int pollRecycled() {
+		final Integer id = recycled.poll();
+		if (id == null)
+			return -1;
+
+		numRecycled.decrementAndGet();
+		return id.intValue();
+	}
+
+	private int allocExhausted() {
+		final int id = pollRecycled();
+		if (id == -1)
+			throw new IllegalStateException("NodeIDAllocator exceeded maximum node ID and no ended IDs are available");
+
+		return id;
+	}
 }
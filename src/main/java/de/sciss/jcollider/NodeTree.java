@@ -0,0 +1,346 @@
+/*
+ * NodeTree.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the node tree as known by a <code>NodeWatcher</code>.
+ * Unlike the fields of <code>Node</code>, which may only be read in the event
+ * thread, a snapshot can be read from any thread without synchronization.
+ * <p>
+ * Snapshots are persistent: each update creates a new snapshot which shares
+ * all unchanged parts with its predecessor. Internally, the entries are stored
+ * in a hash array mapped trie keyed by node ID, so lookups and updates take a
+ * constant number of steps (at most seven levels) regardless of the number of
+ * nodes.
+ *
+ * @synchronization all methods are thread safe
+ *
+ * @see NodeWatcher#getSnapshot()
+ */
+public final class NodeTree {
+	/**
+	 * The snapshot without any nodes
+	 */
+	public static final NodeTree EMPTY = new NodeTree(null, 0);
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private final Object root; // null, Entry or Branch
+	private final int size;
+
+	private NodeTree(Object root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of nodes in the snapshot.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Looks up a node.
+	 *
+	 * @param nodeID
+	 *            the ID of the node
+	 * @return the node's entry or <code>null</code>, if the node is not part of
+	 *         the snapshot
+	 */
+	public Entry get(int nodeID) {
+		Object n = root;
+
+		for (int shift = 0; n instanceof Branch; shift += BITS) {
+			final Branch b = (Branch) n;
+			final int bit = bit(nodeID, shift);
+
+			if ((b.bitmap & bit) == 0)
+				return null;
+			n = b.children[Integer.bitCount(b.bitmap & (bit - 1))];
+		}
+
+		return (n != null) && (((Entry) n).nodeID == nodeID) ? (Entry) n : null;
+	}
+
+	public boolean contains(int nodeID) {
+		return get(nodeID) != null;
+	}
+
+	/**
+	 * Returns the entries of the direct children of a group, in the order of
+	 * execution (head to tail).
+	 *
+	 * @param groupID
+	 *            the ID of the group
+	 * @return the list of child entries, which is empty if the group is unknown or
+	 *         has no known children
+	 */
+	public List<Entry> getChildren(int groupID) {
+		final List<Entry> result = new ArrayList<>();
+		final Entry group = get(groupID);
+
+		if (group == null)
+			return result;
+
+		// guard against inconsistent links
+		for (Entry e = get(group.headID); (e != null) && (result.size() < size); e = get(e.succID)) {
+			result.add(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the entries of all nodes in the snapshot, in no particular order.
+	 */
+	public List<Entry> getEntries() {
+		final List<Entry> result = new ArrayList<>(size);
+		collect(root, result);
+		return result;
+	}
+
+	/**
+	 * Returns a snapshot in which the given entry is added or replaces the entry
+	 * of the same node ID.
+	 */
+	public NodeTree with(Entry e) {
+		final boolean[] added = new boolean[1];
+		final Object newRoot = insert(root, e, 0, added);
+
+		return new NodeTree(newRoot, added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * Returns a snapshot in which the given node is not contained.
+	 */
+	public NodeTree without(int nodeID) {
+		final boolean[] removed = new boolean[1];
+		final Object newRoot = remove(root, nodeID, 0, removed);
+
+		return removed[0] ? new NodeTree(newRoot, size - 1) : this;
+	}
+
+	private static int bit(int nodeID, int shift) {
+		return 1 << ((nodeID >>> shift) & MASK);
+	}
+
+	private static void collect(Object n, List<Entry> result) {
+		if (n instanceof Entry) {
+			result.add((Entry) n);
+		} else if (n != null) {
+			final Object[] children = ((Branch) n).children;
+			for (int i = 0; i < children.length; i++) {
+				collect(children[i], result);
+			}
+		}
+	}
+
+	private static Object insert(Object n, Entry e, int shift, boolean[] added) {
+		if (n == null) {
+			added[0] = true;
+			return e;
+		}
+
+		if (n instanceof Entry) {
+			final Entry old = (Entry) n;
+			if (old.nodeID == e.nodeID)
+				return e;
+
+			// two different IDs differ in at least one level, so this terminates
+			return insert(new Branch(bit(old.nodeID, shift), new Object[] { old }), e, shift, added);
+		}
+
+		final Branch b = (Branch) n;
+		final int bit = bit(e.nodeID, shift);
+		final int idx = Integer.bitCount(b.bitmap & (bit - 1));
+		final Object[] children;
+
+		if ((b.bitmap & bit) == 0) {
+			added[0] = true;
+			children = new Object[b.children.length + 1];
+			System.arraycopy(b.children, 0, children, 0, idx);
+			children[idx] = e;
+			System.arraycopy(b.children, idx, children, idx + 1, b.children.length - idx);
+			return new Branch(b.bitmap | bit, children);
+		}
+
+		children = b.children.clone();
+		children[idx] = insert(b.children[idx], e, shift + BITS, added);
+		return new Branch(b.bitmap, children);
+	}
+
+	private static Object remove(Object n, int nodeID, int shift, boolean[] removed) {
+		if (n == null)
+			return null;
+
+		if (n instanceof Entry) {
+			if (((Entry) n).nodeID != nodeID)
+				return n;
+
+			removed[0] = true;
+			return null;
+		}
+
+		final Branch b = (Branch) n;
+		final int bit = bit(nodeID, shift);
+		if ((b.bitmap & bit) == 0)
+			return b;
+
+		final int idx = Integer.bitCount(b.bitmap & (bit - 1));
+		final Object oldChild = b.children[idx];
+		final Object newChild = remove(oldChild, nodeID, shift + BITS, removed);
+		final Object[] children;
+
+		if (newChild == oldChild)
+			return b;
+
+		if (newChild == null) {
+			if (b.children.length == 1)
+				return null;
+
+			children = new Object[b.children.length - 1];
+			System.arraycopy(b.children, 0, children, 0, idx);
+			System.arraycopy(b.children, idx + 1, children, idx, children.length - idx);
+			// a single remaining entry can move up, as lookups compare the ID
+			if ((children.length == 1) && (children[0] instanceof Entry))
+				return children[0];
+
+			return new Branch(b.bitmap & ~bit, children);
+		}
+
+		if ((b.children.length == 1) && (newChild instanceof Entry))
+			return newChild;
+
+		children = b.children.clone();
+		children[idx] = newChild;
+		return new Branch(b.bitmap, children);
+	}
+
+	// ----------- internal classes -----------
+
+	private static class Branch {
+		protected final int bitmap;
+		protected final Object[] children;
+
+		protected Branch(int bitmap, Object[] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * The immutable state of a single node within a snapshot. Neighbours are
+	 * referred to by node ID, where <code>-1</code> denotes a missing neighbour.
+	 * Note that the fields of the <code>Node</code> object returned by
+	 * <code>getNode</code> must still only be read in the event thread.
+	 */
+	public static final class Entry {
+		private final Node node;
+		private final int nodeID;
+		private final int groupID;
+		private final int predID;
+		private final int succID;
+		private final int headID;
+		private final int tailID;
+		private final boolean isGroup;
+		private final boolean playing;
+		private final boolean running;
+
+		/**
+		 * Captures the current state of a node.
+		 *
+		 * @synchronization must be called in the event thread
+		 */
+		public Entry(Node node) {
+			final Group group = node.getGroup();
+			final Node pred = node.getPredNode();
+			final Node succ = node.getSuccNode();
+
+			this.node = node;
+			nodeID = node.getNodeID();
+			groupID = group == null ? -1 : group.getNodeID();
+			predID = pred == null ? -1 : pred.getNodeID();
+			succID = succ == null ? -1 : succ.getNodeID();
+			isGroup = node instanceof Group;
+			if (isGroup) {
+				final Node head = ((Group) node).getHeadNode();
+				final Node tail = ((Group) node).getTailNode();
+				headID = head == null ? -1 : head.getNodeID();
+				tailID = tail == null ? -1 : tail.getNodeID();
+			} else {
+				headID = -1;
+				tailID = -1;
+			}
+			playing = node.isPlaying();
+			running = node.isRunning();
+		}
+
+		public Node getNode() {
+			return node;
+		}
+
+		public int getNodeID() {
+			return nodeID;
+		}
+
+		public int getGroupID() {
+			return groupID;
+		}
+
+		public int getPredNodeID() {
+			return predID;
+		}
+
+		public int getSuccNodeID() {
+			return succID;
+		}
+
+		/**
+		 * Returns the ID of the group's first child, or <code>-1</code> if the node
+		 * is not a group or the group is empty.
+		 */
+		public int getHeadNodeID() {
+			return headID;
+		}
+
+		/**
+		 * Returns the ID of the group's last child, or <code>-1</code> if the node
+		 * is not a group or the group is empty.
+		 */
+		public int getTailNodeID() {
+			return tailID;
+		}
+
+		public boolean isGroup() {
+			return isGroup;
+		}
+
+		public boolean isPlaying() {
+			return playing;
+		}
+
+		public boolean isRunning() {
+			return running;
+		}
+
+		@Override
+		public String toString() {
+			return "NodeTree.Entry(" + nodeID + ", group " + groupID + ", pred " + predID + ", succ " + succID + ")";
+		}
+	}
+}
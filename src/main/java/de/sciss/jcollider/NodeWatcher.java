@@ -20,6 +20,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import javax.swing.Timer;
 
@@ -73,9 +76,14 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 
 	private final Map<Integer, Node> mapNodes = new HashMap<>(); // maps Integer( nodeID ) to Node ; synchronized through 'sync'
 
+	// maps Integer( nodeID ) to the waiter shared by all callers ; synchronized through 'sync'
+	private final Map<Integer, Waiter> mapGoWaiters = new HashMap<>();
+	private final Map<Integer, Waiter> mapEndWaiters = new HashMap<>();
+
 	private final OSCResponderNode[] resps;
 
 	private final Object sync = new Object();
+	private volatile NodeTree snapshot = NodeTree.EMPTY; // updated with sync on 'sync'
 	private final List<OSCMessage> collQueue = new ArrayList<>(); // element = (OSCMessage) ; synchronized through 'sync'
 
 	private static final Map<String, NodeWatcher> allInstances = new HashMap<>(); // (String) Server.name to (NodeWatcher) instance
@@ -198,6 +206,7 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 					node.setPlaying(true);
 				}
 				mapNodes.put(key, node);
+				snapshot = snapshot.with(new NodeTree.Entry(node));
 				if (VERBOSE)
 					System.err.println("NodeWatcher.register( " + node + " )");
 			}
@@ -215,6 +224,7 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 	public void unregister(Node node) {
 		synchronized (sync) {
 			mapNodes.remove(new Integer(node.getNodeID()));
+			snapshot = snapshot.without(node.getNodeID());
 			if (VERBOSE)
 				System.err.println("NodeWatcher.unregister( " + node + " )");
 		}
@@ -233,6 +243,127 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 		}
 	}
 
+	/**
+	 * Returns an immutable snapshot of the registered nodes and their tree
+	 * structure. A new snapshot is published after each batch of incoming node
+	 * notifications has been processed, as well as after registering or
+	 * unregistering nodes. Unlike the <code>Node</code> objects themselves, the
+	 * snapshot can be read from any thread, and successive reads of the same
+	 * snapshot are always consistent.
+	 *
+	 * @return the current snapshot
+	 *
+	 * @synchronization this method does not block
+	 */
+	public NodeTree getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns a future which is completed when a <code>/n_go</code> notification
+	 * for the given node arrives. The node need not be registered. Waiters are
+	 * looked up by node ID, so unlike listeners they do not slow down the
+	 * processing of events for other nodes. The future is completed in the event
+	 * thread, after the node status has been updated and the listeners have been
+	 * informed.
+	 *
+	 * @param nodeID
+	 *            the ID of the node to wait for
+	 * @return a future completed with the <code>NodeEvent.GO</code> event. if a
+	 *         <code>/n_end</code> arrives first, the future is completed
+	 *         exceptionally with an <code>IllegalStateException</code>. if the
+	 *         watcher is disposed, the future is cancelled.
+	 */
+	public CompletableFuture<NodeEvent> waitForGo(int nodeID) {
+		return addWaiter(mapGoWaiters, nodeID);
+	}
+
+	/**
+	 * Returns a future which is completed when a <code>/n_end</code> notification
+	 * for the given node arrives. See <code>waitForGo</code> for details.
+	 *
+	 * @param nodeID
+	 *            the ID of the node to wait for
+	 * @return a future completed with the <code>NodeEvent.END</code> event. if the
+	 *         watcher is disposed, the future is cancelled.
+	 *
+	 * @see #waitForGo( int )
+	 */
+	public CompletableFuture<NodeEvent> waitForEnd(int nodeID) {
+		return addWaiter(mapEndWaiters, nodeID);
+	}
+
+	private CompletableFuture<NodeEvent> addWaiter(final Map<Integer, Waiter> map, int nodeID) {
+		final Integer key = new Integer(nodeID);
+		final Waiter w;
+		final CompletableFuture<NodeEvent> dependent;
+
+		synchronized (sync) {
+			Waiter w0 = map.get(key);
+			if (w0 == null) {
+				w0 = new Waiter();
+				map.put(key, w0);
+			}
+			w = w0;
+			// each caller gets its own dependent future, so that cancelling it
+			// does not affect other waiters for the same node
+			dependent = w.shared.thenApply(Function.<NodeEvent>identity());
+			w.numDependents++;
+		}
+		dependent.whenComplete(new BiConsumer<NodeEvent, Throwable>() {
+			@Override
+			public void accept(NodeEvent e, Throwable failure) {
+				if (!dependent.isCancelled())
+					return;
+				// the last cancelled dependent removes the waiter, so that events
+				// for the node are no longer queued
+				synchronized (sync) {
+					if ((--w.numDependents == 0) && (map.get(key) == w))
+						map.remove(key);
+				}
+			}
+		});
+		return dependent;
+	}
+
+	// @synchronization has to be called with sync on sync
+	private boolean hasWaiters(Integer nodeIDObj) {
+		return mapGoWaiters.containsKey(nodeIDObj) || mapEndWaiters.containsKey(nodeIDObj);
+	}
+
+	// removes the waiters affected by an event. they are completed by the
+	// caller after releasing sync, so that no user code runs inside the lock
+	// @synchronization has to be called with sync on sync
+	private void collectWaiters(Integer nodeIDObj, NodeEvent e, List<Waiter> collDone) {
+		Waiter w;
+
+		switch (e.getID()) {
+		case NodeEvent.GO:
+			w = mapGoWaiters.remove(nodeIDObj);
+			if (w != null) {
+				w.event = e;
+				collDone.add(w);
+			}
+			break;
+
+		case NodeEvent.END:
+			w = mapGoWaiters.remove(nodeIDObj);
+			if (w != null) {
+				w.failure = new IllegalStateException("Node " + nodeIDObj + " ended before /n_go");
+				collDone.add(w);
+			}
+			w = mapEndWaiters.remove(nodeIDObj);
+			if (w != null) {
+				w.event = e;
+				collDone.add(w);
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
 	/**
 	 * Registers a listener to be informed about node status changes. Status changes
 	 * occur as of nodes being created, destroyed, paused, resumed, moved, or as a
@@ -333,6 +464,7 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 	public void clear() {
 		synchronized (sync) {
 			mapNodes.clear();
+			snapshot = NodeTree.EMPTY;
 			if (VERBOSE)
 				System.err.println("NodeWatcher.clear()");
 		}
@@ -351,6 +483,16 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 			if (em != null)
 				em.dispose();
 			clear();
+			final List<Waiter> collCancelled = new ArrayList<>();
+			synchronized (sync) {
+				collCancelled.addAll(mapGoWaiters.values());
+				collCancelled.addAll(mapEndWaiters.values());
+				mapGoWaiters.clear();
+				mapEndWaiters.clear();
+			}
+			for (int i = 0; i < collCancelled.size(); i++) {
+				collCancelled.get(i).shared.cancel(false);
+			}
 
 			allInstances.remove(server.getName());
 
@@ -419,6 +561,38 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 		return autoRegister;
 	}
 
+	// @synchronization has to be called with sync on sync
+	private static void addNeighbourhood(Set<Node> nodes, Node node) {
+		final Group group = node.getGroup();
+		final Node pred = node.getPredNode();
+		final Node succ = node.getSuccNode();
+
+		nodes.add(node);
+		if (group != null)
+			nodes.add(group);
+		if (pred != null)
+			nodes.add(pred);
+		if (succ != null)
+			nodes.add(succ);
+	}
+
+	// @synchronization has to be called with sync on sync
+	private void publishSnapshot(Set<Node> dirtyNodes) {
+		if (dirtyNodes.isEmpty())
+			return;
+
+		NodeTree t = snapshot;
+		for (Iterator<Node> iter = dirtyNodes.iterator(); iter.hasNext();) {
+			final Node node = iter.next();
+			if (mapNodes.get(new Integer(node.getNodeID())) == node) {
+				t = t.with(new NodeTree.Entry(node));
+			} else {
+				t = t.without(node.getNodeID());
+			}
+		}
+		snapshot = t;
+	}
+
 	// @synchronization has to be called with sync on sync
 	private void nodeGo(Node node, NodeEvent e) {
 		final Group group = (Group) mapNodes.get(new Integer(e.getParentGroupID()));
@@ -539,6 +713,11 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 			OSCPacket.printTextOn(Server.getPrintStream(), msg);
 		}
 
+		// the ID is free on the server, no matter if we track the node or not
+		if (msg.getName().equals("/n_end")) {
+			server.getNodeIDAllocator().free(((Number) msg.getArg(0)).intValue());
+		}
+
 		if (autoRegister) {
 			synchronized (sync) {
 				final boolean invoke = collQueue.isEmpty();
@@ -552,7 +731,7 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 		final Integer nodeIDObj = (Integer) msg.getArg(0);
 
 		synchronized (sync) {
-			if (mapNodes.containsKey(nodeIDObj)) {
+			if (mapNodes.containsKey(nodeIDObj) || hasWaiters(nodeIDObj)) {
 				final boolean invoke = collQueue.isEmpty();
 				collQueue.add(msg);
 				if (invoke)
@@ -574,6 +753,8 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 		NodeEvent nde;
 		NodeListener listener;
 		Node node;
+		final Set<Node> dirtyNodes = new HashSet<>();
+		final List<Waiter> collDone = new ArrayList<>();
 
 		synchronized (sync) {
 			if (!watching)
@@ -591,12 +772,14 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 								? (Node) Group.basicNew(server, nodeIDObj.intValue())
 								: (Node) Synth.basicNew(null, server, nodeIDObj.intValue());
 						register(node);
-					} else if (!fireAllNodes)
-						return;
+					} else if (!fireAllNodes && !hasWaiters(nodeIDObj)) {
+						continue;
+					}
 				}
 				nde = NodeEvent.fromOSCMessage(msg, this, when, node);
 
 				if (node != null) { // update the node's fields
+					addNeighbourhood(dirtyNodes, node); // before the update
 					switch (nde.getID()) {
 					case NodeEvent.GO:
 						nodeGo(node, nde);
@@ -625,9 +808,10 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 					default:
 						assert false : nde.getID();
 					}
+					addNeighbourhood(dirtyNodes, node); // after the update
 				}
 
-				if (em != null) {
+				if ((em != null) && ((node != null) || fireAllNodes)) {
 					// we are already in the event thread, so let's just call the listeners directly
 					for (int i = 0; i < em.countListeners(); i++) {
 						listener = (NodeListener) em.getListener(i);
@@ -638,11 +822,18 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 						}
 					}
 				}
+
+				collectWaiters(nodeIDObj, nde, collDone);
 			} // for iter
 
 			collQueue.clear();
+			publishSnapshot(dirtyNodes);
 
 		} // sync
+
+		for (int i = 0; i < collDone.size(); i++) {
+			collDone.get(i).complete();
+		}
 	} // run
 
 	// ----------- EventManager.Processor interface -----------
@@ -654,4 +845,26 @@ public class NodeWatcher implements EventManager.Processor, OSCResponderNode.Act
 	public void processEvent(BasicEvent e) {
 		return;
 	}
+
+	// ----------- internal classes -----------
+
+	private static class Waiter {
+		protected final CompletableFuture<NodeEvent> shared = new CompletableFuture<>();
+		// all of the following are synchronized through the watcher's 'sync'
+		protected int numDependents = 0;
+		protected NodeEvent event = null;
+		protected Throwable failure = null;
+
+		protected Waiter() {
+			/* empty */
+		}
+
+		protected void complete() {
+			if (failure != null) {
+				shared.completeExceptionally(failure);
+			} else {
+				shared.complete(event);
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+/*
+ * PacketUtil.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+import de.sciss.net.OSCPacket;
+
+/**
+ * Package internal helper methods for splitting messages into bundles. The
+ * encoded size of a packet is estimated without actually encoding it. The
+ * estimate is exact for the argument types used by this package (integers,
+ * floats, strings, blobs and nested messages) and errs on the large side for
+ * 64 bit numbers.
+ */
+final class PacketUtil {
+	/**
+	 * Maximum size in bytes of a packet which fits into a single ethernet frame
+	 * (1500 bytes MTU minus IP and UDP headers).
+	 */
+	static final int UDP_SAFE_SIZE = 1472;
+
+	/**
+	 * Size in bytes of a bundle without elements (<code>&quot;#bundle&quot;</code>
+	 * plus the time tag)
+	 */
+	static final int BUNDLE_OVERHEAD = 16;
+
+	// seconds between 1-Jan-1900 (OSC/NTP epoch) and 1-Jan-1970 (java epoch)
+	private static final long SECONDS_1900_TO_1970 = 2208988800L;
+
+	private PacketUtil() {
+		/* empty */
+	}
+
+	/**
+	 * Rounds up to the next multiple of four.
+	 */
+	static int pad4(int n) {
+		return (n + 3) & ~3;
+	}
+
+	/**
+	 * Estimates the encoded size of an OSC message.
+	 */
+	static int messageSize(OSCMessage msg) {
+		final int numArgs = msg.getArgCount();
+		int size = pad4(msg.getName().length() + 1) + pad4(numArgs + 2);
+
+		for (int i = 0; i < numArgs; i++) {
+			size += argSize(msg.getArg(i));
+		}
+		return size;
+	}
+
+	/**
+	 * Estimates the encoded size of an OSC packet (message or bundle).
+	 */
+	static int packetSize(OSCPacket p) {
+		if (p instanceof OSCMessage) {
+			return messageSize((OSCMessage) p);
+		} else {
+			final OSCBundle bndl = (OSCBundle) p;
+			int size = BUNDLE_OVERHEAD;
+			for (int i = 0; i < bndl.getPacketCount(); i++) {
+				size += 4 + packetSize(bndl.getPacket(i));
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Estimates the encoded size of a single message argument.
+	 */
+	static int argSize(Object arg) {
+		if ((arg instanceof Integer) || (arg instanceof Float)) {
+			return 4;
+		} else if ((arg instanceof Long) || (arg instanceof Double)) {
+			return 8;
+		} else if (arg instanceof String) {
+			return pad4(((String) arg).length() + 1);
+		} else if (arg instanceof byte[]) {
+			return 4 + pad4(((byte[]) arg).length);
+		} else if (arg instanceof OSCPacket) {
+			return 4 + pad4(packetSize((OSCPacket) arg));
+		} else if (arg instanceof File) {
+			return pad4(((File) arg).getAbsolutePath().length() + 1);
+		} else {
+			return pad4(String.valueOf(arg).length() + 1);
+		}
+	}
+
+	/**
+	 * Sends a list of messages to a server, packed into as few bundles as
+	 * possible, none of which exceeds <code>UDP_SAFE_SIZE</code>. The bundles
+	 * are executed immediately.
+	 */
+	static void sendBundled(Server server, List<OSCMessage> msgs) throws IOException {
+		OSCBundle bndl = new OSCBundle();
+		int bndlSize = BUNDLE_OVERHEAD;
+
+		for (int i = 0; i < msgs.size(); i++) {
+			final OSCMessage msg = msgs.get(i);
+			final int msgSize = 4 + messageSize(msg);
+			if ((bndl.getPacketCount() > 0) && (bndlSize + msgSize > UDP_SAFE_SIZE)) {
+				server.sendBundle(bndl);
+				bndl = new OSCBundle();
+				bndlSize = BUNDLE_OVERHEAD;
+			}
+			bndl.addPacket(msg);
+			bndlSize += msgSize;
+		}
+		if (bndl.getPacketCount() > 0)
+			server.sendBundle(bndl);
+	}
+
+	/**
+	 * Converts an absolute time into a raw OSC time tag with sub-millisecond
+	 * precision.
+	 *
+	 * @param baseMillis
+	 *            a base time in milliseconds since 1-Jan-1970, as returned by
+	 *            <code>System.currentTimeMillis()</code>
+	 * @param offset
+	 *            an offset in seconds, relative to the base time
+	 * @return the raw 64 bit NTP time tag (seconds since 1-Jan-1900 in the upper
+	 *         32 bits, fraction in the lower 32 bits)
+	 */
+	static long timeTag(long baseMillis, double offset) {
+		long secs = Math.floorDiv(baseMillis, 1000L) + SECONDS_1900_TO_1970;
+		double frac = Math.floorMod(baseMillis, 1000L) * 0.001 + offset;
+		final long whole = (long) Math.floor(frac);
+
+		secs += whole;
+		frac -= whole;
+
+		return (secs << 32) | ((long) (frac * 4294967296.0) & 0xFFFFFFFFL);
+	}
+}
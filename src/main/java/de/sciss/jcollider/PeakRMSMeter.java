@@ -0,0 +1,390 @@
+/*
+ * PeakRMSMeter.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * A metering service for audio busses. For each metered bus, a monitor synth
+ * is created which reads the bus and reports peak and RMS levels using the
+ * <code>SendPeakRMS</code> UGen at a configurable rate. The replies are decoded
+ * into one primitive array which is shared by all meters, so that GUIs or other
+ * threads can read the levels without creating objects.
+ * <p>
+ * Consistency is provided by a <code>StampedLock</code>: the OSC thread, which
+ * is the only writer, holds the write lock while decoding a reply, and
+ * <code>getLevels</code> reads optimistically, falling back to the read lock
+ * only if the read overlapped with a write. A sequence number which is
+ * incremented for each reply can be used to detect whether new levels have
+ * arrived since the last read.
+ * <p>
+ * The monitor synths are added to the tail of the target group, so that they
+ * run after the synths writing to the busses. Requires a server which provides
+ * <code>SendPeakRMS</code> (SuperCollider 3.5 or newer).
+ *
+ * @synchronization all methods are thread safe
+ */
+public class PeakRMSMeter implements Constants, OSCResponderNode.Action {
+	private static final String CMD_NAME = "/jcPeakRMS";
+	private static final String DEF_PREFIX = "jcPeakRMS";
+
+	private final Server server;
+	private final Group target;
+	private final OSCResponderNode resp;
+
+	private final Object sync = new Object();
+	private final Set<Integer> defsSent = new HashSet<>(); // Integer( numChannels ) ; synchronized through 'sync'
+
+	// replaced as a whole when meters are added ; written with sync on 'sync'
+	private volatile State state = new State(new Meter[0], new float[0]);
+	private final StampedLock lock = new StampedLock();
+	private volatile int seq = 0; // written with the write lock of 'lock' held
+
+	private float replyRate = 20f;
+	private float peakLag = 3f;
+	private boolean disposed = false;
+
+	/**
+	 * Creates a new metering service which adds its monitor synths to the tail of
+	 * the server's default group.
+	 */
+	public PeakRMSMeter(Server server) throws IOException {
+		this(server, server.getDefaultGroup());
+	}
+
+	/**
+	 * Creates a new metering service.
+	 *
+	 * @param target
+	 *            the group to whose tail the monitor synths are added
+	 */
+	public PeakRMSMeter(Server server, Group target) throws IOException {
+		this.server = server;
+		this.target = target;
+
+		resp = new OSCResponderNode(server, CMD_NAME, this);
+		resp.add();
+	}
+
+	/**
+	 * Sets the number of level replies per second for meters added afterwards.
+	 * The default is <code>20</code>.
+	 */
+	public void setReplyRate(float hz) {
+		synchronized (sync) {
+			replyRate = hz;
+		}
+	}
+
+	public float getReplyRate() {
+		synchronized (sync) {
+			return replyRate;
+		}
+	}
+
+	/**
+	 * Sets the decay time of the peak hold in seconds for meters added afterwards.
+	 * The default is <code>3</code>.
+	 */
+	public void setPeakLag(float secs) {
+		synchronized (sync) {
+			peakLag = secs;
+		}
+	}
+
+	public float getPeakLag() {
+		synchronized (sync) {
+			return peakLag;
+		}
+	}
+
+	/**
+	 * Starts metering an audio bus.
+	 *
+	 * @param bus
+	 *            an audio rate bus
+	 * @return the meter ID used to read the levels
+	 */
+	public int add(Bus bus) throws IOException {
+		if (bus.getRate() != kAudioRate)
+			throw new IllegalArgumentException("Only audio busses can be metered");
+
+		return add(bus.getIndex(), bus.getNumChannels());
+	}
+
+	/**
+	 * Starts metering a range of audio busses.
+	 *
+	 * @param busIndex
+	 *            the index of the first audio bus
+	 * @param numChannels
+	 *            the number of successive busses
+	 * @return the meter ID used to read the levels
+	 */
+	public int add(int busIndex, int numChannels) throws IOException {
+		synchronized (sync) {
+			if (disposed)
+				throw new IllegalStateException("Meter has been disposed");
+
+			final State oldState = state;
+			final int meterID = oldState.meters.length;
+			final int offset = oldState.levels.length;
+			final Synth synth = Synth.basicNew(DEF_PREFIX + numChannels, server);
+			final Meter[] meters = new Meter[meterID + 1];
+			final float[] levels = new float[offset + (numChannels << 1)];
+
+			System.arraycopy(oldState.meters, 0, meters, 0, meterID);
+			meters[meterID] = new Meter(synth, offset, numChannels);
+			final long stamp = lock.writeLock();
+			try {
+				System.arraycopy(oldState.levels, 0, levels, 0, offset);
+				state = new State(meters, levels);
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+
+			final OSCMessage newMsg = synth.newMsg(target, new String[] { "bus", "rate", "lag", "id" },
+					new float[] { busIndex, replyRate, peakLag, meterID }, kAddToTail);
+
+			if (defsSent.add(new Integer(numChannels))) {
+				createDef(numChannels).send(server, newMsg);
+			} else {
+				server.sendMsg(newMsg);
+			}
+			return meterID;
+		}
+	}
+
+	/**
+	 * Stops metering and frees the monitor synth. The levels of the meter keep
+	 * their last values. The meter ID is not reused.
+	 */
+	public void remove(int meterID) throws IOException {
+		synchronized (sync) {
+			final Meter m = state.meters[meterID];
+			if (m.removed)
+				return;
+
+			m.removed = true;
+			server.sendMsg(m.synth.freeMsg());
+		}
+	}
+
+	/**
+	 * Frees all monitor synths and stops listening for replies.
+	 */
+	public void dispose() {
+		synchronized (sync) {
+			if (disposed)
+				return;
+
+			final Meter[] meters = state.meters;
+			disposed = true;
+			resp.remove();
+			for (int i = 0; i < meters.length; i++) {
+				if (!meters[i].removed) {
+					meters[i].removed = true;
+					try {
+						server.sendMsg(meters[i].synth.freeMsg());
+					} catch (IOException e1) {
+						e1.printStackTrace(Server.getPrintStream());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of channels metered by the given meter.
+	 */
+	public int getNumChannels(int meterID) {
+		return state.meters[meterID].numChannels;
+	}
+
+	/**
+	 * Returns the sequence number of the level data. It is incremented for each
+	 * reply.
+	 */
+	public int getSequence() {
+		return seq;
+	}
+
+	/**
+	 * Reads the current levels of a meter. This does not allocate, and blocks
+	 * only if a reply is being written at the same time.
+	 *
+	 * @param meterID
+	 *            the ID as returned by <code>add</code>
+	 * @param peaks
+	 *            array of at least <code>getNumChannels( meterID )</code> elements
+	 *            for the peak levels (linear amplitude), or <code>null</code>
+	 * @param rms
+	 *            array of at least <code>getNumChannels( meterID )</code> elements
+	 *            for the RMS levels (linear amplitude), or <code>null</code>
+	 * @return the sequence number of the levels read
+	 */
+	public int getLevels(int meterID, float[] peaks, float[] rms) {
+		final Meter m = state.meters[meterID];
+		long stamp = lock.tryOptimisticRead();
+		int s = readLevels(m, peaks, rms);
+
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				s = readLevels(m, peaks, rms);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Reads the levels of all meters into one array, with peak and RMS
+	 * interleaved per channel, and meters in the order in which they were added.
+	 * The required array size is returned by <code>getNumLevels</code>.
+	 *
+	 * @return the sequence number of the levels read
+	 */
+	public int getAllLevels(float[] dest) {
+		long stamp = lock.tryOptimisticRead();
+		int s = readAllLevels(dest);
+
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				s = readAllLevels(dest);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the size of the array required for <code>getAllLevels</code>.
+	 */
+	public int getNumLevels() {
+		return state.levels.length;
+	}
+
+	// meter offsets stay valid in later states, because levels are only appended
+	private int readLevels(Meter m, float[] peaks, float[] rms) {
+		final int s = seq;
+		final float[] levels = state.levels;
+
+		for (int ch = 0, i = m.offset; ch < m.numChannels; ch++) {
+			if (peaks != null)
+				peaks[ch] = levels[i];
+			i++;
+			if (rms != null)
+				rms[ch] = levels[i];
+			i++;
+		}
+		return s;
+	}
+
+	private int readAllLevels(float[] dest) {
+		final int s = seq;
+		final float[] levels = state.levels;
+
+		System.arraycopy(levels, 0, dest, 0, levels.length);
+		return s;
+	}
+
+	private static SynthDef createDef(int numChannels) {
+		final Control ctrl = Control.kr(new String[] { "bus", "rate", "lag", "id" }, new float[] { 0, 20, 3, 0 });
+		final UGenInput[] sig = UGen.ar("In", numChannels, ctrl.getChannel("bus")).asUGenInputs();
+		final UGenInput[] inputs = new UGenInput[5 + numChannels + CMD_NAME.length()];
+		int i = 0;
+
+		// input layout of SendPeakRMS: replyRate, peakLag, replyID,
+		// numChannels, channels..., cmdName length, cmdName chars...
+		inputs[i++] = ctrl.getChannel("rate");
+		inputs[i++] = ctrl.getChannel("lag");
+		inputs[i++] = ctrl.getChannel("id");
+		inputs[i++] = new Constant(numChannels);
+		for (int ch = 0; ch < numChannels; ch++) {
+			inputs[i++] = sig[ch];
+		}
+		inputs[i++] = new Constant(CMD_NAME.length());
+		for (int j = 0; j < CMD_NAME.length(); j++) {
+			inputs[i++] = new Constant(CMD_NAME.charAt(j));
+		}
+
+		return new SynthDef(DEF_PREFIX + numChannels, new UGen("SendPeakRMS", kControlRate, new Object[0], inputs, 0));
+	}
+
+	// ----------- OSCResponderNode.Action interface -----------
+
+	/**
+	 * This method is part of the implementation of the OSCResponderNode.Action
+	 * interface. Do not call this method.
+	 */
+	@Override
+	public void respond(OSCResponderNode r, OSCMessage msg, long time) {
+		final State st = state;
+		final int meterID = ((Number) msg.getArg(1)).intValue();
+
+		if ((meterID < 0) || (meterID >= st.meters.length))
+			return;
+
+		// other meters on the same server use the same command name and IDs
+		final Meter m = st.meters[meterID];
+		if (((Number) msg.getArg(0)).intValue() != m.synth.getNodeID())
+			return;
+
+		final int numValues = Math.min(m.numChannels << 1, msg.getArgCount() - 2);
+		if (m.removed)
+			return;
+
+		final long stamp = lock.writeLock();
+		try {
+			// a meter may have been added meanwhile, replacing the levels array
+			final float[] levels = state.levels;
+			for (int i = 0, j = m.offset; i < numValues; i++, j++) {
+				levels[j] = ((Number) msg.getArg(i + 2)).floatValue();
+			}
+			seq++;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// ----------- internal classes -----------
+
+	private static class Meter {
+		protected final Synth synth;
+		protected final int offset;
+		protected final int numChannels;
+		protected volatile boolean removed = false;
+
+		protected Meter(Synth synth, int offset, int numChannels) {
+			this.synth = synth;
+			this.offset = offset;
+			this.numChannels = numChannels;
+		}
+	}
+
+	private static class State {
+		protected final Meter[] meters;
+		protected final float[] levels;
+
+		protected State(Meter[] meters, float[] levels) {
+			this.meters = meters;
+			this.levels = levels;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * SegmentedLoad.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * The progress of reading a sound file into a buffer in chunks. Instead of a
+ * single <code>/b_read</code>, which occupies the server's non-realtime thread
+ * until the whole file is read, the file is read with a sequence of
+ * <code>/b_read</code> commands for successive sections, each of a bounded
+ * number of frames. Only a few chunks are queued on the server at any time, so
+ * that other asynchronous commands can be processed in between.
+ * <p>
+ * Each chunk has its own future, and the overall future completes with the
+ * buffer once all chunks are read. If a chunk fails, no further chunks are
+ * sent and the overall future fails with the chunk's exception.
+ * <p>
+ * Instances are created by <code>Buffer.readSegmented</code> and
+ * <code>Buffer.allocReadSegmented</code>.
+ *
+ * @synchronization all methods are thread safe
+ *
+ * @see Buffer#readSegmented( String, long, int, int, int, int, float )
+ * @see Buffer#allocReadSegmented( Server, String, int, int, float )
+ */
+public class SegmentedLoad {
+	/**
+	 * The default number of frames per chunk
+	 */
+	public static final int DEFAULT_CHUNK_FRAMES = 65536;
+
+	/**
+	 * The default maximum number of chunks queued on the server
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+	private final Buffer buf;
+	private final String path;
+	private final long fileStartFrame;
+	private final int bufStartFrame;
+	private final int numFrames;
+	private final int chunkFrames;
+	private final int maxInFlight;
+	private final float timeout;
+	private final CompletableFuture<Void>[] chunks;
+	private final CompletableFuture<Buffer> future = new CompletableFuture<>();
+
+	private final Object sync = new Object();
+	private int nextChunk = 0; // synchronized through 'sync'
+	private int numInFlight = 0; // synchronized through 'sync'
+	private int numChunksDone = 0; // synchronized through 'sync'
+	private long numFramesDone = 0; // synchronized through 'sync'
+	private boolean stopped = false; // synchronized through 'sync'
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	SegmentedLoad(Buffer buf, String path, long fileStartFrame, int numFrames, int bufStartFrame, int chunkFrames,
+			int maxInFlight, float timeout) {
+		if (chunkFrames <= 0)
+			throw new IllegalArgumentException("chunkFrames must be greater than zero");
+		if (maxInFlight <= 0)
+			throw new IllegalArgumentException("maxInFlight must be greater than zero");
+
+		this.buf = buf;
+		this.path = path;
+		this.fileStartFrame = fileStartFrame;
+		this.numFrames = numFrames;
+		this.bufStartFrame = bufStartFrame;
+		this.chunkFrames = chunkFrames;
+		this.maxInFlight = maxInFlight;
+		this.timeout = timeout;
+
+		chunks = new CompletableFuture[(int) (((long) numFrames + chunkFrames - 1) / chunkFrames)];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new CompletableFuture<>();
+		}
+	}
+
+	public Buffer getBuffer() {
+		return buf;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the total number of frames to read.
+	 */
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	public int getNumChunks() {
+		return chunks.length;
+	}
+
+	/**
+	 * Returns the future of a single chunk. Chunk <code>i</code> covers the
+	 * frames <code>i * chunkFrames</code> until (excluding)
+	 * <code>(i + 1) * chunkFrames</code>, relative to the start of the load.
+	 */
+	public CompletableFuture<Void> getChunk(int i) {
+		return chunks[i];
+	}
+
+	/**
+	 * Returns a future which completes with the buffer when all chunks are read.
+	 */
+	public CompletableFuture<Buffer> future() {
+		return future;
+	}
+
+	/**
+	 * Returns the number of chunks read so far.
+	 */
+	public int getNumChunksDone() {
+		synchronized (sync) {
+			return numChunksDone;
+		}
+	}
+
+	/**
+	 * Returns the number of frames read so far.
+	 */
+	public long getNumFramesDone() {
+		synchronized (sync) {
+			return numFramesDone;
+		}
+	}
+
+	/**
+	 * Returns the progress as a value between zero and one.
+	 */
+	public float getProgress() {
+		synchronized (sync) {
+			return numFrames == 0 ? 1f : (float) ((double) numFramesDone / numFrames);
+		}
+	}
+
+	/**
+	 * Stops sending further chunks. Chunks already queued on the server are still
+	 * read. The futures of the remaining chunks and the overall future are
+	 * cancelled.
+	 */
+	public void cancel() {
+		fail(new CancellationException());
+	}
+
+	// starts sending the first chunks
+	void start() throws IOException {
+		if (chunks.length == 0) {
+			future.complete(buf);
+			return;
+		}
+		sendChunks();
+	}
+
+	// fails the load when a prerequisite (such as the allocation) failed
+	void fail(Throwable failure) {
+		synchronized (sync) {
+			if (stopped)
+				return;
+			stopped = true;
+		}
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i].completeExceptionally(failure);
+		}
+		future.completeExceptionally(failure);
+	}
+
+	private void sendChunks() throws IOException {
+		while (true) {
+			final int idx;
+
+			synchronized (sync) {
+				if (stopped || (nextChunk == chunks.length) || (numInFlight == maxInFlight))
+					return;
+
+				idx = nextChunk++;
+				numInFlight++;
+			}
+			try {
+				sendChunk(idx);
+			} catch (IOException e1) {
+				fail(e1);
+				throw e1;
+			}
+		}
+	}
+
+	private void sendChunk(final int idx) throws IOException {
+		final int off = idx * chunkFrames;
+		final int num = Math.min(chunkFrames, numFrames - off);
+
+		BufferTransfer.sendAsync(buf, buf.readMsg(path, fileStartFrame + off, num, bufStartFrame + off, false),
+				null, timeout).whenComplete(new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void v, Throwable failure) {
+						if (failure != null) {
+							fail(failure);
+							return;
+						}
+						final boolean allDone;
+						synchronized (sync) {
+							numInFlight--;
+							numChunksDone++;
+							numFramesDone += num;
+							allDone = numChunksDone == chunks.length;
+						}
+						chunks[idx].complete(null);
+						if (allDone) {
+							future.complete(buf);
+						} else {
+							try {
+								sendChunks();
+							} catch (IOException e1) {
+								fail(e1);
+							}
+						}
+					}
+				});
+	}
+}
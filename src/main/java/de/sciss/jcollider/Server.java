@@ -27,6 +27,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.swing.Timer;
 
@@ -82,12 +86,18 @@ public class Server implements Constants, EventManager.Processor {
 	protected volatile boolean serverBooting = false;
 	private boolean notified = true;
 
-	protected Buffer[] bufferArray;
-	protected OSCResponderNode bufInfoResponder;
-	protected boolean waitingForBufInfo;
-	protected int waitingBufs;
+	// buffer info tracking
+	private volatile AtomicReferenceArray<Buffer> bufferTable; // known buffers by index
+	private final Object syncBufInfo = new Object();
+	private final Map<Integer, List<BufInfoWaiter>> mapBufInfoWaiters = new HashMap<>(); // synchronized through
+																							// 'syncBufInfo'
+	private OSCResponderNode bufInfoResponder = null; // synchronized through 'syncBufInfo'
 
 	private NodeIDAllocator nodeAllocator;
+
+	// bulk buffer uploads
+	private volatile int fileTransferThreshold = 16384;
+	private volatile File fileTransferDir = null;
 	private BlockAllocator controlBusAllocator, audioBusAllocator, bufferAllocator;
 
 	private static String program = "scsynth";
@@ -403,13 +413,62 @@ public class Server implements Constants, EventManager.Processor {
 	}
 
 	private void createNewAllocators() {
-		nodeAllocator = new NodeIDAllocator(getClientID());
+		nodeAllocator = newNodeAllocator();
 		controlBusAllocator = options.getBlockAllocFactory().create(options.getNumControlBusChannels());
 		audioBusAllocator = options.getBlockAllocFactory().create(options.getNumAudioBusChannels(),
 				options.getFirstPrivateBus());
 		bufferAllocator = options.getBlockAllocFactory().create(options.getNumBuffers());
 	}
 
+	/**
+	 * Returns the allocator used by <code>nextNodeID</code>. This can be used to
+	 * configure the allocation of node IDs, for example to enable the recycling of
+	 * IDs of ended nodes, or to reserve a range of consecutive IDs.
+	 *
+	 * @return the server's node ID allocator
+	 *
+	 * @see NodeIDAllocator#setRecycling( boolean )
+	 * @see NodeIDAllocator#allocBlock( int )
+	 */
+	public NodeIDAllocator getNodeIDAllocator() {
+		return nodeAllocator;
+	}
+
+	/**
+	 * Specifies the minimum number of samples for which bulk buffer uploads to a
+	 * local server are done through a temporary sound file instead of OSC
+	 * messages. Writing a memory mapped file and letting the server read it is
+	 * much faster than sending large amounts of data over the network stack. The
+	 * default is <code>16384</code>. Use <code>Integer.MAX_VALUE</code> to always
+	 * use OSC messages.
+	 *
+	 * @param numSamples
+	 *            the minimum number of samples, counting all channels
+	 *
+	 * @see Buffer#sendCollection( float[], int, int, int, int, float )
+	 * @see #isLocal()
+	 */
+	public void setFileTransferThreshold(int numSamples) {
+		fileTransferThreshold = numSamples;
+	}
+
+	public int getFileTransferThreshold() {
+		return fileTransferThreshold;
+	}
+
+	/**
+	 * Specifies the folder in which temporary sound files for bulk buffer uploads
+	 * are created. The default (<code>null</code>) is the system's temporary
+	 * folder.
+	 */
+	public void setFileTransferDir(File dir) {
+		fileTransferDir = dir;
+	}
+
+	public File getFileTransferDir() {
+		return fileTransferDir;
+	}
+
 	/**
 	 * Automatic buffer ID allocator for package internal use only.
 	 */
@@ -729,7 +788,20 @@ public class Server implements Constants, EventManager.Processor {
 	 * @synchronization must be called in the event thread
 	 */
 	public void initTree() throws IOException {
-		nodeAllocator = new NodeIDAllocator(getClientID());
+		nodeAllocator = newNodeAllocator();
+	}
+
+	// creates a new node allocator, keeping the settings of the previous one
+	private NodeIDAllocator newNodeAllocator() {
+		final NodeIDAllocator old = nodeAllocator;
+		final NodeIDAllocator result = new NodeIDAllocator(getClientID());
+
+		if (old != null) {
+			result.setRecycling(old.isRecycling());
+			result.setRecycleThreshold(old.getRecycleThreshold());
+			result.setThreadBlockSize(old.getThreadBlockSize());
+		}
+		return result;
 	}
 
 	/**
@@ -1164,67 +1236,171 @@ public class Server implements Constants, EventManager.Processor {
 	 * For internal use by <code>Buffer</code> objects. Do not use yourself.
 	 */
 	protected void addBuf(Buffer buf) {
-		// Buffer objects are cached in an Array for easy
+		// Buffer objects are cached in a table for easy
 		// auto buffer info updating
-		bufferArray[buf.getBufNum()] = buf;
+		final AtomicReferenceArray<Buffer> table = bufferTable;
+		final int idx = buf.getBufNum();
+
+		if ((idx >= 0) && (idx < table.length()))
+			table.set(idx, buf);
 	}
 
 	/**
 	 * For internal use by <code>Buffer</code> objects. Do not use yourself.
 	 */
 	protected void freeBuf(int idx) {
-		bufferArray[idx] = null;
+		final AtomicReferenceArray<Buffer> table = bufferTable;
+
+		if ((idx >= 0) && (idx < table.length()))
+			table.set(idx, null);
 	}
 
 	/**
 	 * For internal use by <code>Buffer</code> objects. Do not use yourself.
-	 */
-	protected void waitForBufInfo() throws IOException {
-		// /b_info on the way
-		// keeps a reference count of waiting Buffers so that only one responder is
-		// needed
-		if (!waitingForBufInfo) {
-			bufInfoResponder = new OSCResponderNode(this, "/b_info", new OSCResponderNode.Action() {
-				@Override
-				public void respond(OSCResponderNode r, OSCMessage msg, long time) {
-					if (msg.getArgCount() < 4)
-						return;
+	 * Registers interest in the next <code>/b_info</code> message for a buffer.
+	 * When it arrives, the buffer's parameters are updated, its info action is
+	 * executed and the returned future is completed. Each call has its own
+	 * future and timeout; a single responder serves all waiting buffers and is
+	 * removed when no buffer is waiting any more.
+	 *
+	 * @param buf
+	 *            the buffer expecting a <code>/b_info</code> reply
+	 * @param timeout
+	 *            the maximum amount of time in seconds to wait, or zero to wait
+	 *            forever
+	 * @return a future which completes with <code>buf</code> when the reply has
+	 *         arrived, or fails when the timeout expires
+	 */
+	protected CompletableFuture<Buffer> waitForBufInfo(final Buffer buf, float timeout) throws IOException {
+		final Integer key = new Integer(buf.getBufNum());
+		final BufInfoWaiter w = new BufInfoWaiter(buf);
+
+		synchronized (syncBufInfo) {
+			if (bufInfoResponder == null) {
+				final OSCResponderNode resp = new OSCResponderNode(this, "/b_info", new OSCResponderNode.Action() {
+					@Override
+					public void respond(OSCResponderNode r, OSCMessage msg, long time) {
+						bufInfoReceived(msg);
+					}
+				});
+				resp.add();
+				bufInfoResponder = resp;
+			}
 
-					try {
-						final Buffer buf = bufferArray[((Number) msg.getArg(0)).intValue()];
-						if (buf != null) {
-							buf.setNumFrames(((Number) msg.getArg(1)).intValue());
-							buf.setNumChannels(((Number) msg.getArg(2)).intValue());
-							buf.setSampleRate(((Number) msg.getArg(3)).doubleValue());
-							buf.queryDone();
-
-							if (--waitingBufs == 0) {
-								waitingForBufInfo = false;
-								r.remove();
-							}
-						}
-					} catch (ClassCastException e2) {
-						printError("Server.waitForBufInfo", e2);
+			List<BufInfoWaiter> coll = mapBufInfoWaiters.get(key);
+			if (coll == null) {
+				coll = new ArrayList<>();
+				mapBufInfoWaiters.put(key, coll);
+			}
+			coll.add(w);
+
+			if (timeout > 0) {
+				w.timeoutTask = BufferTransfer.getWatchdog().schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (removeBufInfoWaiter(key, w))
+							w.future.completeExceptionally(
+									new IOException("Timeout while waiting for /b_info of buffer " + key));
 					}
+				}, Math.max(1L, (long) (timeout * 1000)), TimeUnit.MILLISECONDS);
+			}
+		}
+		return w.future;
+	}
+
+	// removes a waiter and the responder if it was the last one.
+	// returns false if the waiter was already removed
+	private boolean removeBufInfoWaiter(Integer key, BufInfoWaiter w) {
+		synchronized (syncBufInfo) {
+			final List<BufInfoWaiter> coll = mapBufInfoWaiters.get(key);
+
+			if ((coll == null) || !coll.remove(w))
+				return false;
+			if (coll.isEmpty()) {
+				mapBufInfoWaiters.remove(key);
+				if (mapBufInfoWaiters.isEmpty() && (bufInfoResponder != null)) {
+					bufInfoResponder.remove();
+					bufInfoResponder = null;
+				}
+			}
+			return true;
+		}
+	}
+
+	private void bufInfoReceived(OSCMessage msg) {
+		if (msg.getArgCount() < 4)
+			return;
+
+		try {
+			final int idx = ((Number) msg.getArg(0)).intValue();
+			final Integer key = new Integer(idx);
+			final List<BufInfoWaiter> coll;
+
+			synchronized (syncBufInfo) {
+				coll = mapBufInfoWaiters.remove(key);
+				if (coll == null)
+					return;
+				if (mapBufInfoWaiters.isEmpty() && (bufInfoResponder != null)) {
+					bufInfoResponder.remove();
+					bufInfoResponder = null;
 				}
-			}).add();
+			}
 
-			waitingForBufInfo = true;
+			final int numFrames = ((Number) msg.getArg(1)).intValue();
+			final int numChannels = ((Number) msg.getArg(2)).intValue();
+			final double sampleRate = ((Number) msg.getArg(3)).doubleValue();
+			final AtomicReferenceArray<Buffer> table = bufferTable;
+			final Buffer known = idx < table.length() ? table.get(idx) : null;
+
+			// usually all waiters refer to the same object ; update each one once
+			final List<Buffer> updated = new ArrayList<>(coll.size() + 1);
+			if (known != null)
+				updated.add(known);
+			for (int i = 0; i < coll.size(); i++) {
+				final Buffer buf = coll.get(i).buf;
+				if (!updated.contains(buf))
+					updated.add(buf);
+			}
+			for (int i = 0; i < updated.size(); i++) {
+				final Buffer buf = updated.get(i);
+				buf.setNumFrames(numFrames);
+				buf.setNumChannels(numChannels);
+				buf.setSampleRate(sampleRate);
+				buf.queryDone();
+			}
+			for (int i = 0; i < coll.size(); i++) {
+				final BufInfoWaiter w = coll.get(i);
+				if (w.timeoutTask != null)
+					w.timeoutTask.cancel(false);
+				w.future.complete(w.buf);
+			}
+		} catch (ClassCastException e2) {
+			printError("Server.bufInfoReceived", e2);
 		}
-		waitingBufs++;
 	}
 
 	/**
-	 * 
-	 * @throws IOException
+	 * Clears the buffer table and fails all buffers waiting for info
 	 */
 	private void resetBufferAutoInfo() throws IOException {
-		bufferArray = new Buffer[options.getNumBuffers()];
-		waitingBufs = 0;
-		waitingForBufInfo = false;
+		final List<BufInfoWaiter> waiters = new ArrayList<>();
 
-		if (bufInfoResponder != null) {
-			bufInfoResponder.remove();
+		bufferTable = new AtomicReferenceArray<>(options.getNumBuffers());
+		synchronized (syncBufInfo) {
+			for (Iterator<List<BufInfoWaiter>> iter = mapBufInfoWaiters.values().iterator(); iter.hasNext();) {
+				waiters.addAll(iter.next());
+			}
+			mapBufInfoWaiters.clear();
+			if (bufInfoResponder != null) {
+				bufInfoResponder.remove();
+				bufInfoResponder = null;
+			}
+		}
+		for (int i = 0; i < waiters.size(); i++) {
+			final BufInfoWaiter w = waiters.get(i);
+			if (w.timeoutTask != null)
+				w.timeoutTask.cancel(false);
+			w.future.completeExceptionally(new IOException("Server was reset"));
 		}
 	}
 
@@ -1629,6 +1805,16 @@ public class Server implements Constants, EventManager.Processor {
 		}
 	}
 
+	private static class BufInfoWaiter {
+		protected final Buffer buf;
+		protected final CompletableFuture<Buffer> future = new CompletableFuture<>();
+		protected ScheduledFuture<?> timeoutTask = null;
+
+		protected BufInfoWaiter(Buffer buf) {
+			this.buf = buf;
+		}
+	}
+
 	/*
 	 * A helper OSC responder for asynchronous communication.
 	 */
@@ -354,6 +354,17 @@ public class ServerOptions {
 		return blockAlloc;
 	}
 
+	/**
+	 * Specifies the allocator used for the server's busses and buffers. The
+	 * default is <code>PowerOfTwoAllocator</code>, which is fast but fragments
+	 * under mixed size allocations. <code>BestFitBlockAllocator</code> allocates
+	 * exact sizes and merges freed blocks. <code>BuddyBlockAllocator</code> rounds
+	 * to powers of two like the default, but merges freed buddies.
+	 *
+	 * @see PowerOfTwoAllocator.Factory
+	 * @see BestFitBlockAllocator.Factory
+	 * @see BuddyBlockAllocator.Factory
+	 */
 	public void setBlockAllocFactory(BlockAllocator.Factory baf) {
 		blockAlloc = baf;
 	}
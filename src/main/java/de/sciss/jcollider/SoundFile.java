@@ -0,0 +1,688 @@
+/*
+ * SoundFile.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A client side sound file, used to inspect headers and sample data without
+ * involving the server. Supported header formats are WAVE, AIFF (including
+ * AIFC) and CAF, with 16, 24 or 32 bit integer or 32 bit floating point
+ * samples.
+ * <p>
+ * Opening a file for reading only parses the header, so it is a cheap way to
+ * determine the number of frames and channels before allocating a buffer. The
+ * sample data is accessed through memory mapped windows of the file and decoded
+ * directly into the caller's <code>float</code> array, allowing random access
+ * to files of any length.
+ * <p>
+ * Files opened for writing are written sequentially, and the header is
+ * completed when the file is closed.
+ *
+ * @synchronization instances are not thread safe
+ *
+ * @see Buffer#loadSoundFile( Server, String )
+ */
+public class SoundFile implements Constants {
+	private static final int WINDOW_SIZE = 0x2000000; // 32 MB mapped at a time
+	private static final int WRITE_BUF_SIZE = 0x10000;
+
+	// AIFC version 1 time stamp
+	private static final int AIFC_VERSION = 0xA2805140;
+
+	private final File file;
+	private final String headerFormat;
+	private final String sampleFormat;
+	private final int numChannels;
+	private final double sampleRate;
+	private final ByteOrder byteOrder;
+	private final int bytesPerSample;
+	private final int bytesPerFrame;
+	private final boolean isFloat;
+	private final boolean writable;
+	private final long dataOffset;
+	private long numFrames;
+
+	private RandomAccessFile raf;
+	private FileChannel ch;
+
+	private MappedByteBuffer window = null;
+	private long windowStart = 0;
+	private ByteBuffer writeBuf = null;
+
+	private SoundFile(File file, RandomAccessFile raf, boolean writable, String headerFormat, String sampleFormat,
+			int numChannels, double sampleRate, ByteOrder byteOrder, long dataOffset, long numFrames) {
+		this.file = file;
+		this.raf = raf;
+		this.writable = writable;
+		this.headerFormat = headerFormat;
+		this.sampleFormat = sampleFormat;
+		this.numChannels = numChannels;
+		this.sampleRate = sampleRate;
+		this.byteOrder = byteOrder;
+		this.dataOffset = dataOffset;
+		this.numFrames = numFrames;
+
+		ch = raf.getChannel();
+		bytesPerSample = bytesPerSample(sampleFormat);
+		bytesPerFrame = bytesPerSample * numChannels;
+		isFloat = sampleFormat.equals(kSampleFloat);
+	}
+
+	/**
+	 * Reads the header of a sound file and closes it again. The returned object
+	 * can be used to query the format, but not to read samples.
+	 *
+	 * @param path
+	 *            the path to the sound file
+	 * @return the closed sound file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or has an unsupported format
+	 */
+	public static SoundFile probe(String path) throws IOException {
+		final SoundFile sf = openRead(path);
+		sf.close();
+		return sf;
+	}
+
+	/**
+	 * Opens a sound file for reading. Only the header is read at this point.
+	 *
+	 * @param path
+	 *            the path to the sound file
+	 * @return the opened sound file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or has an unsupported format
+	 */
+	public static SoundFile openRead(String path) throws IOException {
+		final File f = new File(path);
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+
+		try {
+			final FileChannel ch = raf.getChannel();
+			final ByteBuffer b = readBytes(ch, 0, 12, ByteOrder.BIG_ENDIAN);
+			final int magic = b.getInt(0);
+			final int type = b.getInt(8);
+
+			if ((magic == fourCC("RIFF")) && (type == fourCC("WAVE"))) {
+				return parseWAVE(f, raf);
+			} else if ((magic == fourCC("FORM")) && ((type == fourCC("AIFF")) || (type == fourCC("AIFC")))) {
+				return parseAIFF(f, raf, type == fourCC("AIFC"));
+			} else if (magic == fourCC("caff")) {
+				return parseCAF(f, raf);
+			} else {
+				throw new IOException(path + " : Unsupported sound file format");
+			}
+		} catch (IOException e1) {
+			raf.close();
+			throw e1;
+		}
+	}
+
+	/**
+	 * Creates a new sound file for writing. An existing file is overwritten.
+	 *
+	 * @param path
+	 *            the path to the sound file
+	 * @param headerFormat
+	 *            one of <code>kHeaderWAVE</code>, <code>kHeaderAIFF</code> or
+	 *            <code>kHeaderCAF</code>
+	 * @param sampleFormat
+	 *            one of <code>kSampleInt16</code>, <code>kSampleInt24</code>,
+	 *            <code>kSampleInt32</code> or <code>kSampleFloat</code>
+	 * @param numChannels
+	 *            the number of channels
+	 * @param sampleRate
+	 *            the nominal sample rate
+	 * @return the opened sound file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	public static SoundFile openWrite(String path, String headerFormat, String sampleFormat, int numChannels,
+			double sampleRate) throws IOException {
+		bytesPerSample(sampleFormat); // verifies the format
+		if (numChannels < 1)
+			throw new IllegalArgumentException("Illegal number of channels " + numChannels);
+
+		final ByteOrder order;
+		final int headerSize;
+		if (headerFormat.equals(kHeaderWAVE)) {
+			order = ByteOrder.LITTLE_ENDIAN;
+			headerSize = 44;
+		} else if (headerFormat.equals(kHeaderAIFF)) {
+			order = ByteOrder.BIG_ENDIAN;
+			headerSize = sampleFormat.equals(kSampleFloat) ? 72 : 54;
+		} else if (headerFormat.equals(kHeaderCAF)) {
+			order = ByteOrder.BIG_ENDIAN;
+			headerSize = 68;
+		} else {
+			throw new IllegalArgumentException("Unsupported header format " + headerFormat);
+		}
+
+		final File f = new File(path);
+		final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		final SoundFile sf;
+		try {
+			raf.setLength(0);
+			sf = new SoundFile(f, raf, true, headerFormat, sampleFormat, numChannels, sampleRate, order, headerSize,
+					0);
+			sf.writeHeader();
+		} catch (IOException e1) {
+			raf.close();
+			throw e1;
+		}
+		return sf;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the header format, one of <code>kHeaderWAVE</code>,
+	 * <code>kHeaderAIFF</code> or <code>kHeaderCAF</code>.
+	 */
+	public String getHeaderFormat() {
+		return headerFormat;
+	}
+
+	/**
+	 * Returns the sample format, one of <code>kSampleInt16</code>,
+	 * <code>kSampleInt24</code>, <code>kSampleInt32</code> or
+	 * <code>kSampleFloat</code>.
+	 */
+	public String getSampleFormat() {
+		return sampleFormat;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	/**
+	 * Returns the number of frames. For files opened for writing, this is the
+	 * number of frames written so far.
+	 */
+	public long getNumFrames() {
+		return numFrames;
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public double getDuration() {
+		return numFrames / sampleRate;
+	}
+
+	/**
+	 * Reads frames from an arbitrary position in the file. The samples are
+	 * decoded directly from the memory mapped file into <code>dest</code>.
+	 *
+	 * @param dest
+	 *            the array to fill with interleaved samples
+	 * @param destOff
+	 *            the offset into <code>dest</code> (in samples)
+	 * @param startFrame
+	 *            the first frame in the file to read
+	 * @param nFrames
+	 *            the number of frames to read
+	 *
+	 * @throws IOException
+	 *             if the file is not open, or the frames exceed the file length
+	 */
+	public void readFrames(float[] dest, int destOff, long startFrame, int nFrames) throws IOException {
+		if (ch == null)
+			throw new IOException("File is closed");
+		if ((startFrame < 0) || (startFrame + nFrames > numFrames))
+			throw new EOFException("Frames " + startFrame + " ... " + (startFrame + nFrames - 1) + " exceed file length");
+
+		final int maxWindowFrames = Math.max(1, WINDOW_SIZE / bytesPerFrame);
+
+		while (nFrames > 0) {
+			final int chunkFrames = Math.min(nFrames, maxWindowFrames);
+			final int numBytes = chunkFrames * bytesPerFrame;
+			final ByteBuffer b = mapWindow(dataOffset + startFrame * bytesPerFrame, numBytes);
+			final int numSamples = chunkFrames * numChannels;
+
+			decode(b, dest, destOff, numSamples);
+			destOff += numSamples;
+			startFrame += chunkFrames;
+			nFrames -= chunkFrames;
+		}
+	}
+
+	/**
+	 * Appends frames to a file opened for writing.
+	 *
+	 * @param src
+	 *            the array containing interleaved samples
+	 * @param srcOff
+	 *            the offset into <code>src</code> (in samples)
+	 * @param nFrames
+	 *            the number of frames to write
+	 *
+	 * @throws IOException
+	 *             if the file is not open for writing, or a write error occurs
+	 */
+	public void writeFrames(float[] src, int srcOff, int nFrames) throws IOException {
+		if (!writable || (ch == null))
+			throw new IOException("File is not open for writing");
+
+		if (writeBuf == null) {
+			final int bufFrames = Math.max(1, WRITE_BUF_SIZE / bytesPerFrame);
+			writeBuf = ByteBuffer.allocateDirect(bufFrames * bytesPerFrame).order(byteOrder);
+		}
+
+		final int bufSamples = writeBuf.capacity() / bytesPerSample;
+		int numSamples = nFrames * numChannels;
+		while (numSamples > 0) {
+			final int chunk = Math.min(numSamples, bufSamples);
+			writeBuf.clear();
+			encode(src, srcOff, chunk, writeBuf);
+			writeBuf.flip();
+			while (writeBuf.hasRemaining())
+				ch.write(writeBuf);
+			srcOff += chunk;
+			numSamples -= chunk;
+		}
+		numFrames += nFrames;
+	}
+
+	/**
+	 * Closes the file. For files opened for writing, the header is updated to
+	 * reflect the number of frames written.
+	 */
+	public void close() throws IOException {
+		if (ch == null)
+			return;
+
+		try {
+			if (writable) {
+				final long dataSize = numFrames * bytesPerFrame;
+				if ((dataSize & 1) != 0 && !headerFormat.equals(kHeaderCAF)) {
+					ch.write(ByteBuffer.allocate(1), dataOffset + dataSize); // pad byte
+				}
+				writeHeader();
+			}
+		} finally {
+			window = null;
+			writeBuf = null;
+			ch = null;
+			raf.close();
+		}
+	}
+
+	public void printOn(PrintStream stream) {
+		stream.print(this.getClass().getName() + "(" + file + "," + headerFormat + "," + sampleFormat + ","
+				+ numChannels + "," + numFrames + "," + sampleRate + ")");
+	}
+
+	@Override
+	public String toString() {
+		return "SoundFile(" + file.getName() + ", " + headerFormat + ", " + sampleFormat + ", " + numChannels
+				+ "ch, " + numFrames + " frames, " + sampleRate + " Hz)";
+	}
+
+	// returns a view of the mapped file starting at the given
+	// position. the window is remapped if it doesn't cover the range
+	private ByteBuffer mapWindow(long pos, int numBytes) throws IOException {
+		if ((window == null) || (pos < windowStart) || (pos + numBytes > windowStart + window.capacity())) {
+			final long size = Math.max(numBytes, Math.min(WINDOW_SIZE, ch.size() - pos));
+			window = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+			windowStart = pos;
+		}
+
+		final ByteBuffer b = window.duplicate();
+		b.position((int) (pos - windowStart)).limit((int) (pos - windowStart) + numBytes);
+		return b.slice().order(byteOrder);
+	}
+
+	private void decode(ByteBuffer b, float[] dest, int off, int num) {
+		switch (bytesPerSample) {
+		case 2:
+			for (int i = 0, j = off; i < num; i++, j++) {
+				dest[j] = b.getShort(i << 1) / 32768f;
+			}
+			break;
+		case 3:
+			final boolean big = byteOrder == ByteOrder.BIG_ENDIAN;
+			for (int i = 0, k = 0, j = off; i < num; i++, k += 3, j++) {
+				final int v = big ? (b.get(k) << 16) | ((b.get(k + 1) & 0xFF) << 8) | (b.get(k + 2) & 0xFF)
+						: (b.get(k + 2) << 16) | ((b.get(k + 1) & 0xFF) << 8) | (b.get(k) & 0xFF);
+				dest[j] = v / 8388608f;
+			}
+			break;
+		default:
+			if (isFloat) {
+				b.asFloatBuffer().get(dest, off, num);
+			} else {
+				for (int i = 0, j = off; i < num; i++, j++) {
+					dest[j] = (float) (b.getInt(i << 2) / 2147483648.0);
+				}
+			}
+			break;
+		}
+	}
+
+	private void encode(float[] src, int off, int num, ByteBuffer b) {
+		switch (bytesPerSample) {
+		case 2:
+			for (int i = 0, j = off; i < num; i++, j++) {
+				b.putShort((short) clip(Math.round(src[j] * 32768.0), 32767));
+			}
+			break;
+		case 3:
+			final boolean big = byteOrder == ByteOrder.BIG_ENDIAN;
+			for (int i = 0, j = off; i < num; i++, j++) {
+				final int v = (int) clip(Math.round(src[j] * 8388608.0), 8388607);
+				if (big) {
+					b.put((byte) (v >> 16)).put((byte) (v >> 8)).put((byte) v);
+				} else {
+					b.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+				}
+			}
+			break;
+		default:
+			if (isFloat) {
+				b.asFloatBuffer().put(src, off, num);
+				b.position(b.position() + (num << 2));
+			} else {
+				for (int i = 0, j = off; i < num; i++, j++) {
+					b.putInt((int) clip(Math.round(src[j] * 2147483648.0), 2147483647L));
+				}
+			}
+			break;
+		}
+	}
+
+	private static long clip(long v, long max) {
+		return v > max ? max : (v < -max - 1 ? -max - 1 : v);
+	}
+
+	// ---------- header parsing ----------
+
+	private static SoundFile parseWAVE(File f, RandomAccessFile raf) throws IOException {
+		final FileChannel ch = raf.getChannel();
+		final long fileSize = ch.size();
+		long pos = 12;
+		int fmtTag = -1, numCh = 0, bits = 0;
+		double sr = 0;
+		long dataOff = -1, dataSize = 0;
+
+		while ((pos + 8 <= fileSize) && (dataOff < 0 || fmtTag < 0)) {
+			final ByteBuffer b = readBytes(ch, pos, 8, ByteOrder.LITTLE_ENDIAN);
+			final int id = b.order(ByteOrder.BIG_ENDIAN).getInt(0);
+			final long size = b.order(ByteOrder.LITTLE_ENDIAN).getInt(4) & 0xFFFFFFFFL;
+
+			if (id == fourCC("fmt ")) {
+				final ByteBuffer fmt = readBytes(ch, pos + 8, (int) Math.min(size, 40), ByteOrder.LITTLE_ENDIAN);
+				fmtTag = fmt.getShort(0) & 0xFFFF;
+				numCh = fmt.getShort(2) & 0xFFFF;
+				sr = fmt.getInt(4) & 0xFFFFFFFFL;
+				bits = fmt.getShort(14) & 0xFFFF;
+				if ((fmtTag == 0xFFFE) && (size >= 26)) { // WAVE_FORMAT_EXTENSIBLE
+					fmtTag = fmt.getShort(24) & 0xFFFF;
+				}
+			} else if (id == fourCC("data")) {
+				dataOff = pos + 8;
+				dataSize = Math.min(size, fileSize - dataOff);
+			}
+			pos += 8 + size + (size & 1);
+		}
+		if ((fmtTag < 0) || (dataOff < 0))
+			throw new IOException(f.getPath() + " : Missing fmt or data chunk");
+
+		final String sampleFormat;
+		if ((fmtTag == 1) && (bits == 16)) {
+			sampleFormat = kSampleInt16;
+		} else if ((fmtTag == 1) && (bits == 24)) {
+			sampleFormat = kSampleInt24;
+		} else if ((fmtTag == 1) && (bits == 32)) {
+			sampleFormat = kSampleInt32;
+		} else if ((fmtTag == 3) && (bits == 32)) {
+			sampleFormat = kSampleFloat;
+		} else {
+			throw new IOException(f.getPath() + " : Unsupported sample format (" + fmtTag + ", " + bits + " bits)");
+		}
+		if (numCh < 1)
+			throw new IOException(f.getPath() + " : Illegal number of channels " + numCh);
+
+		return new SoundFile(f, raf, false, kHeaderWAVE, sampleFormat, numCh, sr, ByteOrder.LITTLE_ENDIAN, dataOff,
+				dataSize / (numCh * bytesPerSample(sampleFormat)));
+	}
+
+	private static SoundFile parseAIFF(File f, RandomAccessFile raf, boolean isAIFC) throws IOException {
+		final FileChannel ch = raf.getChannel();
+		final long fileSize = ch.size();
+		long pos = 12;
+		int numCh = -1, bits = 0, compression = fourCC("NONE");
+		long commFrames = 0;
+		double sr = 0;
+		long dataOff = -1, dataSize = 0;
+
+		while ((pos + 8 <= fileSize) && (dataOff < 0 || numCh < 0)) {
+			final ByteBuffer b = readBytes(ch, pos, 8, ByteOrder.BIG_ENDIAN);
+			final int id = b.getInt(0);
+			final long size = b.getInt(4) & 0xFFFFFFFFL;
+
+			if (id == fourCC("COMM")) {
+				final ByteBuffer comm = readBytes(ch, pos + 8, isAIFC ? 22 : 18, ByteOrder.BIG_ENDIAN);
+				numCh = comm.getShort(0);
+				commFrames = comm.getInt(2) & 0xFFFFFFFFL;
+				bits = comm.getShort(6);
+				sr = readExtended(comm, 8);
+				if (isAIFC)
+					compression = comm.getInt(18);
+			} else if (id == fourCC("SSND")) {
+				final ByteBuffer ssnd = readBytes(ch, pos + 8, 8, ByteOrder.BIG_ENDIAN);
+				dataOff = pos + 16 + (ssnd.getInt(0) & 0xFFFFFFFFL);
+				dataSize = Math.min(size - 8, fileSize - dataOff);
+			}
+			pos += 8 + size + (size & 1);
+		}
+		if ((numCh < 0) || (dataOff < 0))
+			throw new IOException(f.getPath() + " : Missing COMM or SSND chunk");
+
+		ByteOrder order = ByteOrder.BIG_ENDIAN;
+		final String sampleFormat;
+		if ((compression == fourCC("NONE")) || (compression == fourCC("twos")) || (compression == fourCC("sowt"))) {
+			if (compression == fourCC("sowt"))
+				order = ByteOrder.LITTLE_ENDIAN;
+			if (bits == 16) {
+				sampleFormat = kSampleInt16;
+			} else if (bits == 24) {
+				sampleFormat = kSampleInt24;
+			} else if (bits == 32) {
+				sampleFormat = kSampleInt32;
+			} else {
+				throw new IOException(f.getPath() + " : Unsupported sample format (" + bits + " bits)");
+			}
+		} else if ((compression == fourCC("fl32")) || (compression == fourCC("FL32"))) {
+			sampleFormat = kSampleFloat;
+		} else {
+			throw new IOException(f.getPath() + " : Unsupported AIFC compression");
+		}
+		if (numCh < 1)
+			throw new IOException(f.getPath() + " : Illegal number of channels " + numCh);
+
+		final long numFrames = Math.min(commFrames, dataSize / (numCh * bytesPerSample(sampleFormat)));
+		return new SoundFile(f, raf, false, kHeaderAIFF, sampleFormat, numCh, sr, order, dataOff, numFrames);
+	}
+
+	private static SoundFile parseCAF(File f, RandomAccessFile raf) throws IOException {
+		final FileChannel ch = raf.getChannel();
+		final long fileSize = ch.size();
+		long pos = 8;
+		ByteBuffer desc = null;
+		long dataOff = -1, dataSize = 0;
+
+		while ((pos + 12 <= fileSize) && (dataOff < 0 || desc == null)) {
+			final ByteBuffer b = readBytes(ch, pos, 12, ByteOrder.BIG_ENDIAN);
+			final int id = b.getInt(0);
+			final long size = b.getLong(4);
+
+			if (id == fourCC("desc")) {
+				desc = readBytes(ch, pos + 12, 32, ByteOrder.BIG_ENDIAN);
+			} else if (id == fourCC("data")) {
+				dataOff = pos + 16; // skips the edit count
+				dataSize = (size < 0) ? fileSize - dataOff : Math.min(size - 4, fileSize - dataOff);
+				if (size < 0)
+					break; // data extends to the end of the file
+			}
+			pos += 12 + size;
+		}
+		if ((desc == null) || (dataOff < 0))
+			throw new IOException(f.getPath() + " : Missing desc or data chunk");
+
+		final double sr = desc.getDouble(0);
+		final int formatID = desc.getInt(8);
+		final int flags = desc.getInt(12);
+		final int numCh = desc.getInt(24);
+		final int bits = desc.getInt(28);
+		final boolean isFloat = (flags & 1) != 0;
+		final ByteOrder order = (flags & 2) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		final String sampleFormat;
+
+		if (formatID != fourCC("lpcm"))
+			throw new IOException(f.getPath() + " : Unsupported CAF format");
+		if (isFloat && (bits == 32)) {
+			sampleFormat = kSampleFloat;
+		} else if (!isFloat && (bits == 16)) {
+			sampleFormat = kSampleInt16;
+		} else if (!isFloat && (bits == 24)) {
+			sampleFormat = kSampleInt24;
+		} else if (!isFloat && (bits == 32)) {
+			sampleFormat = kSampleInt32;
+		} else {
+			throw new IOException(f.getPath() + " : Unsupported sample format (" + bits + " bits)");
+		}
+		if (numCh < 1)
+			throw new IOException(f.getPath() + " : Illegal number of channels " + numCh);
+
+		return new SoundFile(f, raf, false, kHeaderCAF, sampleFormat, numCh, sr, order, dataOff,
+				dataSize / (numCh * bytesPerSample(sampleFormat)));
+	}
+
+	// ---------- header writing ----------
+
+	// (re)writes the complete header for the current number of frames
+	private void writeHeader() throws IOException {
+		final long dataSize = numFrames * bytesPerFrame;
+		final ByteBuffer b = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.BIG_ENDIAN);
+
+		if (headerFormat.equals(kHeaderWAVE)) {
+			if (dataSize + 36 > 0xFFFFFFFFL)
+				throw new IOException("WAVE file exceeds 4 GB");
+			b.putInt(fourCC("RIFF")).order(ByteOrder.LITTLE_ENDIAN).putInt((int) (36 + dataSize + (dataSize & 1)));
+			b.order(ByteOrder.BIG_ENDIAN).putInt(fourCC("WAVE")).putInt(fourCC("fmt "));
+			b.order(ByteOrder.LITTLE_ENDIAN).putInt(16);
+			b.putShort((short) (isFloat ? 3 : 1)).putShort((short) numChannels);
+			b.putInt((int) sampleRate).putInt((int) sampleRate * bytesPerFrame);
+			b.putShort((short) bytesPerFrame).putShort((short) (bytesPerSample << 3));
+			b.order(ByteOrder.BIG_ENDIAN).putInt(fourCC("data"));
+			b.order(ByteOrder.LITTLE_ENDIAN).putInt((int) dataSize);
+
+		} else if (headerFormat.equals(kHeaderAIFF)) {
+			if (dataSize + dataOffset > 0xFFFFFFFFL)
+				throw new IOException("AIFF file exceeds 4 GB");
+			b.putInt(fourCC("FORM")).putInt((int) (dataOffset - 8 + dataSize + (dataSize & 1)));
+			if (isFloat) {
+				b.putInt(fourCC("AIFC"));
+				b.putInt(fourCC("FVER")).putInt(4).putInt(AIFC_VERSION);
+				b.putInt(fourCC("COMM")).putInt(24);
+			} else {
+				b.putInt(fourCC("AIFF"));
+				b.putInt(fourCC("COMM")).putInt(18);
+			}
+			b.putShort((short) numChannels).putInt((int) numFrames).putShort((short) (bytesPerSample << 3));
+			writeExtended(b, sampleRate);
+			if (isFloat) {
+				b.putInt(fourCC("fl32")).putShort((short) 0); // empty compression name (pascal string + pad)
+			}
+			b.putInt(fourCC("SSND")).putInt((int) (8 + dataSize)).putInt(0).putInt(0);
+
+		} else { // CAF
+			b.putInt(fourCC("caff")).putShort((short) 1).putShort((short) 0);
+			b.putInt(fourCC("desc")).putLong(32);
+			b.putDouble(sampleRate).putInt(fourCC("lpcm"));
+			b.putInt(isFloat ? 1 : 0); // big endian
+			b.putInt(bytesPerFrame).putInt(1).putInt(numChannels).putInt(bytesPerSample << 3);
+			b.putInt(fourCC("data")).putLong(4 + dataSize).putInt(0);
+		}
+
+		b.flip();
+		while (b.hasRemaining())
+			ch.write(b, b.position());
+		ch.position(dataOffset + dataSize);
+	}
+
+	// ---------- helpers ----------
+
+	private static int bytesPerSample(String sampleFormat) {
+		if (sampleFormat.equals(kSampleInt16)) {
+			return 2;
+		} else if (sampleFormat.equals(kSampleInt24)) {
+			return 3;
+		} else if (sampleFormat.equals(kSampleInt32) || sampleFormat.equals(kSampleFloat)) {
+			return 4;
+		} else {
+			throw new IllegalArgumentException("Unsupported sample format " + sampleFormat);
+		}
+	}
+
+	private static int fourCC(String id) {
+		return (id.charAt(0) << 24) | (id.charAt(1) << 16) | (id.charAt(2) << 8) | id.charAt(3);
+	}
+
+	private static ByteBuffer readBytes(FileChannel ch, long pos, int len, ByteOrder order) throws IOException {
+		final ByteBuffer b = ByteBuffer.allocate(len).order(order);
+
+		while (b.hasRemaining()) {
+			if (ch.read(b, pos + b.position()) < 0)
+				throw new EOFException("Unexpected end of file");
+		}
+		b.flip();
+		return b;
+	}
+
+	// decodes an 80 bit IEEE 754 extended precision number
+	private static double readExtended(ByteBuffer b, int off) {
+		final int exp = b.getShort(off) & 0x7FFF;
+		final long mant = b.getLong(off + 2);
+		final double d = Math.scalb((double) (mant >>> 11), exp - 16383 - 52);
+
+		return (b.getShort(off) & 0x8000) != 0 ? -d : d;
+	}
+
+	// encodes a positive number as 80 bit IEEE 754 extended precision
+	private static void writeExtended(ByteBuffer b, double d) {
+		if (d <= 0) {
+			b.putShort((short) 0).putLong(0L);
+			return;
+		}
+		final long bits = Double.doubleToLongBits(d);
+		final int exp = Math.getExponent(d) + 16383;
+		final long mant = ((bits & 0xFFFFFFFFFFFFFL) | (1L << 52)) << 11;
+
+		b.putShort((short) exp).putLong(mant);
+	}
+}
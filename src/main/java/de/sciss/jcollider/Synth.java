@@ -10,7 +10,11 @@
 package de.sciss.jcollider;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
 
 import javax.swing.tree.TreeNode;
 
@@ -32,6 +36,11 @@ import de.sciss.net.OSCMessage;
 public class Synth extends Node {
 	private final String defName;
 
+	private final Object shadowSync = new Object();
+	private float[] shadow = null; // null if control shadow is disabled
+	private float shadowEpsilon = 0f;
+	private long numSuppressed = 0;
+
 	// immediately sends
 	public Synth(String defName, Node target) throws IOException {
 		this(defName, null, null, target, kAddToHead);
@@ -71,6 +80,134 @@ public class Synth extends Node {
 		s.getServer().sendMsg(s.newMsg(target, argNames, argValues, addAction));
 	}
 
+	/**
+	 * Schedules a burst of grains. Like <code>grain</code>, each grain is a synth
+	 * with node ID <code>-1</code>, so it cannot be addressed afterwards and has
+	 * to free itself. Unlike <code>grain</code>, the grains are sent as time
+	 * tagged bundles, so that they start with sample accuracy on the server,
+	 * independent of the client's scheduling jitter. Grains with the same start
+	 * time share a bundle, and bundles are kept below the UDP safe size.
+	 *
+	 * @param defName
+	 *            the name of the synth def for all grains
+	 * @param argNames
+	 *            the names of the controls to set for each grain, or
+	 *            <code>null</code>
+	 * @param argValues
+	 *            the control values, where <code>argValues[ i ]</code> holds the
+	 *            values for grain <code>i</code> corresponding to
+	 *            <code>argNames</code>. can be <code>null</code> if
+	 *            <code>argNames</code> is <code>null</code>
+	 * @param offsets
+	 *            the start time of each grain in seconds relative to
+	 *            <code>baseTime</code>. the number of grains is
+	 *            <code>offsets.length</code>
+	 * @param baseTime
+	 *            the reference time in milliseconds since 1-Jan-1970, as returned
+	 *            by <code>System.currentTimeMillis()</code>
+	 * @param target
+	 *            the node relative to which the grains are created
+	 * @param addAction
+	 *            the add action to use relative to <code>target</code>
+	 * @return the number of bundles sent
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC bundles
+	 *
+	 * @see #grainBurstBundles( String, String[], float[][], double[], long, Node,
+	 *      int, int )
+	 */
+	public static int grainBurst(String defName, String[] argNames, float[][] argValues, double[] offsets,
+			long baseTime, Node target, int addAction) throws IOException {
+		final List<OSCBundle> bundles = grainBurstBundles(defName, argNames, argValues, offsets, baseTime, target,
+				addAction, PacketUtil.UDP_SAFE_SIZE);
+		final Server server = target.getServer();
+
+		for (int i = 0; i < bundles.size(); i++) {
+			server.sendBundle(bundles.get(i));
+		}
+		return bundles.size();
+	}
+
+	/**
+	 * Creates the bundles for a burst of grains without sending them. See
+	 * <code>grainBurst</code> for details. The returned bundles are sorted by
+	 * time tag.
+	 *
+	 * @param maxBundleSize
+	 *            the maximum encoded size of each bundle in bytes
+	 *
+	 * @see #grainBurst( String, String[], float[][], double[], long, Node, int )
+	 */
+	public static List<OSCBundle> grainBurstBundles(String defName, String[] argNames, float[][] argValues,
+			double[] offsets, long baseTime, Node target, int addAction, int maxBundleSize) {
+		if (target == null)
+			throw new IllegalArgumentException("target must not be null");
+
+		final int numGrains = offsets.length;
+		final int numArgs = argNames == null ? 0 : argNames.length;
+		if ((numArgs > 0) && (argValues.length != numGrains))
+			throw new IllegalArgumentException("# of argValues must match # of offsets");
+
+		// the template: these objects are shared among all grain messages
+		final Object defNameArg = defName;
+		final Object nodeIDArg = new Integer(-1);
+		final Object addActionArg = new Integer(addAction);
+		final Object targetArg = new Integer(target.getNodeID());
+
+		final List<OSCBundle> result = new ArrayList<>();
+		final Integer[] order = new Integer[numGrains];
+		OSCBundle bndl = null;
+		long bndlTag = 0;
+		int bndlSize = 0;
+		int msgSize = 0;
+
+		for (int i = 0; i < numGrains; i++) {
+			order[i] = new Integer(i);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(offsets[a.intValue()], offsets[b.intValue()]);
+			}
+		});
+
+		for (int i = 0; i < numGrains; i++) {
+			final int grain = order[i].intValue();
+			final long tag = PacketUtil.timeTag(baseTime, offsets[grain]);
+			final Object[] args = new Object[(numArgs << 1) + 4];
+
+			args[0] = defNameArg;
+			args[1] = nodeIDArg;
+			args[2] = addActionArg;
+			args[3] = targetArg;
+			if (numArgs > 0) {
+				final float[] values = argValues[grain];
+				for (int j = 0, k = 4; j < numArgs; j++) {
+					args[k++] = argNames[j];
+					args[k++] = new Float(values[j]);
+				}
+			}
+			final OSCMessage msg = new OSCMessage("/s_new", args);
+			// all grain messages have the same layout, hence the same size
+			if (msgSize == 0)
+				msgSize = 4 + PacketUtil.messageSize(msg);
+
+			if ((bndl == null) || (tag != bndlTag)
+					|| ((bndlSize + msgSize > maxBundleSize) && (bndl.getPacketCount() > 0))) {
+				bndl = new OSCBundle();
+				bndl.setTimeTagRaw(tag);
+				bndlTag = tag;
+				bndlSize = PacketUtil.BUNDLE_OVERHEAD;
+				result.add(bndl);
+			}
+			bndl.addPacket(msg);
+			bndlSize += msgSize;
+		}
+
+		return result;
+	}
+
 	public String getDefName() {
 		return defName;
 	}
@@ -196,6 +333,438 @@ public class Synth extends Node {
 		return newMsg(aNode, argNames, argValues, kAddReplace);
 	}
 
+	// ----------- control name resolution -----------
+
+	// The following methods replace control names by control indices
+	// if the synth's definition is registered with ControlIndexCache.
+	// If any name is unknown, the names are sent as they are.
+	// All message factories also invalidate the affected entries of
+	// the control shadow, since we cannot know if and when the
+	// messages are sent.
+
+	/**
+	 * Returns the control index cache of this synth's definition.
+	 *
+	 * @return the cache or <code>null</code>, if the definition has not been
+	 *         registered
+	 */
+	public ControlIndexCache getControlIndexCache() {
+		return ControlIndexCache.forDef(defName);
+	}
+
+	private int[] resolve(String[] ctrlNames) {
+		final ControlIndexCache cache = getControlIndexCache();
+		return cache == null ? null : cache.indicesOf(ctrlNames);
+	}
+
+	private int resolve(String ctrlName) {
+		final ControlIndexCache cache = getControlIndexCache();
+		return cache == null ? -1 : cache.indexOf(ctrlName);
+	}
+
+	@Override
+	public OSCMessage setMsg(String ctrlName, float value) {
+		final int idx = resolve(ctrlName);
+		if (idx >= 0)
+			return setMsg(idx, value);
+
+		invalidateShadow();
+		return super.setMsg(ctrlName, value);
+	}
+
+	@Override
+	public OSCMessage setMsg(int ctrlIdx, float value) {
+		invalidateShadow(ctrlIdx, 1);
+		return super.setMsg(ctrlIdx, value);
+	}
+
+	@Override
+	public OSCMessage setMsg(String[] ctrlNames, float[] values) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return setMsg(indices, values);
+
+		invalidateShadow();
+		return super.setMsg(ctrlNames, values);
+	}
+
+	@Override
+	public OSCMessage setMsg(int[] ctrlIndices, float[] values) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], 1);
+		}
+		return super.setMsg(ctrlIndices, values);
+	}
+
+	@Override
+	public OSCMessage fillMsg(String[] ctrlNames, int[] numControls, float[] values) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return fillMsg(indices, numControls, values);
+
+		invalidateShadow();
+		return super.fillMsg(ctrlNames, numControls, values);
+	}
+
+	@Override
+	public OSCMessage fillMsg(int[] ctrlIndices, int[] numControls, float[] values) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], numControls[i]);
+		}
+		return super.fillMsg(ctrlIndices, numControls, values);
+	}
+
+	@Override
+	public OSCMessage setnMsg(String[] ctrlNames, float[][] values) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return setnMsg(indices, values);
+
+		invalidateShadow();
+		return super.setnMsg(ctrlNames, values);
+	}
+
+	@Override
+	public OSCMessage setnMsg(int[] ctrlIndices, float[][] values) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], values[i].length);
+		}
+		return super.setnMsg(ctrlIndices, values);
+	}
+
+	@Override
+	public OSCMessage mapMsg(String[] ctrlNames, int[] busIndices) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return mapMsg(indices, busIndices);
+
+		invalidateShadow();
+		return super.mapMsg(ctrlNames, busIndices);
+	}
+
+	@Override
+	public OSCMessage mapMsg(int[] ctrlIndices, int[] busIndices) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], 1);
+		}
+		return super.mapMsg(ctrlIndices, busIndices);
+	}
+
+	@Override
+	public OSCMessage mapMsg(String[] ctrlNames, Bus[] busses) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return mapMsg(indices, busses);
+
+		invalidateShadow();
+		return super.mapMsg(ctrlNames, busses);
+	}
+
+	@Override
+	public OSCMessage mapMsg(int[] ctrlIndices, Bus[] busses) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], 1);
+		}
+		return super.mapMsg(ctrlIndices, busses);
+	}
+
+	@Override
+	public OSCMessage mapMsg(String ctrlName, Bus bus) {
+		final int idx = resolve(ctrlName);
+		if (idx >= 0)
+			return mapMsg(new int[] { idx }, new Bus[] { bus });
+
+		invalidateShadow();
+		return super.mapMsg(ctrlName, bus);
+	}
+
+	@Override
+	public OSCMessage mapnMsg(String[] ctrlNames, int[] busIndices, int[] numControls) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return mapnMsg(indices, busIndices, numControls);
+
+		invalidateShadow();
+		return super.mapnMsg(ctrlNames, busIndices, numControls);
+	}
+
+	@Override
+	public OSCMessage mapnMsg(int[] ctrlIndices, int[] busIndices, int[] numControls) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], numControls[i]);
+		}
+		return super.mapnMsg(ctrlIndices, busIndices, numControls);
+	}
+
+	@Override
+	public OSCMessage mapnMsg(String[] ctrlNames, Bus[] busses) {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null)
+			return mapnMsg(indices, busses);
+
+		invalidateShadow();
+		return super.mapnMsg(ctrlNames, busses);
+	}
+
+	@Override
+	public OSCMessage mapnMsg(int[] ctrlIndices, Bus[] busses) {
+		for (int i = 0; i < ctrlIndices.length; i++) {
+			invalidateShadow(ctrlIndices[i], busses[i] == null ? 1 : busses[i].getNumChannels());
+		}
+		return super.mapnMsg(ctrlIndices, busses);
+	}
+
+	// releasing sets the "gate" control, so a subsequent
+	// set( "gate", 1 ) must not be suppressed by the shadow
+	@Override
+	public OSCMessage releaseMsg(float releaseTime) {
+		final int idx = resolve("gate");
+		if (idx >= 0) {
+			invalidateShadow(idx, 1);
+		} else {
+			invalidateShadow();
+		}
+		return super.releaseMsg(releaseTime);
+	}
+
+	// ----------- control shadow -----------
+
+	/**
+	 * Enables or disables the control shadow with an epsilon of zero.
+	 *
+	 * @see #setControlShadow( boolean, float )
+	 */
+	public void setControlShadow(boolean onOff) {
+		setControlShadow(onOff, 0f);
+	}
+
+	/**
+	 * Enables or disables the control shadow. The shadow remembers the control
+	 * values last sent by the <code>set</code> and <code>setn</code> methods. Those
+	 * methods then skip values which are equal to, or differ by no more than
+	 * <code>epsilon</code> from, the remembered values. When all values are
+	 * skipped, no message is sent at all. The number of skipped values can be
+	 * queried using <code>getNumSuppressedWrites</code>.
+	 * <p>
+	 * Values written by other means, i.e. by messages created with the
+	 * <code>...Msg</code> methods, or by mapping controls to busses, are not
+	 * tracked. The corresponding shadow entries are forgotten instead, so the next
+	 * <code>set</code> will not be skipped.
+	 *
+	 * @param onOff
+	 *            <code>true</code> to enable the shadow
+	 * @param epsilon
+	 *            the maximum difference between a new and the last sent value, for
+	 *            which the new value is skipped
+	 *
+	 * @throws IllegalStateException
+	 *             if the synth's definition is not registered with
+	 *             <code>ControlIndexCache</code>, hence the number of controls is
+	 *             unknown
+	 */
+	public void setControlShadow(boolean onOff, float epsilon) {
+		synchronized (shadowSync) {
+			if (onOff) {
+				final ControlIndexCache cache = getControlIndexCache();
+				if (cache == null)
+					throw new IllegalStateException("Controls of def '" + defName + "' are unknown");
+
+				if ((shadow == null) || (shadow.length != cache.getNumControls())) {
+					shadow = new float[cache.getNumControls()];
+					Arrays.fill(shadow, Float.NaN);
+				}
+				shadowEpsilon = epsilon;
+			} else {
+				shadow = null;
+			}
+		}
+	}
+
+	public boolean hasControlShadow() {
+		synchronized (shadowSync) {
+			return shadow != null;
+		}
+	}
+
+	/**
+	 * Returns the number of control values which were not sent because they did
+	 * not change with respect to the control shadow.
+	 */
+	public long getNumSuppressedWrites() {
+		synchronized (shadowSync) {
+			return numSuppressed;
+		}
+	}
+
+	public void resetNumSuppressedWrites() {
+		synchronized (shadowSync) {
+			numSuppressed = 0;
+		}
+	}
+
+	@Override
+	public void set(String ctrlName, float value) throws IOException {
+		final int idx = resolve(ctrlName);
+		if (idx >= 0) {
+			set(idx, value);
+		} else {
+			super.set(ctrlName, value);
+		}
+	}
+
+	@Override
+	public void set(int ctrlIdx, float value) throws IOException {
+		synchronized (shadowSync) {
+			if (isShadowed(ctrlIdx, value)) {
+				numSuppressed++;
+				return;
+			}
+			super.set(ctrlIdx, value);
+			updateShadow(ctrlIdx, value);
+		}
+	}
+
+	@Override
+	public void set(String[] ctrlNames, float[] values) throws IOException {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null) {
+			set(indices, values);
+		} else {
+			super.set(ctrlNames, values);
+		}
+	}
+
+	@Override
+	public void set(int[] ctrlIndices, float[] values) throws IOException {
+		synchronized (shadowSync) {
+			if (shadow == null) {
+				super.set(ctrlIndices, values);
+				return;
+			}
+
+			int numKept = 0;
+			for (int i = 0; i < ctrlIndices.length; i++) {
+				if (!isShadowed(ctrlIndices[i], values[i]))
+					numKept++;
+			}
+			numSuppressed += ctrlIndices.length - numKept;
+			if (numKept == 0)
+				return;
+
+			final int[] keptIndices;
+			final float[] keptValues;
+			if (numKept == ctrlIndices.length) {
+				keptIndices = ctrlIndices;
+				keptValues = values;
+			} else {
+				keptIndices = new int[numKept];
+				keptValues = new float[numKept];
+				for (int i = 0, j = 0; i < ctrlIndices.length; i++) {
+					if (!isShadowed(ctrlIndices[i], values[i])) {
+						keptIndices[j] = ctrlIndices[i];
+						keptValues[j++] = values[i];
+					}
+				}
+			}
+
+			super.set(keptIndices, keptValues);
+			for (int i = 0; i < numKept; i++) {
+				updateShadow(keptIndices[i], keptValues[i]);
+			}
+		}
+	}
+
+	@Override
+	public void setn(String[] ctrlNames, float[][] values) throws IOException {
+		final int[] indices = resolve(ctrlNames);
+		if (indices != null) {
+			setn(indices, values);
+		} else {
+			super.setn(ctrlNames, values);
+		}
+	}
+
+	// a range is skipped only if all of its values are unchanged
+	@Override
+	public void setn(int[] ctrlIndices, float[][] values) throws IOException {
+		synchronized (shadowSync) {
+			if (shadow == null) {
+				super.setn(ctrlIndices, values);
+				return;
+			}
+
+			final boolean[] kept = new boolean[ctrlIndices.length];
+			int numKept = 0;
+			for (int i = 0; i < ctrlIndices.length; i++) {
+				final float[] subV = values[i];
+				for (int k = 0; k < subV.length; k++) {
+					if (!isShadowed(ctrlIndices[i] + k, subV[k])) {
+						kept[i] = true;
+						numKept++;
+						break;
+					}
+				}
+				if (!kept[i])
+					numSuppressed += subV.length;
+			}
+			if (numKept == 0)
+				return;
+
+			final int[] keptIndices = new int[numKept];
+			final float[][] keptValues = new float[numKept][];
+			for (int i = 0, j = 0; i < ctrlIndices.length; i++) {
+				if (kept[i]) {
+					keptIndices[j] = ctrlIndices[i];
+					keptValues[j++] = values[i];
+				}
+			}
+
+			super.setn(keptIndices, keptValues);
+			for (int i = 0; i < numKept; i++) {
+				final float[] subV = keptValues[i];
+				for (int k = 0; k < subV.length; k++) {
+					updateShadow(keptIndices[i] + k, subV[k]);
+				}
+			}
+		}
+	}
+
+	// sync: caller must hold shadowSync
+	private boolean isShadowed(int ctrlIdx, float value) {
+		if ((shadow == null) || (ctrlIdx < 0) || (ctrlIdx >= shadow.length))
+			return false;
+
+		final float old = shadow[ctrlIdx];
+		return (old == value) || (Math.abs(value - old) <= shadowEpsilon);
+	}
+
+	// sync: caller must hold shadowSync
+	private void updateShadow(int ctrlIdx, float value) {
+		if ((shadow != null) && (ctrlIdx >= 0) && (ctrlIdx < shadow.length)) {
+			shadow[ctrlIdx] = value;
+		}
+	}
+
+	// also used by NodeBatch
+	void invalidateShadow(int ctrlIdx, int numControls) {
+		synchronized (shadowSync) {
+			if (shadow == null)
+				return;
+
+			final int start = Math.max(0, ctrlIdx);
+			final int stop = Math.min(shadow.length, ctrlIdx + numControls);
+			if (start < stop)
+				Arrays.fill(shadow, start, stop, Float.NaN);
+		}
+	}
+
+	void invalidateShadow() {
+		synchronized (shadowSync) {
+			if (shadow != null)
+				Arrays.fill(shadow, Float.NaN);
+		}
+	}
+
 	/**
 	 * Queries the current value of a synth control.
 	 * 
@@ -445,6 +445,8 @@ public class SynthDef implements Constants {
 	public OSCMessage recvMsg(OSCMessage completionMsg) throws IOException {
 		final Object[] args;
 
+		ControlIndexCache.register(this);
+
 		if (completionMsg == null) {
 			args = new Object[] { this.asBytes() };
 		} else {
@@ -515,6 +517,7 @@ public class SynthDef implements Constants {
 	public void load(Server s, OSCMessage completionMsg, File path) throws IOException {
 		final Object[] args;
 		writeDefFile(path);
+		ControlIndexCache.register(this);
 		if (completionMsg == null) {
 			args = new Object[] { path };
 		} else {
@@ -651,6 +654,16 @@ public class SynthDef implements Constants {
 		}
 	}
 
+	/**
+	 * Returns a list of the descriptions of all controls. The list index of each
+	 * description corresponds to the control index.
+	 *
+	 * @return list whose elements are of class <code>ControlDesc</code>
+	 */
+	public List<ControlDesc> getControlDescs() {
+		return new ArrayList<ControlDesc>(controlDescs);
+	}
+
 	/**
 	 * Return a list of all UGens in the graph (in the depth-first sorted
 	 * topological order).
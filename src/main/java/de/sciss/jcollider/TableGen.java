@@ -0,0 +1,341 @@
+/*
+ * TableGen.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Computes lookup tables on the client side, such as wavetables made of
+ * partials, Chebyshev transfer functions, window functions and envelope
+ * tables. These correspond to the server's <code>/b_gen</code> commands, but
+ * do not occupy the server's non-realtime thread, which is shared by all
+ * asynchronous commands. The tables can be converted to the server's
+ * wavetable format (as required by <code>Osc</code>, <code>Shaper</code> etc.)
+ * and uploaded with <code>Buffer.sendCollection</code>.
+ * <p>
+ * Partials are summed by a recurrence instead of calling
+ * <code>Math.sin</code> for each sample and partial: the sine of each partial
+ * is advanced with a rotation, which only needs multiplications and additions.
+ * The rotation is restarted from exact values at regular intervals to bound
+ * the accumulated rounding error.
+ *
+ * @see Buffer#sendCollection( float[] )
+ */
+public class TableGen {
+	// number of samples after which the partial recurrence is restarted
+	private static final int RESYNC = 256;
+
+	private TableGen() {
+		/* empty */
+	}
+
+	/**
+	 * Sums harmonic partials with zero phase, like <code>/b_gen sine1</code>.
+	 *
+	 * @param size
+	 *            the table size in samples
+	 * @param amps
+	 *            the amplitude of each partial, starting with the fundamental
+	 * @param normalize
+	 *            whether to normalize the peak amplitude to one
+	 * @return the table, covering one period
+	 */
+	public static float[] sine1(int size, float[] amps, boolean normalize) {
+		final float[] freqs = new float[amps.length];
+		for (int i = 0; i < amps.length; i++) {
+			freqs[i] = i + 1;
+		}
+		return sine3(size, freqs, amps, null, normalize);
+	}
+
+	/**
+	 * Sums partials of arbitrary frequencies with zero phase, like
+	 * <code>/b_gen sine2</code>.
+	 *
+	 * @param freqs
+	 *            the frequency of each partial, in cycles per table
+	 * @param amps
+	 *            the amplitude of each partial
+	 */
+	public static float[] sine2(int size, float[] freqs, float[] amps, boolean normalize) {
+		return sine3(size, freqs, amps, null, normalize);
+	}
+
+	/**
+	 * Sums partials of arbitrary frequencies and phases, like
+	 * <code>/b_gen sine3</code>.
+	 *
+	 * @param size
+	 *            the table size in samples
+	 * @param freqs
+	 *            the frequency of each partial, in cycles per table
+	 * @param amps
+	 *            the amplitude of each partial
+	 * @param phases
+	 *            the phase of each partial in radians, or <code>null</code> for
+	 *            zero phases
+	 * @param normalize
+	 *            whether to normalize the peak amplitude to one
+	 * @return the table
+	 */
+	public static float[] sine3(int size, float[] freqs, float[] amps, float[] phases, boolean normalize) {
+		final double[] acc = new double[size];
+
+		for (int p = 0; p < freqs.length; p++) {
+			final double amp = amps[p];
+			if (amp == 0)
+				continue;
+
+			final double w = 2 * Math.PI * freqs[p] / size;
+			final double phase = phases == null ? 0.0 : phases[p];
+			final double cw = Math.cos(w);
+			final double sw = Math.sin(w);
+
+			for (int start = 0; start < size; start += RESYNC) {
+				final int stop = Math.min(size, start + RESYNC);
+				double s = Math.sin(w * start + phase);
+				double c = Math.cos(w * start + phase);
+
+				for (int i = start; i < stop; i++) {
+					acc[i] += amp * s;
+					final double sn = s * cw + c * sw;
+					c = c * cw - s * sw;
+					s = sn;
+				}
+			}
+		}
+
+		final float[] table = toFloat(acc);
+		if (normalize)
+			normalize(table);
+		return table;
+	}
+
+	/**
+	 * Sums Chebyshev polynomials, like <code>/b_gen cheby</code>. The result is a
+	 * transfer function for <code>Shaper</code>, covering input values from
+	 * <code>-1</code> to <code>+1</code>.
+	 *
+	 * @param size
+	 *            the table size in samples
+	 * @param amps
+	 *            the amplitude of each polynomial, starting with the first order
+	 * @param normalize
+	 *            whether to normalize the peak amplitude to one
+	 * @return the table
+	 */
+	public static float[] cheby(int size, float[] amps, boolean normalize) {
+		final float[] table = new float[size];
+		final double scale = size > 1 ? 2.0 / (size - 1) : 0.0;
+
+		for (int i = 0; i < size; i++) {
+			final double x = i * scale - 1.0;
+			// T(n+1) = 2x T(n) - T(n-1)
+			double t0 = 1.0;
+			double t1 = x;
+			double sum = 0.0;
+			for (int p = 0; p < amps.length; p++) {
+				sum += amps[p] * t1;
+				final double t2 = 2 * x * t1 - t0;
+				t0 = t1;
+				t1 = t2;
+			}
+			table[i] = (float) sum;
+		}
+		if (normalize)
+			normalize(table);
+		return table;
+	}
+
+	/**
+	 * Creates a Hann (raised cosine) window.
+	 */
+	public static float[] hann(int size) {
+		return cosineWindow(size, 0.5, 0.5, 0.0);
+	}
+
+	/**
+	 * Creates a Hamming window.
+	 */
+	public static float[] hamming(int size) {
+		return cosineWindow(size, 0.54, 0.46, 0.0);
+	}
+
+	/**
+	 * Creates a Blackman window.
+	 */
+	public static float[] blackman(int size) {
+		return cosineWindow(size, 0.42, 0.5, 0.08);
+	}
+
+	/**
+	 * Creates a Welch (parabolic) window.
+	 */
+	public static float[] welch(int size) {
+		final float[] table = new float[size];
+		final double half = (size - 1) * 0.5;
+
+		for (int i = 0; i < size; i++) {
+			final double x = half > 0 ? (i - half) / half : 0.0;
+			table[i] = (float) (1.0 - x * x);
+		}
+		return table;
+	}
+
+	/**
+	 * Creates a triangular window.
+	 */
+	public static float[] triangle(int size) {
+		final float[] table = new float[size];
+		final double half = (size - 1) * 0.5;
+
+		for (int i = 0; i < size; i++) {
+			table[i] = half > 0 ? (float) (1.0 - Math.abs(i - half) / half) : 1f;
+		}
+		return table;
+	}
+
+	/**
+	 * Creates an envelope table by sampling a breakpoint envelope at equal
+	 * intervals, spanning the whole envelope duration.
+	 *
+	 * @param size
+	 *            the table size in samples
+	 * @param levels
+	 *            the levels of the breakpoints
+	 * @param durs
+	 *            the duration of each segment. there must be one duration less
+	 *            than levels
+	 * @param curve
+	 *            the curvature of all segments, as in sclang's <code>Env</code>.
+	 *            zero is linear, positive values bend towards the end, negative
+	 *            values towards the start
+	 * @return the table
+	 */
+	public static float[] env(int size, float[] levels, float[] durs, float curve) {
+		if (durs.length != levels.length - 1)
+			throw new IllegalArgumentException("# of durs must be one less than # of levels");
+
+		final float[] table = new float[size];
+		double total = 0.0;
+		for (int i = 0; i < durs.length; i++) {
+			total += durs[i];
+		}
+
+		final boolean linear = Math.abs(curve) < 1.0e-4;
+		final double denom = linear ? 1.0 : 1.0 - Math.exp(curve);
+		final double step = size > 1 ? total / (size - 1) : 0.0;
+		int seg = 0;
+		double segStart = 0.0;
+
+		for (int i = 0; i < size; i++) {
+			final double t = i * step;
+			while ((seg < durs.length - 1) && (t >= segStart + durs[seg])) {
+				segStart += durs[seg];
+				seg++;
+			}
+			if (durs.length == 0) {
+				table[i] = levels[0];
+				continue;
+			}
+			final double y1 = levels[seg];
+			final double y2 = levels[seg + 1];
+			final double pos = durs[seg] > 0 ? Math.min(1.0, (t - segStart) / durs[seg]) : 1.0;
+			final double w = linear ? pos : (1.0 - Math.exp(pos * curve)) / denom;
+
+			table[i] = (float) (y1 + (y2 - y1) * w);
+		}
+		return table;
+	}
+
+	/**
+	 * Converts a signal covering one period to the server's wavetable format,
+	 * which is twice as long. Each pair of values <code>(2a - b, b - a)</code>
+	 * allows the server to interpolate between successive samples <code>a</code>
+	 * and <code>b</code> with a single multiply-add. The last sample interpolates
+	 * towards the first one.
+	 *
+	 * @param signal
+	 *            the signal
+	 * @return the wavetable
+	 */
+	public static float[] toWavetable(float[] signal) {
+		final int size = signal.length;
+		final float[] table = new float[size << 1];
+
+		for (int i = 0, j = 0; i < size; i++) {
+			final float a = signal[i];
+			final float b = signal[i + 1 < size ? i + 1 : 0];
+			table[j++] = 2 * a - b;
+			table[j++] = b - a;
+		}
+		return table;
+	}
+
+	/**
+	 * Scales a table in place so that its peak amplitude is one. A table of
+	 * zeroes is left unchanged.
+	 */
+	public static void normalize(float[] table) {
+		float peak = 0f;
+
+		for (int i = 0; i < table.length; i++) {
+			final float abs = Math.abs(table[i]);
+			if (abs > peak)
+				peak = abs;
+		}
+		if (peak > 0f) {
+			final float gain = 1f / peak;
+			for (int i = 0; i < table.length; i++) {
+				table[i] *= gain;
+			}
+		}
+	}
+
+	/**
+	 * Uploads a table to a buffer, converting it to the wavetable format first
+	 * if requested. The buffer must be allocated with a matching size, i.e.
+	 * twice the signal length for a wavetable.
+	 *
+	 * @param buf
+	 *            the buffer to write to
+	 * @param table
+	 *            the table
+	 * @param asWavetable
+	 *            whether to convert the table to the wavetable format
+	 * @return a future which completes when the server has processed all values
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public static CompletableFuture<Buffer> upload(Buffer buf, float[] table, boolean asWavetable)
+			throws IOException {
+		return buf.sendCollection(asWavetable ? toWavetable(table) : table);
+	}
+
+	private static float[] cosineWindow(int size, double a0, double a1, double a2) {
+		final float[] table = new float[size];
+		final double w = size > 1 ? 2 * Math.PI / (size - 1) : 0.0;
+
+		for (int i = 0; i < size; i++) {
+			table[i] = (float) (a0 - a1 * Math.cos(w * i) + a2 * Math.cos(2 * w * i));
+		}
+		return table;
+	}
+
+	private static float[] toFloat(double[] values) {
+		final float[] result = new float[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = (float) values[i];
+		}
+		return result;
+	}
+}
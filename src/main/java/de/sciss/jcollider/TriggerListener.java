@@ -0,0 +1,37 @@
+/*
+ * TriggerListener.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+/**
+ * Objects which wish to be informed about triggers sent by the server
+ * (<code>SendTrig</code> or <code>SendReply</code>) must implement this
+ * interface and register using <code>TriggerResponder.addListener</code>.
+ *
+ * @see TriggerResponder#addListener( int, int, TriggerListener )
+ */
+public interface TriggerListener {
+	/**
+	 * Called when a trigger message arrives.
+	 *
+	 * @param nodeID
+	 *            the ID of the node which sent the trigger
+	 * @param replyID
+	 *            the trigger ID (<code>SendTrig</code>) or reply ID
+	 *            (<code>SendReply</code>)
+	 * @param values
+	 *            the values of the trigger. <code>SendTrig</code> provides one
+	 *            value. the array is reused for successive calls, so it must not be
+	 *            modified or retained after the method returns
+	 *
+	 * @synchronization this method is invoked in the OSC listening thread. it
+	 *                  should return quickly and must defer calls to Swing
+	 */
+	public void onTrigger(int nodeID, int replyID, float[] values);
+}
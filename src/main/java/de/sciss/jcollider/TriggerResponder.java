@@ -0,0 +1,303 @@
+/*
+ * TriggerResponder.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+
+import de.sciss.net.OSCMessage;
+
+/**
+ * Receives trigger messages sent by the <code>SendTrig</code>
+ * (<code>/tr</code>) and <code>SendReply</code> (<code>/reply</code> or a
+ * custom command name) UGens and dispatches them to listeners registered for a
+ * particular combination of node ID and trigger ID.
+ * <p>
+ * The dispatch is designed for high message rates: the registrations are kept
+ * in an immutable hash table which is replaced as a whole when listeners are
+ * added or removed, so looking up the listeners of an incoming message neither
+ * locks nor allocates. The values are copied into a float array which is reused
+ * for all messages of the same registration.
+ * <p>
+ * Listeners are called in the OSC listening thread. To consume triggers at a
+ * different rate, register a <code>TriggerRing</code> and poll it.
+ *
+ * @synchronization all methods are thread safe
+ *
+ * @see TriggerRing
+ */
+public class TriggerResponder implements OSCResponderNode.Action {
+	/**
+	 * Wildcard for <code>addListener</code> which matches any node ID or any
+	 * trigger ID.
+	 */
+	public static final int ANY = Integer.MIN_VALUE;
+
+	private final Server server;
+	private final OSCResponderNode[] resps;
+
+	private final Object sync = new Object();
+	private volatile Table table = new Table(new Registration[0]); // replaced with sync on 'sync'
+
+	/**
+	 * Creates a responder for <code>/tr</code> and <code>/reply</code> messages.
+	 * Call <code>add</code> to start listening.
+	 */
+	public TriggerResponder(Server server) {
+		this(server, new String[] { "/tr", "/reply" });
+	}
+
+	/**
+	 * Creates a responder for the given command names. Each message must have the
+	 * form <code>[ cmdName, nodeID, triggerID, values ... ]</code>. Call
+	 * <code>add</code> to start listening.
+	 *
+	 * @param cmdNames
+	 *            the command names to listen to, such as <code>&quot;/tr&quot;</code>
+	 *            or the command name used in a <code>SendReply</code> UGen
+	 */
+	public TriggerResponder(Server server, String[] cmdNames) {
+		this.server = server;
+
+		resps = new OSCResponderNode[cmdNames.length];
+		for (int i = 0; i < cmdNames.length; i++) {
+			resps[i] = new OSCResponderNode(server, cmdNames[i], this);
+		}
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Starts listening for trigger messages.
+	 */
+	public void add() throws IOException {
+		synchronized (sync) {
+			try {
+				for (int i = 0; i < resps.length; i++) {
+					if (!resps[i].isListening())
+						resps[i].add();
+				}
+			} catch (IOException e1) {
+				remove();
+				throw e1;
+			}
+		}
+	}
+
+	/**
+	 * Stops listening for trigger messages. The registered listeners are kept.
+	 */
+	public void remove() {
+		synchronized (sync) {
+			for (int i = 0; i < resps.length; i++) {
+				resps[i].remove();
+			}
+		}
+	}
+
+	/**
+	 * Registers a listener for triggers with the given node and trigger ID.
+	 *
+	 * @param nodeID
+	 *            the ID of the node sending the triggers, or <code>ANY</code>
+	 * @param replyID
+	 *            the trigger or reply ID, or <code>ANY</code>
+	 * @param l
+	 *            the listener to add
+	 */
+	public void addListener(int nodeID, int replyID, TriggerListener l) {
+		synchronized (sync) {
+			final Registration[] regs = table.regs;
+			final Registration[] newRegs = new Registration[regs.length + 1];
+
+			System.arraycopy(regs, 0, newRegs, 0, regs.length);
+			newRegs[regs.length] = new Registration(nodeID, replyID, l);
+			table = new Table(newRegs);
+		}
+	}
+
+	/**
+	 * Unregisters a listener which was added with the same node and trigger ID.
+	 */
+	public void removeListener(int nodeID, int replyID, TriggerListener l) {
+		synchronized (sync) {
+			final Registration[] regs = table.regs;
+
+			for (int i = 0; i < regs.length; i++) {
+				final Registration reg = regs[i];
+				if ((reg.nodeID == nodeID) && (reg.replyID == replyID) && (reg.listener == l)) {
+					final Registration[] newRegs = new Registration[regs.length - 1];
+					System.arraycopy(regs, 0, newRegs, 0, i);
+					System.arraycopy(regs, i + 1, newRegs, i, newRegs.length - i);
+					table = new Table(newRegs);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unregisters all listeners for the given node, including those registered
+	 * with <code>ANY</code> as trigger ID. This is useful when the node has ended.
+	 */
+	public void removeAllListeners(int nodeID) {
+		synchronized (sync) {
+			final Registration[] regs = table.regs;
+			int numKept = 0;
+
+			for (int i = 0; i < regs.length; i++) {
+				if (regs[i].nodeID != nodeID)
+					numKept++;
+			}
+			if (numKept == regs.length)
+				return;
+
+			final Registration[] newRegs = new Registration[numKept];
+			for (int i = 0, j = 0; i < regs.length; i++) {
+				if (regs[i].nodeID != nodeID)
+					newRegs[j++] = regs[i];
+			}
+			table = new Table(newRegs);
+		}
+	}
+
+	/**
+	 * Stops listening and unregisters all listeners.
+	 */
+	public void dispose() {
+		synchronized (sync) {
+			remove();
+			table = new Table(new Registration[0]);
+		}
+	}
+
+	// ----------- OSCResponderNode.Action interface -----------
+
+	/**
+	 * This method is part of the implementation of the OSCResponderNode.Action
+	 * interface. Do not call this method.
+	 */
+	@Override
+	public void respond(OSCResponderNode r, OSCMessage msg, long time) {
+		if (msg.getArgCount() < 2)
+			return;
+
+		final int nodeID = ((Number) msg.getArg(0)).intValue();
+		final int replyID = ((Number) msg.getArg(1)).intValue();
+		final Table t = table;
+
+		if (t.isEmpty())
+			return;
+
+		t.dispatch(nodeID, replyID, nodeID, replyID, msg);
+		t.dispatch(nodeID, ANY, nodeID, replyID, msg);
+		t.dispatch(ANY, replyID, nodeID, replyID, msg);
+		t.dispatch(ANY, ANY, nodeID, replyID, msg);
+	}
+
+	// ----------- internal classes -----------
+
+	private static class Registration {
+		protected final int nodeID;
+		protected final int replyID;
+		protected final TriggerListener listener;
+		protected float[] values = new float[1]; // only accessed in the OSC thread
+
+		protected Registration(int nodeID, int replyID, TriggerListener listener) {
+			this.nodeID = nodeID;
+			this.replyID = replyID;
+			this.listener = listener;
+		}
+
+		protected void dispatch(int srcNodeID, int srcReplyID, OSCMessage msg) {
+			final int numValues = msg.getArgCount() - 2;
+
+			if (values.length != numValues)
+				values = new float[numValues];
+			for (int i = 0; i < numValues; i++) {
+				values[i] = ((Number) msg.getArg(i + 2)).floatValue();
+			}
+			try {
+				listener.onTrigger(srcNodeID, srcReplyID, values);
+			} catch (Exception e1) {
+				e1.printStackTrace(Server.getPrintStream());
+			}
+		}
+	}
+
+	// immutable open addressing hash table, mapping each key
+	// to the registrations of that key in the order of registration
+	private static class Table {
+		protected final Registration[] regs;
+		private final long[] keys;
+		private final Registration[][] slots;
+		private final int mask;
+
+		protected Table(Registration[] regs) {
+			int cap = 4;
+
+			this.regs = regs;
+			while (cap < (regs.length << 1))
+				cap <<= 1;
+			keys = new long[cap];
+			slots = new Registration[cap][];
+			mask = cap - 1;
+
+			for (int i = 0; i < regs.length; i++) {
+				final Registration reg = regs[i];
+				final long key = key(reg.nodeID, reg.replyID);
+				int idx = hash(key) & mask;
+
+				while ((slots[idx] != null) && (keys[idx] != key)) {
+					idx = (idx + 1) & mask;
+				}
+				if (slots[idx] == null) {
+					keys[idx] = key;
+					slots[idx] = new Registration[] { reg };
+				} else {
+					final Registration[] old = slots[idx];
+					slots[idx] = new Registration[old.length + 1];
+					System.arraycopy(old, 0, slots[idx], 0, old.length);
+					slots[idx][old.length] = reg;
+				}
+			}
+		}
+
+		protected boolean isEmpty() {
+			return regs.length == 0;
+		}
+
+		protected void dispatch(int nodeID, int replyID, int srcNodeID, int srcReplyID, OSCMessage msg) {
+			final long key = key(nodeID, replyID);
+			int idx = hash(key) & mask;
+
+			while (slots[idx] != null) {
+				if (keys[idx] == key) {
+					final Registration[] slot = slots[idx];
+					for (int i = 0; i < slot.length; i++) {
+						slot[i].dispatch(srcNodeID, srcReplyID, msg);
+					}
+					return;
+				}
+				idx = (idx + 1) & mask;
+			}
+		}
+
+		private static long key(int nodeID, int replyID) {
+			return ((long) nodeID << 32) | (replyID & 0xFFFFFFFFL);
+		}
+
+		private static int hash(long key) {
+			final long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * TriggerRing.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded lock-free ring buffer of trigger messages. Registered with a
+ * <code>TriggerResponder</code>, it stores incoming triggers in primitive arrays
+ * allocated once, so that a consumer thread can poll them at its own rate
+ * without blocking the OSC thread. When the ring is full, new triggers are
+ * dropped and counted.
+ * <p>
+ * Example:
+ *
+ * <PRE>
+ * TriggerRing ring = new TriggerRing(4096, 4);
+ * triggerResponder.addListener(mySynth.getNodeID(), TriggerResponder.ANY, ring);
+ * // ... in the consumer thread:
+ * ring.drain(myListener);
+ * </PRE>
+ *
+ * @synchronization there must be only one producer (the OSC thread calling
+ *                  <code>onTrigger</code>) and one consumer thread calling
+ *                  <code>poll</code> or <code>drain</code>. the remaining methods
+ *                  can be called from any thread.
+ */
+public class TriggerRing implements TriggerListener {
+	private final int capacity;
+	private final int mask;
+	private final int maxValues;
+
+	private final int[] nodeIDs;
+	private final int[] replyIDs;
+	private final int[] numValues;
+	private final float[] values;
+
+	private final AtomicLong head = new AtomicLong(); // next slot to read ; written by consumer
+	private final AtomicLong tail = new AtomicLong(); // next slot to write ; written by producer
+	private volatile long numDropped = 0; // written by producer
+
+	private float[][] drainValues = null; // consumer side reusable arrays, indexed by length
+
+	/**
+	 * Creates a new ring.
+	 *
+	 * @param capacity
+	 *            the maximum number of buffered triggers. this is rounded up to
+	 *            the next power of two
+	 * @param maxValues
+	 *            the maximum number of values per trigger. additional values are
+	 *            discarded
+	 */
+	public TriggerRing(int capacity, int maxValues) {
+		int cap = 1;
+		while (cap < capacity)
+			cap <<= 1;
+
+		this.capacity = cap;
+		this.maxValues = maxValues;
+		mask = cap - 1;
+		nodeIDs = new int[cap];
+		replyIDs = new int[cap];
+		numValues = new int[cap];
+		values = new float[cap * maxValues];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getMaxValues() {
+		return maxValues;
+	}
+
+	/**
+	 * Returns the number of triggers waiting to be polled.
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Returns the number of triggers which were dropped because the ring was
+	 * full.
+	 */
+	public long getNumDropped() {
+		return numDropped;
+	}
+
+	/**
+	 * Stores a trigger in the ring. This is called by the
+	 * <code>TriggerResponder</code>.
+	 */
+	@Override
+	public void onTrigger(int nodeID, int replyID, float[] vals) {
+		final long t = tail.get();
+
+		if (t - head.get() >= capacity) {
+			numDropped++; // single producer
+			return;
+		}
+
+		final int slot = (int) t & mask;
+		final int num = Math.min(vals.length, maxValues);
+
+		nodeIDs[slot] = nodeID;
+		replyIDs[slot] = replyID;
+		numValues[slot] = num;
+		System.arraycopy(vals, 0, values, slot * maxValues, num);
+		tail.lazySet(t + 1); // publishes the slot
+	}
+
+	/**
+	 * Removes the oldest trigger from the ring.
+	 *
+	 * @param ids
+	 *            an array of at least two elements, into which the node ID and
+	 *            trigger ID are written
+	 * @param vals
+	 *            an array of at least <code>getMaxValues()</code> elements, into
+	 *            which the trigger values are written
+	 * @return the number of values written, or <code>-1</code> if the ring is
+	 *         empty
+	 */
+	public int poll(int[] ids, float[] vals) {
+		final long h = head.get();
+
+		if (h == tail.get())
+			return -1;
+
+		final int slot = (int) h & mask;
+		final int num = numValues[slot];
+
+		ids[0] = nodeIDs[slot];
+		ids[1] = replyIDs[slot];
+		System.arraycopy(values, slot * maxValues, vals, 0, num);
+		head.lazySet(h + 1); // releases the slot
+		return num;
+	}
+
+	/**
+	 * Removes all waiting triggers from the ring and passes them to a listener.
+	 * The value arrays passed to the listener are reused.
+	 *
+	 * @param l
+	 *            the listener to call for each trigger, in the consumer thread
+	 * @return the number of triggers removed
+	 */
+	public int drain(TriggerListener l) {
+		final long h = head.get();
+		final long t = tail.get();
+
+		if (drainValues == null)
+			drainValues = new float[maxValues + 1][];
+
+		for (long i = h; i < t; i++) {
+			final int slot = (int) i & mask;
+			final int num = numValues[slot];
+			float[] vals = drainValues[num];
+
+			if (vals == null) {
+				vals = new float[num];
+				drainValues[num] = vals;
+			}
+			System.arraycopy(values, slot * maxValues, vals, 0, num);
+			head.lazySet(i + 1);
+			l.onTrigger(nodeIDs[slot], replyIDs[slot], vals);
+		}
+		return (int) (t - h);
+	}
+}
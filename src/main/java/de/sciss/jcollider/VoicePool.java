@@ -0,0 +1,538 @@
+/*
+ * VoicePool.java
+ * (JavaCollider)
+ * Copyright (c) 2004-2015 Hanns Holger Rutz. All rights reserved.
+ * This software is published under the GNU Lesser General Public License v2.1+
+ * For further information, please contact Hanns Holger Rutz at
+ * contact@sciss.de
+ */
+
+package de.sciss.jcollider;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import de.sciss.net.OSCBundle;
+
+/**
+ * A pool of preallocated voices for one synth def. Instead of creating a new
+ * <code>Synth</code> for each note (costing a <code>/s_new</code>, a node
+ * construction on the server and a new node ID), the pool spawns a fixed
+ * number of paused synths upfront using <code>Synth.newPaused</code>. A voice
+ * is handed out by sending a single bundle of <code>/n_set</code> (the note's
+ * control values) and <code>/n_run</code>. The <code>/n_set</code> also opens
+ * the <code>"gate"</code> control, which <code>release</code> closed, so that
+ * the envelope starts again. When the note is released, the voice returns to
+ * the pool.
+ * <p>
+ * The synth def should not free itself. Typically its envelope uses
+ * <code>kDonePause</code> as done action, so that <code>release</code> lets the
+ * envelope fade out and then pauses the synth on the server side, leaving it
+ * ready for the next note.
+ * <p>
+ * If no voice is free when a new note is requested, a voice is stolen according
+ * to the pool's stealing policy: either the voice that was started the longest
+ * time ago (<code>STEAL_OLDEST</code>), or the voice with the lowest value of
+ * the level control (<code>STEAL_QUIETEST</code>), as last set through the
+ * pool. Stealing can be disabled with <code>STEAL_NONE</code>. A stolen voice,
+ * or one which was paused by <code>stop</code>, is not reused as it is,
+ * because its envelope would continue from its current stage. Instead, it is
+ * replaced on the server by a new synth, using <code>/s_new</code> with
+ * <code>kAddReplace</code>, so that the envelope starts from the beginning. The
+ * replaced <code>Synth</code> is no longer part of the pool, calling
+ * <code>release</code> or <code>stop</code> with it has no effect.
+ *
+ * @synchronization all methods are thread safe
+ */
+public class VoicePool implements Constants {
+	/**
+	 * Stealing policy : don't steal, <code>obtain</code> returns
+	 * <code>null</code> when all voices are busy
+	 */
+	public static final int STEAL_NONE = 0;
+
+	/**
+	 * Stealing policy : steal the voice which was started the longest time ago
+	 */
+	public static final int STEAL_OLDEST = 1;
+
+	/**
+	 * Stealing policy : steal the voice with the lowest level control value
+	 */
+	public static final int STEAL_QUIETEST = 2;
+
+	private static final String GATE = "gate";
+
+	private final Server server;
+	private final String defName;
+	private final String[] initArgNames;
+	private final float[] initArgValues;
+
+	// all of the following are synchronized through 'sync'
+	private final Synth[] voices;
+	private final Map<Synth, Integer> mapVoiceIndices;
+	private final Set<Synth> retired = Collections.newSetFromMap(new WeakHashMap<Synth, Boolean>());
+	private final boolean[] busy;
+	private final boolean[] cut; // paused by stop, must be replaced to retrigger
+	private final long[] startStamps;
+	private final float[] levels;
+	private final int[] freeStack;
+	private int numFree;
+	private long stamp = 0;
+	private int stealPolicy = STEAL_OLDEST;
+	private String levelCtrlName = "amp";
+	private long numRequests = 0;
+	private long numHits = 0;
+	private long numSteals = 0;
+	private long numMisses = 0;
+	private boolean disposed = false;
+
+	private final Object sync = new Object();
+
+	/**
+	 * Creates a new pool by spawning a given number of paused synths at the head
+	 * of a target group.
+	 *
+	 * @param defName
+	 *            the name of the synth def to use for all voices
+	 * @param target
+	 *            the group in which the voices are created
+	 * @param numVoices
+	 *            the number of voices to preallocate
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public VoicePool(String defName, Group target, int numVoices) throws IOException {
+		this(defName, null, null, target, kAddToHead, numVoices);
+	}
+
+	/**
+	 * Creates a new pool by spawning a given number of paused synths.
+	 *
+	 * @param defName
+	 *            the name of the synth def to use for all voices
+	 * @param argNames
+	 *            the names of controls to initialize for each voice, or
+	 *            <code>null</code>
+	 * @param argValues
+	 *            the initial values corresponding to <code>argNames</code>, or
+	 *            <code>null</code>
+	 * @param target
+	 *            the node relative to which the voices are created
+	 * @param addAction
+	 *            the add action to use relative to <code>target</code>
+	 * @param numVoices
+	 *            the number of voices to preallocate
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC messages
+	 */
+	public VoicePool(String defName, String[] argNames, float[] argValues, Node target, int addAction, int numVoices)
+			throws IOException {
+		if (numVoices <= 0)
+			throw new IllegalArgumentException("numVoices must be greater than zero");
+
+		this.server = target.getServer();
+		this.defName = defName;
+		initArgNames = argNames == null ? new String[0] : argNames;
+		initArgValues = argValues == null ? new float[0] : argValues;
+
+		voices = new Synth[numVoices];
+		busy = new boolean[numVoices];
+		cut = new boolean[numVoices];
+		startStamps = new long[numVoices];
+		levels = new float[numVoices];
+		freeStack = new int[numVoices];
+		mapVoiceIndices = new HashMap<>(numVoices * 2);
+
+		for (int i = 0; i < numVoices; i++) {
+			voices[i] = Synth.newPaused(defName, argNames, argValues, target, addAction);
+			mapVoiceIndices.put(voices[i], new Integer(i));
+			freeStack[i] = numVoices - 1 - i; // hand out voices in creation order
+		}
+		numFree = numVoices;
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	public String getDefName() {
+		return defName;
+	}
+
+	/**
+	 * Queries the total number of voices managed by the pool.
+	 */
+	public int getNumVoices() {
+		return voices.length;
+	}
+
+	/**
+	 * Queries the number of voices which are currently not in use.
+	 */
+	public int getNumFreeVoices() {
+		synchronized (sync) {
+			return numFree;
+		}
+	}
+
+	/**
+	 * Returns the voice with the given index.
+	 *
+	 * @param idx
+	 *            the index of the voice, between <code>0</code> and
+	 *            <code>getNumVoices() - 1</code>
+	 */
+	public Synth getVoice(int idx) {
+		synchronized (sync) {
+			return voices[idx];
+		}
+	}
+
+	/**
+	 * Changes the stealing policy used when all voices are busy.
+	 *
+	 * @param policy
+	 *            one of <code>STEAL_NONE</code>, <code>STEAL_OLDEST</code>
+	 *            (default) and <code>STEAL_QUIETEST</code>
+	 */
+	public void setStealPolicy(int policy) {
+		if ((policy < STEAL_NONE) || (policy > STEAL_QUIETEST))
+			throw new IllegalArgumentException(String.valueOf(policy));
+
+		synchronized (sync) {
+			stealPolicy = policy;
+		}
+	}
+
+	public int getStealPolicy() {
+		synchronized (sync) {
+			return stealPolicy;
+		}
+	}
+
+	/**
+	 * Specifies the control whose values are tracked for the
+	 * <code>STEAL_QUIETEST</code> policy. The pool remembers the last value of
+	 * this control passed to <code>obtain</code> for each voice. By default this
+	 * is &quot;amp&quot;.
+	 *
+	 * @param ctrlName
+	 *            the name of the control denoting the voice's level
+	 */
+	public void setLevelControl(String ctrlName) {
+		synchronized (sync) {
+			levelCtrlName = ctrlName;
+		}
+	}
+
+	public String getLevelControl() {
+		synchronized (sync) {
+			return levelCtrlName;
+		}
+	}
+
+	/**
+	 * Hands out a voice and starts it with the given control values. The control
+	 * values and the resume command are sent as one bundle.
+	 *
+	 * @param argNames
+	 *            the names of the controls to set, or <code>null</code>
+	 * @param argValues
+	 *            the values corresponding to <code>argNames</code>, or
+	 *            <code>null</code>
+	 * @return the started voice, or <code>null</code> if all voices are busy and
+	 *         the stealing policy is <code>STEAL_NONE</code>
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC bundle
+	 */
+	public Synth obtain(String[] argNames, float[] argValues) throws IOException {
+		final OSCBundle bndl = new OSCBundle();
+		final Synth voice = obtain(argNames, argValues, bndl);
+
+		if (voice != null)
+			server.sendBundle(bndl);
+		return voice;
+	}
+
+	/**
+	 * Hands out a voice, adding the messages required to start it with the given
+	 * control values to a bundle. This can be used to schedule the note with a
+	 * time tag. Note that the voice is regarded busy immediately.
+	 *
+	 * @param argNames
+	 *            the names of the controls to set, or <code>null</code>
+	 * @param argValues
+	 *            the values corresponding to <code>argNames</code>, or
+	 *            <code>null</code>
+	 * @param bndl
+	 *            the bundle to which the <code>/n_set</code> and
+	 *            <code>/n_run</code> messages are added, or the
+	 *            <code>/s_new</code> message which replaces a stolen voice
+	 * @return the voice, or <code>null</code> if all voices are busy and the
+	 *         stealing policy is <code>STEAL_NONE</code>
+	 */
+	public Synth obtain(String[] argNames, float[] argValues, OSCBundle bndl) {
+		final int idx;
+		final Synth replaced;
+		final Synth voice;
+
+		synchronized (sync) {
+			if (disposed)
+				throw new IllegalStateException("VoicePool has been disposed");
+
+			numRequests++;
+			if (numFree > 0) {
+				idx = freeStack[--numFree];
+				// a voice paused by stop never saw its gate close, so reopening
+				// the gate would not retrigger the envelope
+				replaced = cut[idx] ? voices[idx] : null;
+				numHits++;
+			} else {
+				idx = findVictim();
+				if (idx == -1) {
+					numMisses++;
+					return null;
+				}
+				numSteals++;
+				replaced = voices[idx]; // stolen
+			}
+			if (replaced != null) {
+				voices[idx] = Synth.basicNew(defName, server);
+				mapVoiceIndices.remove(replaced);
+				mapVoiceIndices.put(voices[idx], new Integer(idx));
+				retired.add(replaced);
+				cut[idx] = false;
+			}
+
+			busy[idx] = true;
+			startStamps[idx] = stamp++;
+			levels[idx] = findLevel(argNames, argValues);
+			voice = voices[idx];
+		}
+
+		if (replaced != null) {
+			// the new synth takes the place of the old one, with a fresh envelope
+			final int numArgs = argNames == null ? 0 : argNames.length;
+			final String[] newArgNames = new String[initArgNames.length + numArgs];
+			final float[] newArgValues = new float[newArgNames.length];
+			System.arraycopy(initArgNames, 0, newArgNames, 0, initArgNames.length);
+			System.arraycopy(initArgValues, 0, newArgValues, 0, initArgNames.length);
+			if (numArgs > 0) {
+				System.arraycopy(argNames, 0, newArgNames, initArgNames.length, numArgs);
+				System.arraycopy(argValues, 0, newArgValues, initArgNames.length, numArgs);
+			}
+			bndl.addPacket(voice.newMsg(replaced, newArgNames, newArgValues, kAddReplace));
+			return voice;
+		}
+		// the gate was closed by release, so open it again before the
+		// caller's controls, which may still override it
+		final int numArgs = argNames == null ? 0 : argNames.length;
+		final String[] setArgNames = new String[numArgs + 1];
+		final float[] setArgValues = new float[numArgs + 1];
+		setArgNames[0] = GATE;
+		setArgValues[0] = 1f;
+		if (numArgs > 0) {
+			System.arraycopy(argNames, 0, setArgNames, 1, numArgs);
+			System.arraycopy(argValues, 0, setArgValues, 1, numArgs);
+		}
+		bndl.addPacket(voice.setMsg(setArgNames, setArgValues));
+		bndl.addPacket(voice.runMsg(true));
+		return voice;
+	}
+
+	/**
+	 * Releases a voice using the gate control and returns it to the pool. This
+	 * assumes that the synth def's envelope pauses the synth when it is done.
+	 *
+	 * @param voice
+	 *            a voice previously obtained from this pool
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC message
+	 *
+	 * @see Node#releaseMsg()
+	 */
+	public void release(Synth voice) throws IOException {
+		if (giveBack(voice, false))
+			server.sendMsg(voice.releaseMsg());
+	}
+
+	/**
+	 * Pauses a voice immediately and returns it to the pool. Since the envelope
+	 * is frozen in its current stage, the voice is replaced by a new synth when
+	 * it is handed out again.
+	 *
+	 * @param voice
+	 *            a voice previously obtained from this pool
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC message
+	 */
+	public void stop(Synth voice) throws IOException {
+		if (giveBack(voice, true))
+			server.sendMsg(voice.runMsg(false));
+	}
+
+	/**
+	 * Frees all voices on the server. Do not use the pool after calling this
+	 * method.
+	 *
+	 * @throws IOException
+	 *             if an error occurs while sending the OSC bundle
+	 */
+	public void dispose() throws IOException {
+		final OSCBundle bndl = new OSCBundle();
+
+		synchronized (sync) {
+			if (disposed)
+				return;
+			disposed = true;
+			numFree = 0;
+			for (int i = 0; i < voices.length; i++) {
+				bndl.addPacket(voices[i].freeMsg());
+			}
+		}
+		server.sendBundle(bndl);
+	}
+
+	/**
+	 * Queries the number of voices requested through <code>obtain</code>.
+	 */
+	public long getNumRequests() {
+		synchronized (sync) {
+			return numRequests;
+		}
+	}
+
+	/**
+	 * Queries the number of requests that were served by a free voice.
+	 */
+	public long getNumHits() {
+		synchronized (sync) {
+			return numHits;
+		}
+	}
+
+	/**
+	 * Queries the number of requests that were served by stealing a busy voice.
+	 */
+	public long getNumSteals() {
+		synchronized (sync) {
+			return numSteals;
+		}
+	}
+
+	/**
+	 * Queries the number of requests that could not be served at all.
+	 */
+	public long getNumMisses() {
+		synchronized (sync) {
+			return numMisses;
+		}
+	}
+
+	/**
+	 * Queries the ratio of requests served by a free voice.
+	 *
+	 * @return the hit ratio between <code>0.0</code> and <code>1.0</code>, or
+	 *         <code>0.0</code> if no voice has been requested yet
+	 */
+	public double getHitRatio() {
+		synchronized (sync) {
+			return numRequests == 0 ? 0.0 : (double) numHits / numRequests;
+		}
+	}
+
+	/**
+	 * Resets the request, hit, steal and miss counters.
+	 */
+	public void resetMetrics() {
+		synchronized (sync) {
+			numRequests = 0;
+			numHits = 0;
+			numSteals = 0;
+			numMisses = 0;
+		}
+	}
+
+	public void printOn(PrintStream stream) {
+		stream.print("VoicePool(\"" + defName + "\", " + voices.length + ")");
+	}
+
+	@Override
+	public String toString() {
+		return ("VoicePool(\"" + defName + "\", " + voices.length + ")");
+	}
+
+	// returns true if the voice was busy
+	private boolean giveBack(Synth voice, boolean paused) {
+		synchronized (sync) {
+			final Integer idxObj = mapVoiceIndices.get(voice);
+			if (idxObj == null) {
+				if (retired.contains(voice))
+					return false; // was replaced by a new synth
+				throw new IllegalArgumentException(voice + " is not part of " + this);
+			}
+
+			final int idx = idxObj.intValue();
+			if (disposed || !busy[idx])
+				return false;
+			busy[idx] = false;
+			cut[idx] = paused;
+			freeStack[numFree++] = idx;
+			return true;
+		}
+	}
+
+	// @synchronization has to be called with sync on sync
+	private int findVictim() {
+		int victim = -1;
+
+		switch (stealPolicy) {
+		case STEAL_OLDEST:
+			long minStamp = Long.MAX_VALUE;
+			for (int i = 0; i < voices.length; i++) {
+				if (busy[i] && (startStamps[i] < minStamp)) {
+					minStamp = startStamps[i];
+					victim = i;
+				}
+			}
+			break;
+
+		case STEAL_QUIETEST:
+			float minLevel = Float.POSITIVE_INFINITY;
+			for (int i = 0; i < voices.length; i++) {
+				if (busy[i] && (Math.abs(levels[i]) < minLevel)) {
+					minLevel = Math.abs(levels[i]);
+					victim = i;
+				}
+			}
+			break;
+
+		default:
+			break;
+		}
+
+		return victim;
+	}
+
+	// @synchronization has to be called with sync on sync
+	private float findLevel(String[] argNames, float[] argValues) {
+		if ((argNames != null) && (levelCtrlName != null)) {
+			for (int i = 0; i < argNames.length; i++) {
+				if (levelCtrlName.equals(argNames[i]))
+					return argValues[i];
+			}
+		}
+		return 1f;
+	}
+}
@@ -0,0 +1,104 @@
+package de.sciss.jcollider.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.sciss.jcollider.BestFitBlockAllocator;
+import de.sciss.jcollider.BlockAllocator;
+import de.sciss.jcollider.BuddyBlockAllocator;
+import de.sciss.jcollider.ContiguousBlockAllocator;
+import de.sciss.jcollider.PowerOfTwoAllocator;
+
+/**
+ * Compares the throughput and fragmentation of the block allocators under a
+ * random workload of mixed size allocations and frees, as caused by dynamic
+ * bus allocation. The same pseudo random sequence is applied to each
+ * allocator. For each allocator, the number of failed allocations and the
+ * largest block which can still be allocated at the end are reported.
+ */
+public class AllocatorBenchmark {
+	private static final int SIZE = 16384;
+	private static final int NUM_OPS = 200000;
+	private static final int WARMUP = 3;
+	private static final int RUNS = 5;
+
+	public AllocatorBenchmark() {
+		final BlockAllocator.Factory[] factories = new BlockAllocator.Factory[] { new PowerOfTwoAllocator.Factory(),
+				new ContiguousBlockAllocator.Factory(), new BestFitBlockAllocator.Factory(),
+				new BuddyBlockAllocator.Factory() };
+
+		System.out.println(
+				"Allocator size " + SIZE + ", " + NUM_OPS + " operations per run, " + RUNS + " runs\n");
+
+		for (int i = 0; i < factories.length; i++) {
+			final BlockAllocator.Factory f = factories[i];
+			final String name = f.getClass().getName();
+			try {
+				for (int j = 0; j < WARMUP; j++) {
+					run(f.create(SIZE), j);
+				}
+				final long t0 = System.nanoTime();
+				int numFailed = 0;
+				BlockAllocator ba = null;
+				for (int j = 0; j < RUNS; j++) {
+					ba = f.create(SIZE);
+					numFailed += run(ba, j);
+				}
+				final double nanos = (double) (System.nanoTime() - t0) / RUNS / NUM_OPS;
+				System.out.println(name + " : " + ((long) (nanos * 10) / 10.0) + " ns/op, " + numFailed
+						+ " failed allocs, largest alloc at end " + largestAlloc(ba));
+			} catch (RuntimeException e1) {
+				System.out.println(name + " : failed with " + e1);
+			}
+		}
+		System.exit(0);
+	}
+
+	// applies a random sequence of allocations and frees, keeping about three
+	// quarters of the space in use. returns the number of failed allocations
+	private static int run(BlockAllocator ba, int seed) {
+		final Random rnd = new Random(seed);
+		final List<Integer> live = new ArrayList<>();
+		int used = 0;
+		int numFailed = 0;
+		final int[] sizes = new int[SIZE];
+
+		for (int i = 0; i < NUM_OPS; i++) {
+			if (!live.isEmpty() && ((used > SIZE * 3 / 4) || rnd.nextBoolean())) {
+				final int idx = rnd.nextInt(live.size());
+				final int addr = live.get(idx).intValue();
+				live.set(idx, live.get(live.size() - 1));
+				live.remove(live.size() - 1);
+				ba.free(addr);
+				used -= sizes[addr];
+			} else {
+				// mostly small blocks, sometimes large ones
+				final int n = rnd.nextInt(8) == 0 ? 1 + rnd.nextInt(256) : 1 + rnd.nextInt(8);
+				final int addr = ba.alloc(n);
+				if (addr < 0) {
+					numFailed++;
+				} else {
+					live.add(new Integer(addr));
+					sizes[addr] = n;
+					used += n;
+				}
+			}
+		}
+		return numFailed;
+	}
+
+	// the largest power of two block which can still be allocated. this
+	// reveals fragmentation independent of the allocator's bookkeeping
+	private static int largestAlloc(BlockAllocator ba) {
+		for (int n = SIZE; n > 0; n >>= 1) {
+			if (ba.alloc(n) >= 0)
+				return n;
+		}
+		return 0;
+	}
+
+	public static void main(String[] args) {
+		new AllocatorBenchmark();
+	}
+}
@@ -0,0 +1,266 @@
+package de.sciss.jcollider.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.sciss.jcollider.BusMirror;
+import de.sciss.jcollider.NodeBatch;
+import de.sciss.jcollider.PeakRMSMeter;
+import de.sciss.jcollider.Server;
+import de.sciss.jcollider.Synth;
+import de.sciss.jcollider.VoicePool;
+import de.sciss.net.OSCBundle;
+import de.sciss.net.OSCMessage;
+
+/**
+ * Tests of client side behaviour which do not depend on the server's replies.
+ * Messages are sent to udp port 57110, but scsynth need not be running.
+ */
+public class ClientTests {
+	private Server s = null;
+
+	public ClientTests() {
+		try {
+			s = new Server("Test");
+			s.start();
+			testVoicePool();
+			testNodeBatch();
+			testPeakRMSMeter();
+			testBusMirror();
+			System.out.println("\nAll tests successful!");
+			System.exit(0);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	protected void test(boolean success, String name) {
+		if (!success)
+			throw new AssertionError(name);
+	}
+
+	// returns the value of a named control in an /n_set message, or NaN
+	protected static float controlValue(OSCMessage msg, String ctrlName) {
+		float value = Float.NaN;
+		for (int i = 1; i + 1 < msg.getArgCount(); i += 2) {
+			if (ctrlName.equals(msg.getArg(i)))
+				value = ((Number) msg.getArg(i + 1)).floatValue();
+		}
+		return value;
+	}
+
+	protected void testVoicePool() throws IOException {
+		System.out.println("VoicePool : obtain -> release -> obtain re-gates the voice");
+		final VoicePool pool = new VoicePool("default", s.getDefaultGroup(), 1);
+
+		OSCBundle bndl = new OSCBundle();
+		final Synth v1 = pool.obtain(new String[] { "freq" }, new float[] { 440f }, bndl);
+		pool.release(v1);
+
+		bndl = new OSCBundle();
+		final Synth v2 = pool.obtain(new String[] { "freq" }, new float[] { 550f }, bndl);
+		test(v2 == v1, "released voice is reused");
+		test(bndl.getPacketCount() == 2, "bundle has /n_set and /n_run");
+		final OSCMessage setMsg = (OSCMessage) bndl.getPacket(0);
+		test(setMsg.getName().equals("/n_set"), "first message is /n_set");
+		test(controlValue(setMsg, "gate") == 1f, "gate is opened");
+		test(controlValue(setMsg, "freq") == 550f, "note controls are set");
+		pool.release(v2);
+
+		System.out.println("VoicePool : caller may override the gate");
+		bndl = new OSCBundle();
+		final Synth v3 = pool.obtain(new String[] { "gate" }, new float[] { 0.5f }, bndl);
+		test(controlValue((OSCMessage) bndl.getPacket(0), "gate") == 0.5f, "caller's gate wins");
+
+		System.out.println("VoicePool : stolen and stopped voices are replaced");
+		bndl = new OSCBundle();
+		final Synth v4 = pool.obtain(null, null, bndl);
+		test(v4 != v3, "stolen voice is a new synth");
+		test(((OSCMessage) bndl.getPacket(0)).getName().equals("/s_new"), "stolen voice is replaced by /s_new");
+		pool.release(v3); // no effect, v3 was stolen
+		test(pool.getNumFreeVoices() == 0, "release of a stolen voice is ignored");
+		pool.stop(v4);
+		bndl = new OSCBundle();
+		final Synth v5 = pool.obtain(null, null, bndl);
+		test(v5 != v4, "stopped voice is a new synth");
+		test(((OSCMessage) bndl.getPacket(0)).getName().equals("/s_new"), "stopped voice is replaced by /s_new");
+
+		pool.dispose();
+	}
+
+	protected void testNodeBatch() {
+		System.out.println("NodeBatch : set and map keep their call order");
+		final Synth synth = Synth.basicNew("default", s);
+		NodeBatch batch = new NodeBatch(s);
+		batch.map(synth, 3, 10).set(synth, 3, 0.5f);
+		List<OSCBundle> bundles = batch.getBundles();
+		test(bundles.size() == 1, "one bundle");
+		OSCBundle bndl = bundles.get(0);
+		test(bndl.getPacketCount() == 2, "map and set are separate messages");
+		test(((OSCMessage) bndl.getPacket(0)).getName().equals("/n_map"), "map comes first");
+		test(((OSCMessage) bndl.getPacket(1)).getName().equals("/n_set"), "set comes last");
+
+		batch = new NodeBatch(s);
+		batch.set(synth, 1, 0f).set(synth, 2, 0f).set(synth, 1, 1f);
+		bndl = batch.getBundles().get(0);
+		test(bndl.getPacketCount() == 1, "successive sets are merged");
+		test(((OSCMessage) bndl.getPacket(0)).getArgCount() == 5, "same control is set once");
+
+		System.out.println("NodeBatch : large setn is split into ranges");
+		batch = new NodeBatch(s);
+		batch.setMaxBundleSize(512);
+		batch.setn(synth, 4, new float[200]);
+		bundles = batch.getBundles();
+		int numValues = 0;
+		int nextIdx = 4;
+		for (int i = 0; i < bundles.size(); i++) {
+			bndl = bundles.get(i);
+			for (int j = 0; j < bndl.getPacketCount(); j++) {
+				final OSCMessage msg = (OSCMessage) bndl.getPacket(j);
+				for (int k = 1; k < msg.getArgCount();) {
+					final int idx = ((Number) msg.getArg(k)).intValue();
+					final int num = ((Number) msg.getArg(k + 1)).intValue();
+					test(idx == nextIdx, "ranges are contiguous");
+					nextIdx += num;
+					numValues += num;
+					k += num + 2;
+				}
+			}
+		}
+		test(bundles.size() > 1, "split across bundles");
+		test(numValues == 200, "all values are sent");
+	}
+
+	protected void testPeakRMSMeter() throws IOException {
+		System.out.println("PeakRMSMeter : concurrent readers never see a partial reply");
+		final int numChannels = 8;
+		final int numReplies = 200000;
+		// the meter's synth takes the next node ID after this one
+		final int nodeID = s.nextNodeID() + 1;
+		final PeakRMSMeter meter = new PeakRMSMeter(s);
+		final int meterID = meter.add(0, numChannels);
+		final boolean[] torn = new boolean[1];
+
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				final Object[] args = new Object[2 + (numChannels << 1)];
+				args[0] = new Integer(nodeID);
+				args[1] = new Integer(meterID);
+				for (int i = 1; i <= numReplies; i++) {
+					final Float value = new Float(i);
+					for (int j = 2; j < args.length; j++) {
+						args[j] = value;
+					}
+					meter.respond(null, new OSCMessage("/jcPeakRMS", args), 0L);
+				}
+			}
+		};
+		final Thread[] readers = new Thread[2];
+		for (int k = 0; k < readers.length; k++) {
+			readers[k] = new Thread() {
+				@Override
+				public void run() {
+					final float[] peaks = new float[numChannels];
+					final float[] rms = new float[numChannels];
+					final float[] all = new float[meter.getNumLevels()];
+					while (writer.isAlive()) {
+						final int seq = meter.getLevels(meterID, peaks, rms);
+						for (int ch = 0; ch < numChannels; ch++) {
+							if ((peaks[ch] != seq) || (rms[ch] != seq))
+								torn[0] = true;
+						}
+						final int seq2 = meter.getAllLevels(all);
+						for (int i = 0; i < all.length; i++) {
+							if (all[i] != seq2)
+								torn[0] = true;
+						}
+					}
+				}
+			};
+		}
+
+		writer.start();
+		for (int k = 0; k < readers.length; k++) {
+			readers[k].start();
+		}
+		try {
+			writer.join();
+			for (int k = 0; k < readers.length; k++) {
+				readers[k].join();
+			}
+		} catch (InterruptedException e1) {
+			throw new AssertionError(e1);
+		}
+		test(meter.getSequence() == numReplies, "all replies were written");
+		test(!torn[0], "levels are consistent with their sequence number");
+		meter.dispose();
+	}
+
+	protected void testBusMirror() {
+		System.out.println("BusMirror : concurrent readers never see a partial poll");
+		final int numChannels = 16;
+		final int numPolls = 20000;
+		final BusMirror mirror = new BusMirror(s);
+		final boolean[] torn = new boolean[1];
+		mirror.subscribe(0, numChannels);
+
+		final Thread writer = new Thread() {
+			@Override
+			public void run() {
+				final Object[] args = new Object[2 + numChannels];
+				args[0] = new Integer(0);
+				args[1] = new Integer(numChannels);
+				try {
+					for (int i = 1; i <= numPolls; i++) {
+						mirror.poll();
+						final Float value = new Float(i);
+						for (int j = 2; j < args.length; j++) {
+							args[j] = value;
+						}
+						mirror.respond(null, new OSCMessage("/c_setn", args), 0L);
+					}
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		};
+		final Thread[] readers = new Thread[2];
+		for (int k = 0; k < readers.length; k++) {
+			readers[k] = new Thread() {
+				@Override
+				public void run() {
+					final float[] dest = new float[numChannels];
+					while (writer.isAlive()) {
+						final int seq = mirror.get(0, dest, 0, numChannels);
+						for (int ch = 0; ch < numChannels; ch++) {
+							if (dest[ch] != seq)
+								torn[0] = true;
+						}
+					}
+				}
+			};
+		}
+
+		writer.start();
+		for (int k = 0; k < readers.length; k++) {
+			readers[k].start();
+		}
+		try {
+			writer.join();
+			for (int k = 0; k < readers.length; k++) {
+				readers[k].join();
+			}
+		} catch (InterruptedException e1) {
+			throw new AssertionError(e1);
+		}
+		test(mirror.getSequence() == numPolls, "all polls were published");
+		test(!torn[0], "values are consistent with their sequence number");
+		mirror.dispose();
+	}
+
+	public static void main(String[] args) {
+		new ClientTests();
+	}
+}
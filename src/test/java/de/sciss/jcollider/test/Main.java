@@ -20,6 +20,12 @@ public class Main {
 				demoClass = "de.sciss.jcollider.test.MotoRevCtrl";
 			} else if (arg1.equals("--test3")) {
 				demoClass = "de.sciss.jcollider.test.BusTests";
+			} else if (arg1.equals("--test4")) {
+				demoClass = "de.sciss.jcollider.test.TableGenBenchmark";
+			} else if (arg1.equals("--test5")) {
+				demoClass = "de.sciss.jcollider.test.AllocatorBenchmark";
+			} else if (arg1.equals("--test6")) {
+				demoClass = "de.sciss.jcollider.test.ClientTests";
 			} else if (arg1.equals("--bindefs")) {
 				try {
 					UGenInfo.readDefinitions();
@@ -56,6 +62,8 @@ public class Main {
 
 			System.out.println("\nThe following options are available:\n" + "--test1    SynthDef demo\n"
 					+ "--test2    MotoRev Control Demo\n" + "--test3    Bus Tests\n"
+					+ "--test4    Table Generation Benchmark\n" + "--test5    Block Allocator Benchmark\n"
+					+ "--test6    Client Side Tests\n"
 					+ "--bindefs  Create Binary UGen Definitions\n");
 			System.exit(1);
 		}
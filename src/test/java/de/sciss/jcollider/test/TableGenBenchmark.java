@@ -0,0 +1,111 @@
+package de.sciss.jcollider.test;
+
+import de.sciss.jcollider.Buffer;
+import de.sciss.jcollider.Server;
+import de.sciss.jcollider.TableGen;
+
+/**
+ * Compares client side table generation with the server's <code>/b_gen</code>
+ * command. The client side timings are measured without a server. If scsynth
+ * is running on udp port 57110, the round trip of <code>/b_gen sine1</code>
+ * (until <code>/synced</code>) is compared with generating the same wavetable
+ * with <code>TableGen</code> and uploading it.
+ */
+public class TableGenBenchmark {
+	private static final int SIZE = 8192;
+	private static final int NUM_PARTIALS = 64;
+	private static final int WARMUP = 20;
+	private static final int RUNS = 100;
+
+	public TableGenBenchmark() {
+		final float[] amps = new float[NUM_PARTIALS];
+		for (int i = 0; i < NUM_PARTIALS; i++) {
+			amps[i] = 1f / (i + 1);
+		}
+
+		System.out.println("Table size " + SIZE + ", " + NUM_PARTIALS + " partials\n");
+
+		for (int i = 0; i < WARMUP; i++) {
+			TableGen.toWavetable(TableGen.sine1(SIZE, amps, true));
+			TableGen.cheby(SIZE, amps, true);
+			TableGen.hann(SIZE);
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			TableGen.toWavetable(TableGen.sine1(SIZE, amps, true));
+		}
+		report("client sine1 + wavetable", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			TableGen.cheby(SIZE, amps, true);
+		}
+		report("client cheby", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			TableGen.hann(SIZE);
+			TableGen.blackman(SIZE);
+		}
+		report("client hann + blackman", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			TableGen.env(SIZE, new float[] { 0f, 1f, 0.3f, 0f }, new float[] { 0.1f, 0.5f, 1f }, -4f);
+		}
+		report("client env", t0);
+
+		try {
+			benchServer(amps);
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	private void benchServer(float[] amps) throws Exception {
+		final Server s = new Server("Benchmark");
+		s.start();
+		try {
+			if (!s.sync(2f)) {
+				System.out.println("\nNo server running, skipping /b_gen comparison");
+				return;
+			}
+			final Buffer buf = Buffer.alloc(s, SIZE << 1, 1);
+			s.sync(4f);
+
+			for (int i = 0; i < WARMUP; i++) {
+				buf.sine1(amps, true, true, true);
+				s.sync(4f);
+				TableGen.upload(buf, TableGen.sine1(SIZE, amps, true), true).get();
+			}
+
+			long t0 = System.nanoTime();
+			for (int i = 0; i < RUNS; i++) {
+				buf.sine1(amps, true, true, true);
+				s.sync(4f);
+			}
+			report("server /b_gen sine1 round trip", t0);
+
+			t0 = System.nanoTime();
+			for (int i = 0; i < RUNS; i++) {
+				TableGen.upload(buf, TableGen.sine1(SIZE, amps, true), true).get();
+			}
+			report("client sine1 + upload", t0);
+
+			buf.free();
+		} finally {
+			s.dispose();
+		}
+	}
+
+	private static void report(String name, long t0) {
+		final double micros = (System.nanoTime() - t0) / 1000.0 / RUNS;
+		System.out.println(name + " : " + ((long) (micros * 10) / 10.0) + " us");
+	}
+
+	public static void main(String[] args) {
+		new TableGenBenchmark();
+	}
+}